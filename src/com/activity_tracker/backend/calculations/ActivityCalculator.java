@@ -2,36 +2,31 @@ package com.activity_tracker.backend.calculations;
 
 
 
+import com.activity_tracker.backend.parser.Track;
 import com.activity_tracker.backend.parser.Waypoint;
 
-import java.time.Duration;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-
 /**
  * Class used for the mapping phase.
- * It will calculate the distance, time and elevation differences between two waypoints.
+ * It will calculate the distance, time and elevation differences between two waypoints of a track,
+ * given by their indices.
  */
 public class ActivityCalculator
 {
     /**
      * Calculates the time between two waypoints.
      *
-     * @param w1 the first waypoint.
-     * @param w2 the second waypoint.
-     * @return the time in hours between the two waypoints.
-     * @throws NullPointerException if either w1 or w2 is null.
+     * @param track the track containing the waypoints.
+     * @param i1 the index of the first waypoint.
+     * @param i2 the index of the second waypoint.
+     * @return the time in minutes between the two waypoints.
+     * @throws NullPointerException if the track is null.
      */
-    protected static double calculateTime(Waypoint w1, Waypoint w2)
+    protected static double calculateTime(Track track, int i1, int i2)
     {
-        assert w1 != null && w2 != null;
-        final String pattern = "yyyy-MM-dd'T'HH:mm:ss'Z'";
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern(pattern);
-        LocalDateTime t1 = LocalDateTime.parse(w1.getTimestamp(), formatter);
-        LocalDateTime t2 = LocalDateTime.parse(w2.getTimestamp(), formatter);
-        Duration duration = Duration.between(t1, t2);
-        double timeInSeconds = duration.getSeconds();
-        return timeInSeconds / 60.0f;   // we divide by 60 to get the time in minutes
+        assert track != null;
+        // the timestamps are already parsed to epoch milliseconds, so we only need their difference
+        double timeInSeconds = (track.getTime(i2) - track.getTime(i1)) / 1000.0;
+        return timeInSeconds / 60.0;   // we divide by 60 to get the time in minutes
     }
 
     /**
@@ -45,12 +40,22 @@ public class ActivityCalculator
     public static double calculateDistanceInMeters(Waypoint w1, Waypoint w2)
     {
         assert w1 != null && w2 != null;
+        return calculateDistanceInMeters(w1.getLatitude(), w1.getLongitude(), w2.getLatitude(), w2.getLongitude());
+    }
+
+    /**
+     * Calculates the distance between two points in meters.
+     *
+     * @param lat1 the latitude of the first point, in degrees.
+     * @param lon1 the longitude of the first point, in degrees.
+     * @param lat2 the latitude of the second point, in degrees.
+     * @param lon2 the longitude of the second point, in degrees.
+     * @return the distance in meters between the two points.
+     */
+    public static double calculateDistanceInMeters(double lat1, double lon1, double lat2, double lon2)
+    {
         final double RADIUS_OF_EARTH_METERS = 6378100;
         // Convert degrees to radians
-        double lat1 = w1.getLatitude();
-        double lon1 = w1.getLongitude();
-        double lat2 = w2.getLatitude();
-        double lon2 = w2.getLongitude();
         lat1 = lat1 * Math.PI / 180.0;
         lon1 = lon1 * Math.PI / 180.0;
         lat2 = lat2 * Math.PI / 180.0;
@@ -69,7 +74,8 @@ public class ActivityCalculator
         // Dot product
         double dot = (x1 * x2 + y1 * y2 + z1 * z2);
         double cos_theta = dot / (RADIUS_OF_EARTH_METERS * RADIUS_OF_EARTH_METERS);
-        final double theta = Math.acos(cos_theta);
+        // rounding can take cos_theta just past 1 for identical or very close points, where acos would return NaN
+        final double theta = Math.acos(Math.max(-1, Math.min(1, cos_theta)));
         // Distance in Metres
         return RADIUS_OF_EARTH_METERS * theta;
     }
@@ -77,33 +83,36 @@ public class ActivityCalculator
     /**
      * Calculates the distance in kilometers between two waypoints.
      *
-     * @param w1 the first waypoint.
-     * @param w2 the second waypoint.
+     * @param track the track containing the waypoints.
+     * @param i1 the index of the first waypoint.
+     * @param i2 the index of the second waypoint.
      * @return the distance in kilometers between the two waypoints.
-     * @throws NullPointerException if either w1 or w2 is null.
+     * @throws NullPointerException if the track is null.
      */
-    protected static double calculateDistanceInKilometers(Waypoint w1, Waypoint w2)
+    protected static double calculateDistanceInKilometers(Track track, int i1, int i2)
     {
-        assert w1 != null && w2 != null;
+        assert track != null;
         // Converting to Kilometers
-        return calculateDistanceInMeters(w1, w2) / 1000;
+        return calculateDistanceInMeters(track.getLatitude(i1), track.getLongitude(i1),
+                track.getLatitude(i2), track.getLongitude(i2)) / 1000;
     }
 
     /**
      * Calculates the elevation difference between two waypoints.
      *
-     * @param w1 the first waypoint.
-     * @param w2 the second waypoint.
+     * @param track the track containing the waypoints.
+     * @param i1 the index of the first waypoint.
+     * @param i2 the index of the second waypoint.
      * @return the elevation difference in meters between the two waypoints.
-     * @throws NullPointerException if either w1 or w2 is null.
+     * @throws NullPointerException if the track is null.
      */
     // Calculating the elevation between two waypoints
-    protected static double calculateElevation(Waypoint w1, Waypoint w2)
+    protected static double calculateElevation(Track track, int i1, int i2)
     {
-        assert w1 != null && w2 != null;
+        assert track != null;
         // if the elevation of w2 is greater than w1, return the difference between the two elevations
-        double elevation1 = w1.getElevation();
-        double elevation2 = w2.getElevation();
+        double elevation1 = track.getElevation(i1);
+        double elevation2 = track.getElevation(i2);
         return elevation2 > elevation1 ? elevation2 - elevation1 : 0;
     }
 
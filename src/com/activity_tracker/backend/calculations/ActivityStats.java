@@ -2,8 +2,8 @@ package com.activity_tracker.backend.calculations;
 
 
 
-import com.activity_tracker.backend.parser.Segment;
-import com.activity_tracker.backend.parser.Waypoint;
+import com.activity_tracker.backend.parser.SegmentInterval;
+import com.activity_tracker.backend.parser.Track;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -58,8 +58,8 @@ public class ActivityStats implements Serializable
      *
      * @param segments the segments to register
      */
-    public void registerSegments(ArrayList<Segment> segments) {
-        for (Segment segment : segments)
+    public void registerSegments(ArrayList<SegmentInterval> segments) {
+        for (SegmentInterval segment : segments)
         {
             this.segmentStatsList.add(new SegmentActivityStats(segment.getSegmentID(), segment.getFileName()));
         }
@@ -68,26 +68,28 @@ public class ActivityStats implements Serializable
     /**
      * Updates the stats of the activity with the given waypoints.
      *
-     * @param w1 the first waypoint
-     * @param w2 the second waypoint
+     * @param track the track containing the waypoints
+     * @param i1    the index of the first waypoint
+     * @param i2    the index of the second waypoint
      */
-    public void updateStats(Waypoint w1, Waypoint w2)
+    public void updateStats(Track track, int i1, int i2)
     {
-        this.distance += ActivityCalculator.calculateDistanceInKilometers(w1, w2);
-        this.time += ActivityCalculator.calculateTime(w1, w2);
-        this.elevation += ActivityCalculator.calculateElevation(w1, w2);
+        this.distance += ActivityCalculator.calculateDistanceInKilometers(track, i1, i2);
+        this.time += ActivityCalculator.calculateTime(track, i1, i2);
+        this.elevation += ActivityCalculator.calculateElevation(track, i1, i2);
     }
 
     /**
      * Updates the stats of the segments that contain the given waypoints.
      *
-     * @param w1       the first waypoint
-     * @param w2       the second waypoint
+     * @param track    the track containing the waypoints
+     * @param i1       the index of the first waypoint
+     * @param i2       the index of the second waypoint
      * @param segments the segments to update
      */
-    public void updateSegmentStats(Waypoint w1, Waypoint w2, ArrayList<Segment> segments)
+    public void updateSegmentStats(Track track, int i1, int i2, ArrayList<SegmentInterval> segments)
     {
-        for (Segment segment : segments)
+        for (SegmentInterval segment : segments)
         {
             int segmentID = segment.getSegmentID();
             // finds the index of the segmentStats object that has the same segmentID as the segment we
@@ -101,7 +103,7 @@ public class ActivityStats implements Serializable
             // if we found the segmentStats object that corresponds to the same segmentID as the segment we are
             // currently looking at we calculate the time and update the segmentStats object
             SegmentActivityStats segmentStats = segmentStatsList.get(segmentStatsIndex);
-            segmentStats.updateTime(ActivityCalculator.calculateTime(w1, w2));
+            segmentStats.updateTime(ActivityCalculator.calculateTime(track, i1, i2));
         }
     }
 
@@ -13,6 +13,9 @@ public class SegmentActivityStats implements Serializable
     private final String fileName;
     // represents the time it took for the user to complete the segment
     private double time;
+    // represents the index of the route where the segment begins, if the segment was detected by a worker, else -1.
+    // When more than one worker finds the segment in the route, the occurrence starting first is kept.
+    private final int startIndex;
 
     /**
      * Creates a new instance of SegmentActivityStats.
@@ -22,6 +25,19 @@ public class SegmentActivityStats implements Serializable
      * @throws IllegalArgumentException if segmentID is negative or fileName is null or empty
      */
     public SegmentActivityStats(int segmentID, String fileName)
+    {
+        this(segmentID, fileName, -1);
+    }
+
+    /**
+     * Creates a new instance of SegmentActivityStats, for a segment detected by a worker.
+     *
+     * @param segmentID the id of the segment
+     * @param fileName the name of the segment file
+     * @param startIndex the index of the route where the segment begins, -1 if unknown
+     * @throws IllegalArgumentException if segmentID is negative or fileName is null or empty
+     */
+    public SegmentActivityStats(int segmentID, String fileName, int startIndex)
     {
         if (segmentID < 0)
         {
@@ -34,6 +50,7 @@ public class SegmentActivityStats implements Serializable
         this.segmentID = segmentID;
         this.fileName = fileName;
         this.time = 0;
+        this.startIndex = startIndex;
     }
 
     /**
@@ -56,6 +73,26 @@ public class SegmentActivityStats implements Serializable
         return time;
     }
 
+    /**
+     * Returns the id of the segment.
+     *
+     * @return the segment id
+     */
+    public int getSegmentID()
+    {
+        return segmentID;
+    }
+
+    /**
+     * Returns the index of the route where the segment begins.
+     *
+     * @return the index, or -1 if the segment was not detected by a worker
+     */
+    public int getStartIndex()
+    {
+        return startIndex;
+    }
+
     /**
      * Returns the name of the segment file.
      *
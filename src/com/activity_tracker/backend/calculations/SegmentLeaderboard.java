@@ -31,6 +31,18 @@ public class SegmentLeaderboard implements Serializable
         this.fileName = fileName;
     }
 
+    /**
+     * Copy constructor, used to take a snapshot of a leaderboard that can be sent while the original keeps changing.
+     *
+     * @param other the leaderboard to copy
+     */
+    public SegmentLeaderboard(SegmentLeaderboard other)
+    {
+        this.statistics = new TreeSet<>(other.statistics);
+        this.users = new HashSet<>(other.users);
+        this.fileName = other.fileName;
+    }
+
     /**
      * Registers a UserSegmentStatistics to the leaderboard.
      *
@@ -51,6 +63,11 @@ public class SegmentLeaderboard implements Serializable
         return this.statistics;
     }
 
+    public String getFileName()
+    {
+        return fileName;
+    }
+
     public String getTrimmedFileName()
     {
         int fileTypeIndex = fileName.trim().indexOf(".gpx");
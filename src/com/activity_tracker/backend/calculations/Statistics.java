@@ -54,7 +54,8 @@ public class Statistics implements Serializable
     }
 
     /**
-     * Copy constructor for the Statistics class.
+     * Copy constructor for the Statistics class. The statistics of the users and the leaderboards are copied too,
+     * so the copy can be sent while the original keeps changing.
      * @param other The Statistics object to copy.
      */
     public Statistics(Statistics other)
@@ -65,8 +66,37 @@ public class Statistics implements Serializable
         this.totalActivityTime = other.totalActivityTime;
 
         // Copying the user stats and segment stats
-        this.userStats = new HashMap<>(other.userStats);
-        this.segmentStatistics = new HashMap<>(other.segmentStatistics);
+        this.userStats = new HashMap<>();
+        for (Map.Entry<String, UserStatistics> entry : other.userStats.entrySet())
+        {
+            this.userStats.put(entry.getKey(), new UserStatistics(entry.getValue()));
+        }
+        this.segmentStatistics = new HashMap<>();
+        for (Map.Entry<Integer, SegmentLeaderboard> entry : other.segmentStatistics.entrySet())
+        {
+            this.segmentStatistics.put(entry.getKey(), new SegmentLeaderboard(entry.getValue()));
+        }
+    }
+
+    /**
+     * Constructor used when rebuilding a Statistics object that was received over the network.
+     *
+     * @param routesRecorded The total number of routes recorded.
+     * @param totalDistance The total distance across all users.
+     * @param totalElevation The total elevation across all users.
+     * @param totalActivityTime The total activity time across all users.
+     * @param userStats The statistics of each user.
+     * @param segmentStatistics The leaderboards of each segment, matched to the hashcode of the segment name.
+     */
+    public Statistics(int routesRecorded, double totalDistance, double totalElevation, double totalActivityTime,
+                      HashMap<String, UserStatistics> userStats, HashMap<Integer, SegmentLeaderboard> segmentStatistics)
+    {
+        this.routesRecorded = routesRecorded;
+        this.totalDistance = totalDistance;
+        this.totalElevation = totalElevation;
+        this.totalActivityTime = totalActivityTime;
+        this.userStats = new HashMap<>(userStats);
+        this.segmentStatistics = new HashMap<>(segmentStatistics);
     }
 
     /**
@@ -414,6 +444,42 @@ public class Statistics implements Serializable
         return this;
     }
 
+    public int getRoutesRecorded()
+    {
+        return routesRecorded;
+    }
+
+    public double getTotalDistance()
+    {
+        return totalDistance;
+    }
+
+    public double getTotalElevation()
+    {
+        return totalElevation;
+    }
+
+    public double getTotalActivityTime()
+    {
+        return totalActivityTime;
+    }
+
+    /**
+     * @return the statistics of every user, matched to their username.
+     */
+    public HashMap<String, UserStatistics> getAllUserStats()
+    {
+        return userStats;
+    }
+
+    /**
+     * @return the leaderboards of every segment, matched to the hashcode of the segment name.
+     */
+    public HashMap<Integer, SegmentLeaderboard> getSegmentStatistics()
+    {
+        return segmentStatistics;
+    }
+
     /**
      * Calculates and returns the average distance recorded across all users.
      */
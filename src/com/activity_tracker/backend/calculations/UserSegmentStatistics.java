@@ -73,6 +73,16 @@ public class UserSegmentStatistics implements Comparable<UserSegmentStatistics>,
         return segmentHashID == that.segmentHashID && Double.compare(that.time, time) == 0 && Objects.equals(username, that.username);
     }
 
+    /**
+     * Gets the hash of the name of the segment this UserSegmentStatistics is for.
+     *
+     * @return the segment hash id
+     */
+    public int getSegmentHashID()
+    {
+        return segmentHashID;
+    }
+
     /**
      * Gets the username of the user this UserSegmentStatistics is for.
      *
@@ -40,6 +40,16 @@ public class UserStatistics implements Serializable
         this(user,0, 0, 0, 0);
     }
 
+    /**
+     * Copy constructor, used to take a snapshot of the statistics of a user.
+     *
+     * @param other the UserStatistics to copy
+     */
+    public UserStatistics(UserStatistics other)
+    {
+        this(other.user, other.routesRecorded, other.totalDistance, other.totalElevation, other.totalActivityTime);
+    }
+
     /**
      * Registers the results of an ActivityStats object for the user.
      *
@@ -54,6 +64,14 @@ public class UserStatistics implements Serializable
     }
 
 
+    /**
+     * @return Returns the username of the user this UserStatistics is for.
+     */
+    public String getUser()
+    {
+        return user;
+    }
+
     /**
      * @return Returns the total distance of all the routes a user has registered.
      */
@@ -0,0 +1,79 @@
+package com.activity_tracker.backend.main;
+
+import java.util.List;
+
+/**
+ * AdaptiveChunkSizing: Picks the number of chunks that minimises the estimated time to map the whole route, based on
+ * the cost of the chunks the workers have returned so far:
+ * <pre>
+ *     time(k) = k * send + ceil(k / slots) * (overhead + waypointCost * ceil(waypoints / k))
+ * </pre>
+ * where send is the fixed time the master needs to send a message, overhead the fixed part of the round trip of a
+ * message, waypointCost the part of the round trip added by each waypoint (mapping it, serializing it) and slots the
+ * total capacity of the workers.
+ * Splitting only pays off once the map phase of a route outweighs the cost of the extra messages, so small routes
+ * end up being sent as a single chunk.
+ * Until the first results arrive there is nothing to go on, and the fixed policy is used instead.
+ */
+public class AdaptiveChunkSizing implements ChunkSizingPolicy
+{
+    // MAX_CHUNKS_PER_SLOT: never split a route in more than this many chunks per slot
+    private static final int MAX_CHUNKS_PER_SLOT = 2;
+
+    private final ChunkSizingPolicy fallback = new FixedChunkSizing();
+
+    @Override
+    public int chunkSize(int waypointsSize, List<WorkerHandler> workers)
+    {
+        double waypointCost = 0;
+        double overhead = 0;
+        double send = 0;
+        int measuredWorkers = 0;
+        int slots = 0;
+
+        for (WorkerHandler worker : workers)
+        {
+            slots += worker.getCapacity();
+            if (worker.hasLatency())
+            {
+                waypointCost += worker.getWaypointCostNanos();
+                overhead += worker.getMessageOverheadNanos();
+                send += worker.getSendOverheadNanos();
+                measuredWorkers++;
+            }
+        }
+
+        if (measuredWorkers == 0 || waypointsSize < 2)
+        {
+            return fallback.chunkSize(waypointsSize, workers);
+        }
+        waypointCost /= measuredWorkers;
+        overhead /= measuredWorkers;
+        send /= measuredWorkers;
+
+        int maxChunks = Math.min(waypointsSize, slots * MAX_CHUNKS_PER_SLOT);
+        int bestChunks = 1;
+        double bestTime = Double.MAX_VALUE;
+        for (int k = 1; k <= maxChunks; k++)
+        {
+            double time = estimateTime(waypointsSize, k, slots, waypointCost, overhead, send);
+            if (time < bestTime)
+            {
+                bestTime = time;
+                bestChunks = k;
+            }
+        }
+        return (int) Math.ceil(waypointsSize / (double) bestChunks);
+    }
+
+    /**
+     * @return the estimated time, in nanoseconds, to map a route split in the given number of chunks
+     */
+    private static double estimateTime(int waypointsSize, int chunks, int slots, double waypointCost, double overhead,
+                                       double send)
+    {
+        int waves = (int) Math.ceil(chunks / (double) slots);
+        int chunkSize = (int) Math.ceil(waypointsSize / (double) chunks);
+        return chunks * send + waves * (overhead + waypointCost * chunkSize);
+    }
+}
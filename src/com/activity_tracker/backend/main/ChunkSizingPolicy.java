@@ -0,0 +1,36 @@
+package com.activity_tracker.backend.main;
+
+import java.util.List;
+
+/**
+ * ChunkSizingPolicy: Decides how many waypoints each chunk of a route holds, and thus how many chunks the route is
+ * split into. The policy used by the work dispatcher is selected through the chunk_sizing key of the config.
+ */
+public interface ChunkSizingPolicy
+{
+    /**
+     * @param waypointsSize the number of waypoints of the route
+     * @param workers the workers the chunks will be dispatched to
+     * @return the number of waypoints of each chunk, waypointsSize to send the whole route as a single chunk
+     */
+    int chunkSize(int waypointsSize, List<WorkerHandler> workers);
+
+    /**
+     * Creates the policy with the given name.
+     * @param name "fixed" or "adaptive"
+     * @return the chunk sizing policy
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    static ChunkSizingPolicy forName(String name)
+    {
+        switch (name.trim().toLowerCase())
+        {
+            case "fixed":
+                return new FixedChunkSizing();
+            case "adaptive":
+                return new AdaptiveChunkSizing();
+            default:
+                throw new IllegalArgumentException("Unknown chunk sizing policy: " + name);
+        }
+    }
+}
@@ -3,67 +3,86 @@ package com.activity_tracker.backend.main;
 import com.activity_tracker.backend.calculations.ActivityStats;
 import com.activity_tracker.backend.calculations.SegmentLeaderboard;
 import com.activity_tracker.backend.calculations.Statistics;
-import com.activity_tracker.backend.mapreduce.Reduce;
 import com.activity_tracker.backend.misc.GPXData;
-import com.activity_tracker.backend.misc.Pair;
-import com.activity_tracker.backend.parser.Chunk;
+import com.activity_tracker.backend.misc.Request;
+import com.activity_tracker.backend.misc.Response;
+import com.activity_tracker.backend.misc.ThreadLauncher;
+import com.activity_tracker.backend.network.MessageChannel;
+import com.activity_tracker.backend.network.MessageSink;
+import com.activity_tracker.backend.network.QueuedMessageChannel;
+import com.activity_tracker.backend.network.WriterPool;
 import com.activity_tracker.backend.parser.GPXParser;
 import com.activity_tracker.backend.parser.Route;
 import com.activity_tracker.backend.parser.Segment;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 // This class will handle the client connection
 public class ClientHandler implements Runnable
 {
-    // This is the socket that the client is connected to
+    // This is the socket that the client is connected to, null for the clients of the non-blocking front end
     private final Socket clientSocket;
-    // This is the input which will be used to receive objects from the client
-    private ObjectInputStream in;
-    // This is the output which will be used to send objects to the client
-    private ObjectOutputStream out;
+    // This is the channel the requests of the client are read from, null for the clients of the non-blocking front
+    // end, whose requests are read by the selector
+    private MessageChannel input;
+    // This is the channel which will be used to send the client its results.
+    // Sending never blocks: the answers are queued and written to the client by a writer pool shared by the clients.
+    private MessageSink channel;
     // The unique id of the client, generated through a static id generator
     private int clientID;
-    // Used to generate the clientIDs
-    private static int clientIDGenerator = 0;
+    // Used to generate the clientIDs, shared by every thread accepting clients
+    private static final AtomicInteger clientIDGenerator = new AtomicInteger();
     // The username of the client that is connected
     private String clientUsername;
-    // This is the queue that the routes will be added to and the worker dispatcher will take from
-    private Queue<Route> routeQueue;
+    // This is the queue that the routes will be admitted to and the worker dispatcher will take from
+    private RouteQueue routeQueue;
     // segments: a queue containing all the segments to be checked for intersections with the routes of users.
     private Queue<Segment> segments;
-    // statsQueue: the queue that will contain all the activity stats calculated from each chunk respectively
-    private final Queue<Pair<Chunk, ActivityStats>> statsQueue = new LinkedList<>();
-    // routeHashmap: Matches the route IDs with the list of the chunks they contain
-    private static final HashMap<Integer, ArrayList<Pair<Chunk, ActivityStats>>> routeHashmap = new HashMap<>();
-    private static final Object writeLock = new Object();
-    private static final Object routeHashmapLock = new Object();
+    // lanes: the thread pools the files and the services of the client are handled on
+    private RequestLanes lanes;
+    // ignoreMessages: set once a file sent without a request id was rejected, after which the client is not answered
+    private volatile boolean ignoreMessages;
+    // closed: set once the client is shut down, so that it is only shut down once
+    private final AtomicBoolean closed = new AtomicBoolean();
     private static final Statistics statistics = new Statistics();
+    // statisticsLock: the routes are registered in the statistics under the write lock, and the services read them
+    // under the read lock, so that answering the services of many clients does not serialize them
+    private static final ReentrantReadWriteLock statisticsLock = new ReentrantReadWriteLock();
+    // statisticsFileLock: held while the statistics are written to their files. It is a lock rather than a monitor, as
+    // a virtual thread writing to disk while holding a monitor would hold on to its carrier thread.
+    private static final ReentrantLock statisticsFileLock = new ReentrantLock();
 
     /**
      * Constructor for the ClientHandler
      * @param clientSocket the socket that the client is connected to
-     * @param routeQueue the queue that the routes will be added to and that the work dispatcher will take from
+     * @param routeQueue the queue that the routes will be admitted to and that the work dispatcher will take from
      * @param segments the queue containing all the segments Master holds, to check for intersections with users' routes.
+     * @param lanes the thread pools the files and the services of the client are handled on
+     * @param protocol the wire protocol spoken with the client, "binary" or "java"
+     * @param sendQueueCapacity the number of answers that may wait to be sent to the client before it is dropped
+     * @param writers the pool whose threads send the answers to the clients
      */
-    public ClientHandler(Socket clientSocket, Queue<Route> routeQueue, Queue<Segment> segments)
+    public ClientHandler(Socket clientSocket, RouteQueue routeQueue, Queue<Segment> segments, RequestLanes lanes,
+                         String protocol, int sendQueueCapacity, WriterPool writers)
     {
         this.clientSocket = clientSocket;
         try
         {
-            this.clientID = clientIDGenerator++;
-            this.in = new ObjectInputStream(clientSocket.getInputStream());
-            this.out = new ObjectOutputStream(clientSocket.getOutputStream());
+            this.clientID = clientIDGenerator.getAndIncrement();
+            this.input = MessageChannel.open(clientSocket, protocol);
+            this.channel = new QueuedMessageChannel(input, sendQueueCapacity, writers);
             this.routeQueue = routeQueue;
             this.segments = segments;
+            this.lanes = lanes;
         }
         catch (IOException e)
         {
@@ -74,78 +93,45 @@ public class ClientHandler implements Runnable
     }
 
     /**
-     * Method used to start the threads that will handle messages from the client and the worker handlers
+     * Constructor for the clients of the non-blocking front end. Their messages are read by the selector and passed
+     * to handleMessage, and their answers are written by the selector.
+     * @param channel the connection to the client, whose sends must not block
+     * @param routeQueue the queue that the routes will be admitted to and that the work dispatcher will take from
+     * @param segments the queue containing all the segments Master holds, to check for intersections with users' routes.
+     * @param lanes the thread pools the files and the services of the client are handled on
      */
-    public void run()
+    public ClientHandler(MessageSink channel, RouteQueue routeQueue, Queue<Segment> segments, RequestLanes lanes)
     {
-        Thread readFromClient = new Thread(this::readFromClient);
-        Thread readFromWorkerHandler = new Thread(this::readFromWorkerHandler);
+        this.clientSocket = null;
+        this.clientID = clientIDGenerator.getAndIncrement();
+        this.channel = channel;
+        this.routeQueue = routeQueue;
+        this.segments = segments;
+        this.lanes = lanes;
+    }
 
-        readFromClient.start();
-        readFromWorkerHandler.start();
+    /**
+     * Method used to start the thread that will handle messages from the client
+     */
+    public void run()
+    {
+        ThreadLauncher.start(this::readFromClient, "client-reader-" + clientID);
     }
 
     /**
-     * This method is used to get the file from the client
-     * And to send it to the work-dispatcher that will dispatch it to the workers.
-     *
-     * @throws RuntimeException if the user is already connected
+     * This method is used to read the messages of the client from its socket, until it disconnects.
      */
     private void readFromClient()
     {
         try
         {
-            this.clientUsername = (String) in.readObject(); // Receive the username from the client
-
             while (!clientSocket.isClosed())
             {
-                Object object = in.readObject(); // Receive the service from the client
-
-                if (object instanceof GPXData)
-                {
-                    GPXData gpxData = (GPXData) object;
-                    ByteArrayInputStream gpxContent = new ByteArrayInputStream(gpxData.getFileContent());
-                    Route route = GPXParser.parseRoute(gpxContent, segments);
-
-                    // if the user who sent the GPX is not the same as the one who registered the GPX, send an error message to frontend
-                    if (!clientUsername.equals(route.getUser()))
-                    {
-                        out.writeObject("INVALID");
-                        out.flush();
-                        return;
-                    }
+                Object object = input.read(); // Receive the username, or the service from the client
 
-                    route.setClientID(clientID);
-                    synchronized (routeQueue)
-                    {
-                        routeQueue.add(route);
-                        routeQueue.notify();
-                    }
-                }
-                else if (object instanceof String)
+                if (!handleMessage(object))
                 {
-                    String service = (String) object;
-
-                    if (service.equals("LEADERBOARDS"))
-                    {
-                        // Handle the leaderboard request
-                        ArrayList<SegmentLeaderboard> leaderboards = statistics.getSegmentLeaderboardsForUser(clientUsername);
-                        out.writeObject(leaderboards);
-                        out.flush();
-                        System.err.println("Leaderboard sent!");
-
-                    }
-                    else if (service.equalsIgnoreCase("STATISTICS"))
-                    {
-                        // Handle the statistics request
-                        // Creating a new statistics object to send to the front-end.
-                        out.writeObject(new Statistics(statistics.getGlobalStats()));
-                        out.flush();
-                    }
-                    else
-                    {
-                        throw new RuntimeException("Invalid service");
-                    }
+                    return;
                 }
             }
         }
@@ -161,134 +147,281 @@ public class ClientHandler implements Runnable
     }
 
     /**
-     * This method is used to receive back all the chunks from the file we dispatched to the worker.
-     * In order to start the reduce phase for that route (and thus, the client).
+     * Handles a message received from the client. The first message is the username of the client, every following
+     * one is either a file, which is parsed on the parse lane and sent to the work-dispatcher that will dispatch it to
+     * the workers, or a service, which is answered on the query lane.
+     * Either can be wrapped in a Request, in which case the answer is wrapped in a Response with the same id.
+     *
+     * @param object the message received from the client
+     * @return false if the client sent a file of another user without a request id, in which case its following
+     * messages are ignored
+     * @throws RuntimeException if the service requested is invalid
+     */
+    boolean handleMessage(Object object)
+    {
+        if (ignoreMessages)
+        {
+            return false;
+        }
+        if (clientUsername == null)
+        {
+            if (!(object instanceof String))
+            {
+                throw new RuntimeException("Expected the username of the client");
+            }
+            this.clientUsername = (String) object; // Receive the username from the client
+            return true;
+        }
+
+        if (object instanceof Request)
+        {
+            // a tagged request is answered on its own, so rejecting it does not affect the other requests in flight
+            Request request = (Request) object;
+            handleRequest(request, request.getPayload());
+            return true;
+        }
+        handleRequest(null, object);
+        return true;
+    }
+
+    /**
+     * Hands a file or a service requested by the client to its lane.
      *
-     * @throws RuntimeException if the chunks received are more than expected
+     * @param request the request the message was wrapped in, null if it was sent without a request id
+     * @param object the file or the name of the service
+     * @throws RuntimeException if the service requested is invalid
      */
-    private void readFromWorkerHandler()
+    private void handleRequest(Request request, Object object)
     {
-        synchronized (statsQueue)
+        if (object instanceof GPXData)
+        {
+            GPXData gpxData = (GPXData) object;
+            lanes.parse(() -> handleUpload(request, gpxData));
+        }
+        else if (object instanceof String)
         {
-            while (true)
+            String service = (String) object;
+            if (!service.equals("LEADERBOARDS") && !service.equalsIgnoreCase("STATISTICS"))
             {
-                while (statsQueue.isEmpty())
+                throw new RuntimeException("Invalid service");
+            }
+            // if too many services are waiting to be answered, the client is asked to request it again later
+            if (!lanes.query(() -> answerService(request, service)))
+            {
+                try
+                {
+                    reply(request, RouteQueue.RETRY_LATER);
+                }
+                catch (IOException e)
                 {
-                    try
-                    {
-                        statsQueue.wait();
-                    }
-                    catch (InterruptedException e)
-                    {
-                        System.out.println("Error: " + e.getMessage());
-                    }
+                    drop(e);
                 }
+            }
+        }
+    }
 
-                Pair<Chunk, ActivityStats> stats = statsQueue.poll();
-                Chunk chunk = stats.getKey();
-                int routeID = chunk.getRoute().getRouteID();
+    /**
+     * Parses a file uploaded by the client and admits its route. The route is answered with RETRY_LATER if the
+     * master is too busy to admit it, and with INVALID if it could not be parsed, was recorded by another user, or
+     * could not be mapped.
+     *
+     * @param request the request the file was wrapped in, null if it was sent without a request id
+     * @param gpxData the file
+     */
+    private void handleUpload(Request request, GPXData gpxData)
+    {
+        try
+        {
+            // the parser reports a file it could not parse and returns null
+            Route route = GPXParser.parseRoute(new ByteArrayInputStream(gpxData.getFileContent()), segments);
+            if (route == null)
+            {
+                System.out.println("ClientHandler: Could not parse " + gpxData.getFileName());
+                reject(request);
+                return;
+            }
 
-                synchronized (routeHashmapLock)
+            // if the user who sent the GPX is not the same as the one who registered the GPX, send an error message to frontend
+            if (!clientUsername.equals(route.getUser()))
+            {
+                reject(request);
+                return;
+            }
+
+            route.setClientID(clientID);
+            CompletableFuture<ActivityStats> reduced = routeQueue.submit(route);
+            // if the master is busy, the client is asked to send the file again later
+            if (reduced == null)
+            {
+                reply(request, RouteQueue.RETRY_LATER);
+                return;
+            }
+            // Once the route is reduced, the thread delivering its last chunk sends the results, which only queues
+            // them for the client. The route was registered by this client, so its user is the client's username.
+            // A route one of whose chunks could not be mapped is answered with INVALID.
+            reduced.whenComplete((finalResults, e) ->
+            {
+                if (e == null)
+                {
+                    sendResults(request, finalResults, clientUsername);
+                }
+                else
                 {
-                    // If the route already exists in the hashmap, we add the chunk to the list of chunks
-                    if (routeHashmap.containsKey(routeID))
-                    {
-                        ArrayList<Pair<Chunk, ActivityStats>> activityList = routeHashmap.get(routeID);
-                        // If the chunks we received are more than what we expected, we throw an exception
-                        if (activityList.size() >= chunk.getTotalChunks())
-                        {
-                            throw new RuntimeException("Found more chunks than expected!");
-                        }
-                        // Else, if we have accumulated all the chunks we need, we can start reducing
-                        else if (activityList.size() == (chunk.getTotalChunks() - 1))
-                        {
-                            // We add the last chunk to the list
-                            activityList.add(stats);
-                            // We add the list to the hashmap for the specific route
-                            routeHashmap.put(routeID, activityList);
-                            // and then we start the reducing phase
-                            processChunks(chunk, activityList);
-                        }
-                        // Else, we just add the chunk to the list
-                        else
-                        {
-                            activityList.add(stats);
-                            routeHashmap.put(routeID, activityList);
-                        }
-                        // Else if the route does not exist in the hashmap, we create a new list and add the chunk to it
-                    }
-                    else
-                    {
-                        ArrayList<Pair<Chunk, ActivityStats>> activityList = new ArrayList<>();
-                        activityList.add(stats);
-                        routeHashmap.put(routeID, activityList);
-                    }
+                    sendFailure(request);
                 }
+            });
+        }
+        catch (IOException e)
+        {
+            drop(e);
+        }
+    }
+
+    /**
+     * Answers a file with INVALID. A client that did not tag the file gets no further answers, as it could not tell
+     * which of its files was rejected.
+     */
+    private void reject(Request request) throws IOException
+    {
+        if (request == null)
+        {
+            ignoreMessages = true;
+        }
+        reply(request, "INVALID");
+    }
+
+    /**
+     * Answers a service. The answer is a copy of the statistics taken under the read lock, so that it can be sent
+     * while routes keep being registered.
+     *
+     * @param request the request the service was wrapped in, null if it was sent without a request id
+     * @param service "LEADERBOARDS" or "STATISTICS"
+     */
+    private void answerService(Request request, String service)
+    {
+        Object answer;
+        statisticsLock.readLock().lock();
+        try
+        {
+            if (service.equals("LEADERBOARDS"))
+            {
+                // Handle the leaderboard request
+                ArrayList<SegmentLeaderboard> leaderboards = new ArrayList<>();
+                for (SegmentLeaderboard leaderboard : statistics.getSegmentLeaderboardsForUser(clientUsername))
+                {
+                    leaderboards.add(new SegmentLeaderboard(leaderboard));
+                }
+                answer = leaderboards;
+            }
+            else
+            {
+                // Handle the statistics request
+                // Creating a new statistics object to send to the front-end.
+                answer = new Statistics(statistics.getGlobalStats());
             }
         }
+        finally
+        {
+            statisticsLock.readLock().unlock();
+        }
+
+        try
+        {
+            reply(request, answer);
+            if (service.equals("LEADERBOARDS"))
+            {
+                System.err.println("Leaderboard sent!");
+            }
+        }
+        catch (IOException e)
+        {
+            drop(e);
+        }
     }
 
     /**
-     * Process the given chunk by collecting all the intermediate statistics and
-     * starting a new thread to handle the reducing phase.
+     * Queues an answer to be sent to the client, as soon as it is ready. The channel of the client orders the answers
+     * sent from different threads, and never blocks, so a slow client does not hold up the threads answering the
+     * others.
      *
-     * @param chunk The chunk to process
-     * @param activityList The list of pairs of chunks and their activity statistics
+     * @param request the request being answered, null if the client sent it without a request id
+     * @param answer the answer
+     * @throws IOException if the channel is closed, or if the client was dropped for not keeping up with its answers
+     */
+    private void reply(Request request, Object answer) throws IOException
+    {
+        Object message = (request == null) ? answer : new Response(request.getRequestID(), answer);
+        channel.send(message);
+    }
+
+    /**
+     * Disconnects a client whose answer could not be sent, which happens once it has stopped reading them for long
+     * enough to fill its send queue, or once it is gone.
      */
-    private void processChunks(Chunk chunk, ArrayList<Pair<Chunk, ActivityStats>> activityList)
+    private void drop(IOException e)
     {
-        int routeID = chunk.getRoute().getRouteID();
-        // fetching a list of all the stats we gathered for this specific route
-        ArrayList<ActivityStats> statsArrayList = new ArrayList<>();
-        for (Pair<Chunk, ActivityStats> pair : activityList)
+        if (closed.get())
         {
-            statsArrayList.add(pair.getValue());
+            return;
         }
-        // Creating a new thread to handle the reducing phase
-        new Thread(() -> handleReducing(new Pair<>(routeID, statsArrayList), chunk.getRoute().getUser())).start();
+        System.out.println("ClientHandler: Dropping client " + clientID + ": " + e.getMessage());
+        shutdown();
     }
 
     /**
-     * Handle the reducing phase for the given intermediate results and send the
-     * final result back to the client.
+     * Registers the final results of a route and sends them back to the client.
      *
-     * @param intermediateResults The pair of route ID and intermediate activity statistics
+     * @param request the request that uploaded the route, null if it was sent without a request id
+     * @param finalResults The reduced activity statistics of the route
      * @param user The user associated with the route
      */
-    private void handleReducing(Pair<Integer, ArrayList<ActivityStats>> intermediateResults, String user)
+    private void sendResults(Request request, ActivityStats finalResults, String user)
     {
-        // finalResults: The reduce process returns the final ActivityStats associated with a specific route.
-        ActivityStats finalResults = Reduce.reduce(intermediateResults);
+        registerRoute(user, finalResults);
         try
         {
             // Send the result back to the client
-            synchronized (writeLock)
-            {
-                statistics.registerRoute(user, finalResults);
-                out.writeObject(finalResults);
-                out.flush();
-                // Here we reset the output stream to make sure
-                // that the object is sent with all the changes we made
-                out.reset();
-            }
+            reply(request, finalResults);
         }
         catch (IOException e)
         {
-            System.out.println("Could not send object to the client");
-            System.out.println(e.getMessage());
+            drop(e);
         }
     }
 
     /**
-     * Called by the worker handler. Adds a pair of chunk and activity statistics to the queue
-     * @param stats The pair of chunk and activity statistics to add to the queue
+     * Answers a route that could not be mapped with INVALID.
+     *
+     * @param request the request that uploaded the route, null if it was sent without a request id
      */
-    public void addStats(Pair<Chunk, ActivityStats> stats)
+    private void sendFailure(Request request)
     {
-        synchronized (statsQueue)
+        try
+        {
+            reject(request);
+        }
+        catch (IOException e)
         {
-            statsQueue.add(stats);
-            statsQueue.notify();
+            drop(e);
+        }
+    }
+
+    /**
+     * Registers the final results of a route that was not uploaded by a client, but submitted to the master directly.
+     *
+     * @param user The user associated with the route
+     * @param finalResults The reduced activity statistics of the route
+     */
+    static void registerRoute(String user, ActivityStats finalResults)
+    {
+        statisticsLock.writeLock().lock();
+        try
+        {
+            statistics.registerRoute(user, finalResults);
+        }
+        finally
+        {
+            statisticsLock.writeLock().unlock();
         }
     }
 
@@ -296,33 +429,52 @@ public class ClientHandler implements Runnable
      * Method that will be called when the client disconnects.
      * It will close all the streams and the socket,
      * and it will also save the statistics for the client.
+     * Only the first call has any effect, as a client may be dropped while its connection is also found closed.
      */
-    private void shutdown()
+    void shutdown()
     {
-        System.out.println("ClientHandler: Saving statistics for user " + clientUsername);
-        synchronized (statistics)
+        if (!closed.compareAndSet(false, true))
         {
-            statistics.writeToFile();
+            return;
         }
+        // the messages the client sent after it was dropped are not handled
+        ignoreMessages = true;
+        System.out.println("ClientHandler: Saving statistics for user " + clientUsername);
+        // the statistics are only read, but two clients leaving at once must not write the files together
+        statisticsFileLock.lock();
         try
         {
-            in.close();
+            statisticsLock.readLock().lock();
+            try
+            {
+                statistics.writeToFile();
+            }
+            finally
+            {
+                statisticsLock.readLock().unlock();
+            }
         }
-        catch (IOException e)
+        finally
         {
-            System.out.println("ClientHandler: Could not close input stream");
+            statisticsFileLock.unlock();
         }
         try
         {
-            out.close();
+            if (channel != null)
+            {
+                channel.close();
+            }
         }
         catch (IOException e)
         {
-            System.out.println("ClientHandler: Could not close output stream");
+            System.out.println("ClientHandler: Could not close message channel");
         }
         try
         {
-            clientSocket.close();
+            if (clientSocket != null)
+            {
+                clientSocket.close();
+            }
         }
         catch (IOException e)
         {
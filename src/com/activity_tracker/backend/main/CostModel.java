@@ -0,0 +1,62 @@
+package com.activity_tracker.backend.main;
+
+/**
+ * CostModel: Fits cost = fixed + perWaypoint * waypoints to the chunks sent to a worker, giving more weight to the
+ * recent ones. It is used to tell apart the cost every message has regardless of its size (e.g. the network round
+ * trip) from the cost that grows with the number of waypoints (e.g. mapping, serialization).
+ */
+class CostModel
+{
+    // SMOOTHING: the weight of the latest sample in the moving averages
+    private static final double SMOOTHING = 0.1;
+
+    // moving averages of x (waypoints), y (cost), x * x and x * y
+    private double meanX;
+    private double meanY;
+    private double meanXX;
+    private double meanXY;
+    private int samples;
+
+    /**
+     * Adds the cost of a chunk to the model.
+     * @param waypoints the number of waypoints of the chunk
+     * @param cost the cost of the chunk, in nanoseconds
+     */
+    synchronized void add(int waypoints, double cost)
+    {
+        double weight = (samples == 0) ? 1 : SMOOTHING;
+        meanX += weight * (waypoints - meanX);
+        meanY += weight * (cost - meanY);
+        meanXX += weight * ((double) waypoints * waypoints - meanXX);
+        meanXY += weight * (waypoints * cost - meanXY);
+        samples++;
+    }
+
+    synchronized boolean isEmpty()
+    {
+        return samples == 0;
+    }
+
+    /**
+     * @return the cost of every waypoint, in nanoseconds
+     */
+    synchronized double perWaypoint()
+    {
+        double variance = meanXX - meanX * meanX;
+        // all the chunks seen had about the same size, so the cost cannot be split and is all considered fixed
+        if (variance <= 1e-9 * meanXX)
+        {
+            return 0;
+        }
+        double slope = (meanXY - meanX * meanY) / variance;
+        return Math.max(0, Math.min(slope, (meanX == 0) ? slope : meanY / meanX));
+    }
+
+    /**
+     * @return the cost every chunk has regardless of its size, in nanoseconds
+     */
+    synchronized double fixed()
+    {
+        return Math.max(0, meanY - perWaypoint() * meanX);
+    }
+}
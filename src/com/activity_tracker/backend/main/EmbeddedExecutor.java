@@ -0,0 +1,112 @@
+package com.activity_tracker.backend.main;
+
+import com.activity_tracker.backend.mapreduce.ChunkResult;
+import com.activity_tracker.backend.mapreduce.Map;
+import com.activity_tracker.backend.parser.Chunk;
+import com.activity_tracker.backend.parser.Segment;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EmbeddedExecutor: Maps chunks inside the master, on a local work-stealing pool, instead of sending them to workers.
+ * The chunks are mapped straight from the route they were cut from, without sockets or serialization, and their
+ * results go to the client handlers the same way the results of the workers do.
+ * It either takes every route (embedded mode, e.g. for development and single-node deployments), or only the routes
+ * small enough that sending them to a worker would cost more than mapping them.
+ */
+public class EmbeddedExecutor
+{
+    // MIN_CHUNK_WAYPOINTS: routes are only split when each chunk gets at least this many waypoints, since mapping
+    // a few hundred waypoints takes less time than scheduling an extra task
+    private static final int MIN_CHUNK_WAYPOINTS = 1024;
+
+    private final ForkJoinPool pool;
+    // allRoutes: true to map every route locally, false to only map the routes of at most maxWaypoints waypoints
+    private final boolean allRoutes;
+    private final int maxWaypoints;
+    // aggregator: collects the results of the chunks, matching them to their route by its id
+    private final RouteAggregator aggregator;
+    // segments: the registered segments, looked for in the chunks that detect their segments
+    private final Collection<Segment> segments;
+    // chunksMapped: the number of chunks mapped locally since the master started
+    private final AtomicLong chunksMapped = new AtomicLong();
+
+    /**
+     * @param parallelism the number of threads mapping chunks
+     * @param allRoutes true to map every route locally, false to only map the small ones
+     * @param maxWaypoints the number of waypoints up to which a route is small, ignored if allRoutes is true
+     * @param aggregator the aggregator collecting the results of the chunks of the routes
+     * @param segments the registered segments, looked for in the chunks that detect their segments
+     * @throws IllegalArgumentException if the parallelism is not positive
+     */
+    public EmbeddedExecutor(int parallelism, boolean allRoutes, int maxWaypoints, RouteAggregator aggregator,
+                            Collection<Segment> segments)
+    {
+        if (parallelism <= 0)
+        {
+            throw new IllegalArgumentException("The parallelism of the embedded executor must be positive.");
+        }
+        this.pool = new ForkJoinPool(parallelism);
+        this.allRoutes = allRoutes;
+        this.maxWaypoints = maxWaypoints;
+        this.aggregator = aggregator;
+        this.segments = segments;
+    }
+
+    /**
+     * @param waypoints the number of waypoints of a route
+     * @return true if the route should be mapped locally
+     */
+    public boolean handles(int waypoints)
+    {
+        return allRoutes || waypoints <= maxWaypoints;
+    }
+
+    /**
+     * @param waypointsSize the number of waypoints of a route mapped locally
+     * @return the number of waypoints of each of its chunks, so that every thread of the pool gets a couple of them
+     */
+    public int chunkSize(int waypointsSize)
+    {
+        int n = (int) Math.ceil(waypointsSize / (pool.getParallelism() * 2.0));
+        return Math.max(n, MIN_CHUNK_WAYPOINTS);
+    }
+
+    /**
+     * Maps a chunk on the pool, then hands its result to the aggregator, like the worker handlers do.
+     * @param chunk the chunk to map
+     */
+    public void execute(Chunk chunk)
+    {
+        pool.execute(() ->
+        {
+            ChunkResult result;
+            try
+            {
+                result = Map.map(chunk, segments);
+            }
+            catch (RuntimeException e)
+            {
+                System.out.println("EmbeddedExecutor: Could not map chunk " + chunk.getChunkIndex() + " of route "
+                        + chunk.getRouteID());
+                System.out.println("Error: " + e.getMessage());
+                // the route cannot be reduced without the chunk, so it fails instead of waiting for it forever
+                aggregator.fail(chunk.getRouteID(), e);
+                return;
+            }
+            chunksMapped.incrementAndGet();
+
+            aggregator.add(result);
+        });
+    }
+
+    /**
+     * @return the number of chunks mapped locally
+     */
+    public long getChunksMapped()
+    {
+        return chunksMapped.get();
+    }
+}
@@ -0,0 +1,25 @@
+package com.activity_tracker.backend.main;
+
+import java.util.List;
+
+/**
+ * FixedChunkSizing: Splits every route in twice as many chunks as there are workers, regardless of its size.
+ */
+public class FixedChunkSizing implements ChunkSizingPolicy
+{
+    @Override
+    public int chunkSize(int waypointsSize, List<WorkerHandler> workers)
+    {
+        // if there's more waypoints than workers provided, make n equal to waypoints.size / workers.size * 2
+        if (waypointsSize >= workers.size())
+        {
+            return (int) Math.ceil(waypointsSize / (workers.size() * 2.0));
+        }
+        else
+        {
+            // making the assumption that if workers are more than the waypoints provided, n will be
+            // equal to 1, to achieve equal load balance between the first (waypoints.size()) workers
+            return 1;
+        }
+    }
+}
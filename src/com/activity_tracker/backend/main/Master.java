@@ -1,34 +1,68 @@
 package com.activity_tracker.backend.main;
 
+import com.activity_tracker.backend.calculations.ActivityStats;
+import com.activity_tracker.backend.misc.MetricsReporter;
+import com.activity_tracker.backend.misc.SegmentCatalogue;
+import com.activity_tracker.backend.misc.ThreadLauncher;
+import com.activity_tracker.backend.network.WriterPool;
 import com.activity_tracker.backend.parser.GPXParser;
 import com.activity_tracker.backend.parser.Route;
 import com.activity_tracker.backend.parser.Segment;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
 
 public class Master
 {
-    // This is the socket that the client will connect to
+    // This is the socket that the client will connect to, null when the non-blocking front end is used
     private ServerSocket clientSocket;
+    // nioAcceptor: the non-blocking front end accepting the clients, null when each client gets its own threads
+    private NioClientAcceptor nioAcceptor;
     // This is the socket that the worker will connect to
     private ServerSocket workerSocket;
-    // Queue containing the routes that will be sent to the workers
-    private Queue<Route> routes;
+    // Queue containing the routes that will be sent to the workers, with the limits on the routes admitted
+    private RouteQueue routes;
     // Queue containing the segments
     private Queue<Segment> segments;
-    // Queue containing all the worker handlers
-    private Queue<WorkerHandler> workerHandlers;
-    // Lookup table that will map the client id to the appropriate client handler
-    private HashMap<Integer, ClientHandler> clientMap;
-    private int maxWorkers;
+    // parsedSegments: the segments the routes are checked against while being parsed, none when the workers detect
+    // the segments in the chunks they map instead
+    private Queue<Segment> parsedSegments;
+    // workersDetectSegments: true if the segments are detected in the map phase, rather than by the parser
+    private boolean workersDetectSegments;
+    // List containing the handlers of the workers currently connected, kept up to date by the work dispatcher
+    private List<WorkerHandler> workerHandlers;
+    // routeAggregator: collects the results of the chunks, and completes each route once they have all arrived
+    private RouteAggregator routeAggregator;
+    // workerProtocol, clientProtocol: the wire protocols spoken with the workers and with the clients, "binary" or "java"
+    private String workerProtocol;
+    private String clientProtocol;
+    // chunkSizing: the policy deciding how many chunks each route is split into
+    private ChunkSizingPolicy chunkSizing;
+    // heartbeatTimeout: how long, in milliseconds, a worker may stay silent before its chunks are given to the others
+    private long heartbeatTimeout;
+    // speculationFactor: how many times longer than its siblings a chunk may take before it is copied, 0 to disable
+    private double speculationFactor;
+    private long metricsInterval;
+    // embeddedExecutor: maps routes inside the master, null if every route goes to the workers
+    private EmbeddedExecutor embeddedExecutor;
+    // requestLanes: the thread pools the files and the services of the clients are handled on
+    private RequestLanes requestLanes;
+    private int clientSendQueueCapacity;
+    // clientWriters: the threads sending the answers of the clients of the blocking front end, null for the
+    // non-blocking front end, whose answers are written by its selector
+    private WriterPool clientWriters;
 
     // Master will be a singleton class, with instance marking the only Master instantiation we will be allowing.
     private static Master instance = null;
@@ -44,14 +78,90 @@ public class Master
             final int WORKER_PORT = Integer.parseInt(config.getProperty("worker_port"));
             final int CLIENT_PORT = Integer.parseInt(config.getProperty("client_port"));
 
-            maxWorkers = Integer.parseInt(config.getProperty("number_of_workers"));
+            workerProtocol = config.getProperty("worker_protocol", "binary");
+            clientProtocol = config.getProperty("client_protocol", "java");
+            chunkSizing = ChunkSizingPolicy.forName(config.getProperty("chunk_sizing", "fixed"));
+            heartbeatTimeout = Long.parseLong(config.getProperty("heartbeat_timeout_ms", "5000").trim());
+            speculationFactor = Double.parseDouble(config.getProperty("speculation_factor", "0").trim());
+            metricsInterval = Long.parseLong(config.getProperty("metrics_interval_seconds", "0").trim());
 
-            clientSocket = new ServerSocket(CLIENT_PORT);
-            workerSocket = new ServerSocket(WORKER_PORT);
-            workerHandlers = new LinkedList<>();
-            clientMap = new HashMap<>();
-            routes = new LinkedList<>();
+            workerHandlers = new CopyOnWriteArrayList<>();
+            routeAggregator = new RouteAggregator();
+            // maxAdmittedRoutes, maxAdmittedWaypoints: the most routes, and waypoints of them, admitted and not
+            // reduced yet, above which new routes are rejected and their clients asked to retry later, 0 for no limit
+            final int maxAdmittedRoutes = Integer.parseInt(config.getProperty("max_admitted_routes", "0").trim());
+            final long maxAdmittedWaypoints = Long.parseLong(config.getProperty("max_admitted_waypoints", "0").trim());
+            routes = new RouteQueue(routeAggregator, maxAdmittedRoutes, maxAdmittedWaypoints);
+
+            // queryThreads, parseThreads: the number of threads answering the services and parsing the files, kept
+            // apart so that the services are answered quickly however many files are being parsed
+            final int queryThreads = Integer.parseInt(config.getProperty("query_threads", "2").trim());
+            final int queryQueueCapacity = Integer.parseInt(config.getProperty("query_queue_capacity", "256").trim());
+            final int parseThreads = Integer.parseInt(config.getProperty("parse_threads",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+            final int parseQueueCapacity = Integer.parseInt(config.getProperty("parse_queue_capacity", "64").trim());
+            requestLanes = new RequestLanes(queryThreads, queryQueueCapacity, parseThreads, parseQueueCapacity);
+            // clientSendQueueCapacity: the number of answers that may wait to be sent to a client, above which the
+            // client is considered stalled and dropped, so that it cannot hold up the answers of the others
+            clientSendQueueCapacity = Integer.parseInt(config.getProperty("client_send_queue_capacity", "1024").trim());
             segments = new LinkedList<>();
+
+            // segmentDetection: "master" to look for the segments in every route while parsing it, "distributed" to
+            // have the chunks of the routes look for them while being mapped
+            final String segmentDetection = config.getProperty("segment_detection", "master").trim().toLowerCase();
+            if (!segmentDetection.equals("master") && !segmentDetection.equals("distributed"))
+            {
+                throw new IllegalArgumentException("Unknown segment detection: " + segmentDetection);
+            }
+            workersDetectSegments = segmentDetection.equals("distributed");
+            parsedSegments = workersDetectSegments ? new LinkedList<>() : segments;
+
+            // executionMode: "workers" to send the routes to the workers, except the ones of at most
+            // embedded_max_waypoints waypoints, "embedded" to map every route inside the master
+            final String executionMode = config.getProperty("execution_mode", "workers").trim().toLowerCase();
+            final int embeddedMaxWaypoints = Integer.parseInt(config.getProperty("embedded_max_waypoints", "0").trim());
+            if (!executionMode.equals("workers") && !executionMode.equals("embedded"))
+            {
+                throw new IllegalArgumentException("Unknown execution mode: " + executionMode);
+            }
+            if (executionMode.equals("embedded") || embeddedMaxWaypoints > 0)
+            {
+                final int parallelism = Integer.parseInt(config.getProperty("embedded_threads",
+                        String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+                embeddedExecutor = new EmbeddedExecutor(parallelism, executionMode.equals("embedded"),
+                        embeddedMaxWaypoints, routeAggregator, segments);
+            }
+
+            // clientFrontend: "blocking" to give each client its own handler threads, "nio" to serve all the clients
+            // from a selector and a few processing threads
+            final String clientFrontend = config.getProperty("client_frontend", "blocking").trim().toLowerCase();
+            if (clientFrontend.equals("nio"))
+            {
+                if (!clientProtocol.trim().equalsIgnoreCase("binary"))
+                {
+                    System.out.println("MASTER: The non-blocking front end only speaks the binary protocol, ignoring client_protocol");
+                }
+                final int processingThreads = Integer.parseInt(config.getProperty("nio_processing_threads",
+                        String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+                // maxFrameLength: the longest frame a client may send, which bounds the size of an uploaded file
+                final int maxFrameLength = Integer.parseInt(config.getProperty("client_max_frame_bytes",
+                        String.valueOf(32 * 1024 * 1024)).trim());
+                nioAcceptor = new NioClientAcceptor(CLIENT_PORT, processingThreads, routes, parsedSegments,
+                        requestLanes, clientSendQueueCapacity, maxFrameLength);
+            }
+            else
+            {
+                // clientWriterThreads: the number of threads sending the answers of all the clients, so that a
+                // client costs a single thread, the one reading its requests. clientWriteTimeout: how long a write
+                // to a client that stopped reading may block a writer thread before the client is dropped
+                final int clientWriterThreads = Integer.parseInt(config.getProperty("client_writer_threads",
+                        "2").trim());
+                final long clientWriteTimeout = Long.parseLong(config.getProperty("client_write_timeout_ms",
+                        "10000").trim());
+                clientWriters = new WriterPool(clientWriterThreads, clientWriteTimeout, "client-writer");
+                clientSocket = new ServerSocket(CLIENT_PORT);
+            }
+            workerSocket = new ServerSocket(WORKER_PORT);
         }
         catch (Exception e)
         {
@@ -65,9 +175,29 @@ public class Master
      *  1. Thread that will accept client connections and create a new thread to handle the client
      *  2. Thread that will accept worker connections and create a new thread to handle the worker
      * and some additional "helper" threads.
+     * Must be called once, before any route is submitted. Returns once the segments have been loaded.
      */
-    private void start()
+    public void start()
     {
+        // The work dispatcher is created first, so that the worker handlers can report lost workers to it
+        WorkDispatcher workDispatcher = new WorkDispatcher(workerHandlers, routes, routeAggregator, chunkSizing,
+                heartbeatTimeout, speculationFactor, embeddedExecutor, workersDetectSegments ? segments : null);
+
+        MetricsReporter metrics = new MetricsReporter("Master", metricsInterval);
+        metrics.register("workers", workerHandlers::size);
+        metrics.register("queued_parses", requestLanes::getQueuedParses);
+        metrics.register("queued_routes", routes::size);
+        metrics.register("admitted_routes", routes::getAdmittedRoutes);
+        metrics.register("admitted_waypoints", routes::getAdmittedWaypoints);
+        metrics.register("rejected_routes", routes::getRejected);
+        metrics.register("speculative_launched", workDispatcher::getSpeculativeLaunched);
+        metrics.register("speculative_won", workDispatcher::getSpeculativeWon);
+        if (embeddedExecutor != null)
+        {
+            metrics.register("embedded_chunks_mapped", embeddedExecutor::getChunksMapped);
+        }
+        metrics.start();
+
         /*
           Thread that will accept client connections and create a new thread to handle the client
           by creating a new ClientHandler object.
@@ -83,14 +213,12 @@ public class Master
                     // Accept a client connection
                     Socket client = clientSocket.accept();
                     System.out.println("MASTER: Client connected");
+                    // the answers are small messages that must leave at once, not wait for the previous ones' ACK
+                    client.setTcpNoDelay(true);
                     // Create a new thread to handle the client
-                    ClientHandler clientHandler = new ClientHandler(client, routes, segments);
-
-                    // Add the client handler to the lookup table
-                    int clientID = clientHandler.getClientID();
-                    clientMap.put(clientID, clientHandler);
-                    Thread clientThread = new Thread(clientHandler);
-                    clientThread.start();
+                    ClientHandler clientHandler = new ClientHandler(client, routes, parsedSegments, requestLanes,
+                            clientProtocol, clientSendQueueCapacity, clientWriters);
+                    ThreadLauncher.start(clientHandler, "client-handler-" + clientHandler.getClientID());
                 }
                 catch (Exception e)
                 {
@@ -111,12 +239,18 @@ public class Master
         /*
            Thread that will accept worker connections and create a new thread to handle the worker
            by creating a new WorkerHandler object.
-           We also pass the clientMap to the WorkerHandler so that the worker can send the results back to the corresponding
-           component that handles the client.
+           Workers can connect at any time, e.g. to replace a lost worker or when scaling up, and are given work as
+           soon as the work dispatcher knows about them.
+           We also pass the route aggregator to the WorkerHandler, which matches the results to their route by its id,
+           so that the route can be sent back to whoever uploaded it once it is complete.
          */
         Thread handleWorker = new Thread(() ->
         {
-            while (workerHandlers.size() != maxWorkers)
+            int workersAccepted = 0;
+            // catalogue: the segments sent to every worker as it connects, if the workers detect them.
+            // The segments are loaded by the time workers are accepted.
+            SegmentCatalogue catalogue = workersDetectSegments ? new SegmentCatalogue(segments) : null;
+            while (!workerSocket.isClosed())
             {
                 try
                 {
@@ -124,14 +258,19 @@ public class Master
                     // Accept a worker connection
                     Socket worker = workerSocket.accept();
                     System.out.println("MASTER: Worker connected");
+                    // the chunks of a route are sent one after the other, none of them may wait for the previous ACK
+                    worker.setTcpNoDelay(true);
 
-                    // Create a new thread to handle the worker. Also, passing the client map
-                    // so that the worker can send the results to the appropriate client
-                    WorkerHandler workerHandler = new WorkerHandler(worker, clientMap);
-                    workerHandlers.add(workerHandler);
-                    Thread workerThread = new Thread(workerHandler);
-                    workerThread.start();
-
+                    // Create a new thread to handle the worker. Also, passing the route aggregator
+                    // so that the results of the worker are collected by route
+                    WorkerHandler workerHandler = new WorkerHandler(worker, routeAggregator, workerProtocol,
+                            workDispatcher);
+                    if (catalogue != null && !workerHandler.sendSegments(catalogue))
+                    {
+                        continue;
+                    }
+                    ThreadLauncher.start(workerHandler, "worker-handler-" + (++workersAccepted));
+                    workDispatcher.addWorker(workerHandler);
                 }
                 catch (Exception e)
                 {
@@ -159,7 +298,6 @@ public class Master
          */
         Thread dispatchWork = new Thread(() ->
         {
-            WorkDispatcher workDispatcher = new WorkDispatcher(workerHandlers, routes);
             Thread workDispatcherThread = new Thread(workDispatcher);
             workDispatcherThread.start();
         });
@@ -207,10 +345,56 @@ public class Master
             throw new RuntimeException(e);
         }
         handleWorker.start();
-        handleClient.start();
+        if (nioAcceptor != null)
+        {
+            new Thread(nioAcceptor, "nio-client-acceptor").start();
+        }
+        else
+        {
+            handleClient.start();
+        }
         dispatchWork.start();
     }
 
+    /**
+     * Processes a route without going through a client connection, for services embedding the master.
+     * The route goes through the same phases as an uploaded one: it is parsed on the calling thread, then split and
+     * mapped by the workers, reduced, and registered in the statistics of its user.
+     * Many routes can be submitted at once, from any thread, without waiting for the previous ones.
+     *
+     * @param user the user who recorded the route
+     * @param gpxContent the content of the GPX file of the route
+     * @return a stage completed with the stats of the route once they have been registered, or completed
+     * exceptionally if the file could not be parsed, was recorded by another user or could not be mapped, or with a
+     * RejectedExecutionException if the master is too busy to admit the route, in which case it can be retried later
+     */
+    public CompletionStage<ActivityStats> submit(String user, byte[] gpxContent)
+    {
+        // the parser reports a file it could not parse and returns null
+        Route route = GPXParser.parseRoute(new ByteArrayInputStream(gpxContent), parsedSegments);
+        if (route == null)
+        {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("The GPX file could not be parsed."));
+        }
+        if (!user.equals(route.getUser()))
+        {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("The route was recorded by "
+                    + route.getUser() + ", not by " + user));
+        }
+
+        CompletableFuture<ActivityStats> reduced = routes.submit(route);
+        if (reduced == null)
+        {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Route " + route.getRouteID()
+                    + " rejected, too many routes are being processed."));
+        }
+        return reduced.thenApply(finalResults ->
+        {
+            ClientHandler.registerRoute(user, finalResults);
+            return finalResults;
+        });
+    }
+
     /**
      * getInstance: The method used to get the only Master instance that will be running in our app.
      * @return The singleton Master instance.
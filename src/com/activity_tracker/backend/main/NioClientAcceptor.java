@@ -0,0 +1,369 @@
+package com.activity_tracker.backend.main;
+
+import com.activity_tracker.backend.network.BufferPool;
+import com.activity_tracker.backend.network.MessageCodec;
+import com.activity_tracker.backend.network.NioConnection;
+import com.activity_tracker.backend.parser.Segment;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NioClientAcceptor: Non-blocking alternative to running one ClientHandler thread per client.
+ * A single selector thread accepts the clients, reads their frames (binary protocol only) into pooled buffers and
+ * hands every complete message to a small pool of processing threads, which pass it to the ClientHandler of the
+ * client. The messages of a client are always processed one at a time and in the order they arrived.
+ * A client whose messages are not processed as fast as it sends them is no longer read from until its backlog has
+ * shrunk, so a single client cannot fill the heap of the master with frames waiting to be processed.
+ */
+public class NioClientAcceptor implements Runnable
+{
+    // READ_BUFFER_SIZE, MAX_POOLED_BUFFERS: the size of the read buffers, and how many free ones are kept around
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 256;
+    // MAX_INBOX_FRAMES, MAX_INBOX_BYTES: the backlog of frames read from a client and not processed yet above which
+    // the client is no longer read from
+    private static final int MAX_INBOX_FRAMES = 64;
+    private static final long MAX_INBOX_BYTES = 4 * 1024 * 1024;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final BufferPool bufferPool = new BufferPool(READ_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    // processors: the threads handling the messages of the clients
+    private final ExecutorService processors;
+
+    private final RouteQueue routeQueue;
+    // lanes: the thread pools the files and the services of the clients are handled on, passed on to their handlers
+    private final RequestLanes lanes;
+    private final Queue<Segment> segments;
+    // sendQueueCapacity: the number of answers that may wait to be written to a client before it is dropped
+    private final int sendQueueCapacity;
+    // maxFrameLength: the longest frame accepted from a client
+    private final int maxFrameLength;
+
+    /**
+     * Opens the server channel and binds it to the client port.
+     * @param port the port the clients connect to
+     * @param processingThreads the number of threads handling the messages of the clients
+     * @param routeQueue the queue that the routes will be admitted to and that the work dispatcher will take from
+     * @param segments the queue containing all the segments Master holds
+     * @param lanes the thread pools the files and the services of the clients are handled on
+     * @param sendQueueCapacity the number of answers that may wait to be written to a client before it is dropped
+     * @param maxFrameLength the longest frame accepted from a client, above which the client is dropped
+     * @throws IOException if the port could not be bound
+     */
+    public NioClientAcceptor(int port, int processingThreads, RouteQueue routeQueue, Queue<Segment> segments,
+                             RequestLanes lanes, int sendQueueCapacity, int maxFrameLength) throws IOException
+    {
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.processors = Executors.newFixedThreadPool(processingThreads);
+        this.routeQueue = routeQueue;
+        this.segments = segments;
+        this.lanes = lanes;
+        this.sendQueueCapacity = sendQueueCapacity;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * The selector loop: accepts clients, reads their requests and writes the answers queued for them.
+     */
+    @Override
+    public void run()
+    {
+        System.out.println("MASTER: Accepting clients through the non-blocking front end");
+        while (serverChannel.isOpen())
+        {
+            try
+            {
+                selector.select();
+            }
+            catch (IOException e)
+            {
+                System.out.println("MASTER: Selector failed");
+                System.out.println("Error: " + e.getMessage());
+                return;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext())
+            {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (!key.isValid())
+                {
+                    continue;
+                }
+                if (key.isAcceptable())
+                {
+                    accept();
+                }
+                else
+                {
+                    Session session = (Session) key.attachment();
+                    try
+                    {
+                        if (key.isWritable())
+                        {
+                            session.connection.writePending();
+                        }
+                        if (key.isValid() && key.isReadable())
+                        {
+                            read(session);
+                        }
+                    }
+                    catch (IOException | RuntimeException e)
+                    {
+                        // the key may be cancelled by a processing thread closing the connection at any point, which
+                        // must only end the session of this client and not the selector thread
+                        try
+                        {
+                            // a broken connection stays readable, so it is no longer read from until it is closed,
+                            // while the answers to the frames already read can still be written
+                            session.connection.pauseReading();
+                        }
+                        catch (CancelledKeyException cancelled)
+                        {
+                            // the connection is already closed
+                        }
+                        session.requestDisconnect();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts all the pending clients, creating their connections and their client handlers.
+     */
+    private void accept()
+    {
+        try
+        {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null)
+            {
+                register(channel);
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println("MASTER: Could not accept client connection");
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates the connection and the client handler of an accepted client, and registers it with the selector.
+     */
+    private void register(SocketChannel channel)
+    {
+        try
+        {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            NioConnection connection = new NioConnection(channel, bufferPool, sendQueueCapacity, maxFrameLength);
+            ClientHandler clientHandler = new ClientHandler(connection, routeQueue, segments, lanes);
+            Session session = new Session(connection, clientHandler);
+            connection.setKey(channel.register(selector, SelectionKey.OP_READ, session));
+        }
+        catch (IOException e)
+        {
+            System.out.println("MASTER: Could not register client connection");
+            System.out.println("Error: " + e.getMessage());
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ex)
+            {
+                System.out.println("MASTER: Could not close client connection");
+            }
+        }
+    }
+
+    /**
+     * Reads the frames available on the connection of a client and schedules them for processing. Reading from the
+     * client is paused if its backlog has grown too large.
+     */
+    private void read(Session session) throws IOException
+    {
+        ArrayList<byte[]> frames = session.connection.readFrames();
+        if (!frames.isEmpty())
+        {
+            for (byte[] frame : frames)
+            {
+                session.inboxBytes.addAndGet(frame.length);
+                session.inbox.add(frame);
+            }
+            session.inboxFrames.addAndGet(frames.size());
+            session.schedule();
+
+            if (session.isBacklogged())
+            {
+                session.connection.pauseReading();
+                // the processing thread may have emptied the inbox before the reads were paused, without resuming them
+                if (!session.isBacklogged())
+                {
+                    session.connection.resumeReading();
+                }
+            }
+        }
+        if (session.connection.isEndOfStream())
+        {
+            // the socket stays readable at the end of the stream, so it is no longer read from
+            session.connection.pauseReading();
+            session.requestDisconnect();
+        }
+    }
+
+    /**
+     * Session: The connection of a client, its client handler and the frames waiting to be processed.
+     */
+    private class Session
+    {
+        private final NioConnection connection;
+        private final ClientHandler clientHandler;
+        // inbox: the frames read but not processed yet
+        private final ConcurrentLinkedQueue<byte[]> inbox = new ConcurrentLinkedQueue<>();
+        // inboxFrames, inboxBytes: the number of frames in the inbox and their total size
+        private final AtomicInteger inboxFrames = new AtomicInteger();
+        private final AtomicLong inboxBytes = new AtomicLong();
+        // scheduled: set while a processing thread is handling the frames of the inbox
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // ignoreMessages: set once the client handler refuses any more messages from the client
+        private volatile boolean ignoreMessages;
+        // disconnectRequested: set by the selector thread once the connection has ended, the client is disconnected
+        // by a processing thread once the frames read before are processed
+        private volatile boolean disconnectRequested;
+        private final AtomicBoolean disconnected = new AtomicBoolean();
+
+        private Session(NioConnection connection, ClientHandler clientHandler)
+        {
+            this.connection = connection;
+            this.clientHandler = clientHandler;
+        }
+
+        /**
+         * Hands the inbox to a processing thread, unless one is already handling it.
+         */
+        private void schedule()
+        {
+            if (scheduled.compareAndSet(false, true))
+            {
+                processors.execute(this::process);
+            }
+        }
+
+        /**
+         * Run by a processing thread. Handles the frames of the inbox in order, until it is empty.
+         */
+        private void process()
+        {
+            byte[] frame;
+            while ((frame = inbox.poll()) != null)
+            {
+                inboxFrames.decrementAndGet();
+                inboxBytes.addAndGet(-frame.length);
+                if (!isBacklogged())
+                {
+                    resumeReading();
+                }
+
+                if (ignoreMessages || disconnected.get())
+                {
+                    continue;
+                }
+                try
+                {
+                    if (!clientHandler.handleMessage(MessageCodec.decodeFrame(frame)))
+                    {
+                        ignoreMessages = true;
+                    }
+                }
+                catch (Exception e)
+                {
+                    System.out.println("MASTER: Could not handle the message of client " + clientHandler.getClientID());
+                    System.out.println("Error: " + e.getMessage());
+                    disconnect();
+                }
+            }
+            if (disconnectRequested)
+            {
+                disconnect();
+            }
+            scheduled.set(false);
+
+            // a frame, or the end of the connection, may have arrived after the inbox was found empty, but before the
+            // flag was cleared
+            if (!inbox.isEmpty() || (disconnectRequested && !disconnected.get()))
+            {
+                schedule();
+            }
+        }
+
+        /**
+         * Called by the selector thread once the connection has ended. Saving the statistics of the client takes a
+         * global lock and writes to disk, so it is left to a processing thread, which disconnects the client once it
+         * has processed the frames read before.
+         */
+        private void requestDisconnect()
+        {
+            disconnectRequested = true;
+            schedule();
+        }
+
+        /**
+         * @return true if the client has sent more frames than can wait to be processed
+         */
+        private boolean isBacklogged()
+        {
+            return inboxFrames.get() >= MAX_INBOX_FRAMES || inboxBytes.get() >= MAX_INBOX_BYTES;
+        }
+
+        /**
+         * Reads from the client again if its reads were paused, once its backlog has shrunk.
+         */
+        private void resumeReading()
+        {
+            try
+            {
+                connection.resumeReading();
+            }
+            catch (CancelledKeyException e)
+            {
+                // the connection was closed in the meantime
+            }
+        }
+
+        /**
+         * Closes the connection of the client and saves the statistics, once.
+         */
+        private void disconnect()
+        {
+            if (disconnected.compareAndSet(false, true))
+            {
+                clientHandler.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.activity_tracker.backend.main;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RequestLanes: The thread pools the requests of the clients are handled on, kept apart so that the cheap, latency
+ * sensitive queries (leaderboards and statistics) never wait behind the parsing of large GPX files.
+ * Each lane has its own number of threads, which caps how much of the master it can take:
+ * - the query lane answers the services. Every query copies the statistics, so its queue is bounded too, and a query
+ *   that does not fit is refused, for its client to be asked to retry later
+ * - the parse lane parses the uploaded files and admits their routes. Its queue is bounded, and once it is full the
+ *   thread submitting a file parses it itself, which stops it from reading more files from its client meanwhile.
+ * The routes are then split and dispatched on the threads of the work dispatcher, and reduced on the threads
+ * delivering their results, as before.
+ */
+public class RequestLanes
+{
+    private final ExecutorService queries;
+    private final ThreadPoolExecutor parsing;
+
+    /**
+     * @param queryThreads the number of threads answering the services
+     * @param queryQueueCapacity the number of services waiting to be answered above which services are refused
+     * @param parseThreads the number of threads parsing the uploaded files
+     * @param parseQueueCapacity the number of files waiting to be parsed above which the submitting thread parses them
+     * @throws IllegalArgumentException if a number of threads or a capacity is not positive
+     */
+    public RequestLanes(int queryThreads, int queryQueueCapacity, int parseThreads, int parseQueueCapacity)
+    {
+        if (queryThreads <= 0 || queryQueueCapacity <= 0 || parseThreads <= 0 || parseQueueCapacity <= 0)
+        {
+            throw new IllegalArgumentException("Every lane needs at least one thread and room for one request.");
+        }
+        this.queries = lane("query", queryThreads, new ArrayBlockingQueue<>(queryQueueCapacity),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.parsing = lane("parse", parseThreads, new ArrayBlockingQueue<>(parseQueueCapacity),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Runs a service on the query lane, unless the lane is full.
+     * @param task the task answering the service
+     * @return false if too many services are waiting to be answered, in which case the task is not run
+     */
+    public boolean query(Runnable task)
+    {
+        try
+        {
+            queries.execute(task);
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Runs the parsing of a file on the parse lane, or on the calling thread if the lane is full.
+     * @param task the task parsing the file
+     */
+    public void parse(Runnable task)
+    {
+        parsing.execute(task);
+    }
+
+    /**
+     * @return the number of files waiting to be parsed
+     */
+    public int getQueuedParses()
+    {
+        return parsing.getQueue().size();
+    }
+
+    private static ThreadPoolExecutor lane(String name, int threads, BlockingQueue<Runnable> queue,
+                                           RejectedExecutionHandler whenFull)
+    {
+        AtomicInteger created = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, task ->
+        {
+            Thread thread = new Thread(task, name + "-" + created.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, whenFull);
+    }
+}
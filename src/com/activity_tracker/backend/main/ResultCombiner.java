@@ -0,0 +1,157 @@
+package com.activity_tracker.backend.main;
+
+import com.activity_tracker.backend.mapreduce.ChunkResult;
+import com.activity_tracker.backend.mapreduce.Reduce;
+import com.activity_tracker.backend.parser.Chunk;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * ResultCombiner: Merges, on the worker, the results of the chunks of the same route before they are sent to the
+ * master, so that the master receives and reduces fewer results.
+ * The results of a route are held until one of the following, whichever comes first:
+ * - no other chunk of the route is waiting or being mapped on this worker, so there is nothing left to wait for
+ * - maxChunks results of the route are held
+ * - the oldest result of the route has been held for maxDelay
+ */
+class ResultCombiner
+{
+    // maxChunks: the number of results of a route after which they are sent
+    private final int maxChunks;
+    // maxDelayNanos: the longest a result is held for
+    private final long maxDelayNanos;
+    // pendingChunks: the number of combinable chunks of every route received but not mapped yet
+    private final HashMap<Integer, Integer> pendingChunks = new HashMap<>();
+    // held: the results held for every route, along with the time the first of them was held
+    private final HashMap<Integer, HeldResults> held = new HashMap<>();
+    // chunksCombined: the number of results merged into another one, and so never sent on their own
+    private long chunksCombined;
+
+    /**
+     * @param maxChunks the number of results of a route after which they are sent, at least 2
+     * @param maxDelayMillis the longest a result is held for, in milliseconds
+     * @throws IllegalArgumentException if the limits would never let results be combined or never send them
+     */
+    ResultCombiner(int maxChunks, long maxDelayMillis)
+    {
+        if (maxChunks < 2 || maxDelayMillis <= 0)
+        {
+            throw new IllegalArgumentException("A combiner needs to hold at least 2 results, for a positive delay.");
+        }
+        this.maxChunks = maxChunks;
+        this.maxDelayNanos = maxDelayMillis * 1_000_000;
+    }
+
+    /**
+     * Called when a chunk is received from the master, before it is queued for mapping.
+     * @param chunk the chunk received
+     */
+    synchronized void chunkReceived(Chunk chunk)
+    {
+        if (chunk.isCombinable())
+        {
+            pendingChunks.merge(chunk.getRouteID(), 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Called when a chunk has been mapped.
+     * @param chunk the chunk mapped
+     * @param result its result, null if it could not be mapped
+     * @return the results to send now, possibly none
+     */
+    synchronized ArrayList<ChunkResult> chunkMapped(Chunk chunk, ChunkResult result)
+    {
+        ArrayList<ChunkResult> ready = new ArrayList<>();
+        int routeID = chunk.getRouteID();
+        if (!chunk.isCombinable())
+        {
+            if (result != null)
+            {
+                ready.add(result);
+            }
+            return ready;
+        }
+
+        int pending = pendingChunks.merge(routeID, -1, Integer::sum);
+        if (pending <= 0)
+        {
+            pendingChunks.remove(routeID);
+        }
+
+        HeldResults results = held.get(routeID);
+        if (result != null)
+        {
+            if (results == null)
+            {
+                results = new HeldResults(System.nanoTime());
+                held.put(routeID, results);
+            }
+            results.results.add(result);
+        }
+        if (results != null && (pending <= 0 || results.results.size() >= maxChunks))
+        {
+            held.remove(routeID);
+            ready.add(combine(results));
+        }
+        return ready;
+    }
+
+    /**
+     * @return the results held for longer than the maximum delay, which must be sent now
+     */
+    synchronized ArrayList<ChunkResult> expire()
+    {
+        ArrayList<ChunkResult> ready = new ArrayList<>();
+        long now = System.nanoTime();
+        Iterator<HeldResults> iterator = held.values().iterator();
+        while (iterator.hasNext())
+        {
+            HeldResults results = iterator.next();
+            if (now - results.heldSince >= maxDelayNanos)
+            {
+                iterator.remove();
+                ready.add(combine(results));
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * @return the time in milliseconds between two checks for results held too long
+     */
+    long getCheckIntervalMillis()
+    {
+        return Math.max(1, maxDelayNanos / 2_000_000);
+    }
+
+    /**
+     * @return the number of results merged into another one
+     */
+    synchronized long getChunksCombined()
+    {
+        return chunksCombined;
+    }
+
+    private ChunkResult combine(HeldResults results)
+    {
+        chunksCombined += results.results.size() - 1;
+        return Reduce.combine(results.results);
+    }
+
+    /**
+     * HeldResults: The results of a route waiting to be combined, and the time the first of them arrived.
+     */
+    private static class HeldResults
+    {
+        private final ArrayList<ChunkResult> results = new ArrayList<>();
+        private final long heldSince;
+
+        private HeldResults(long heldSince)
+        {
+            this.heldSince = heldSince;
+        }
+    }
+}
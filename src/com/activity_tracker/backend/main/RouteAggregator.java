@@ -0,0 +1,125 @@
+package com.activity_tracker.backend.main;
+
+import com.activity_tracker.backend.calculations.ActivityStats;
+import com.activity_tracker.backend.mapreduce.ChunkResult;
+import com.activity_tracker.backend.mapreduce.RouteAccumulator;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RouteAggregator: Collects the results of the chunks of every route being mapped, and completes the future of the
+ * route once they have all arrived. Results are matched to their route by its id, whoever uploaded it, so the worker
+ * handlers and the embedded executor deliver them here directly.
+ *
+ * A route is expected before it is dispatched, and forgotten once it completes or one of its chunks fails, so only the
+ * routes still being mapped are held in memory. The routes are independent of each other: each one is locked on its own, and the results of
+ * different routes are folded in parallel.
+ */
+public class RouteAggregator
+{
+    // routes: the routes being mapped, by route id
+    private final ConcurrentHashMap<Integer, PendingRoute> routes = new ConcurrentHashMap<>();
+
+    /**
+     * Starts collecting the results of a route. Must be called before the route is dispatched, so that none of its
+     * results can arrive before it is expected.
+     * @param routeID the id of the route
+     * @return the future completed with the reduced stats of the route, on the thread delivering its last result
+     * @throws IllegalArgumentException if the route is already expected
+     */
+    public CompletableFuture<ActivityStats> expect(int routeID)
+    {
+        PendingRoute route = new PendingRoute();
+        if (routes.putIfAbsent(routeID, route) != null)
+        {
+            throw new IllegalArgumentException("Route " + routeID + " is already being mapped.");
+        }
+        return route.future;
+    }
+
+    /**
+     * Called by the worker handlers and the embedded executor for every result. Folds it into its route, and
+     * completes the route if it was the last one missing.
+     *
+     * A chunk re-sent after its worker was lost, or copied because it was late, may arrive twice. Only the first
+     * result of a chunk is kept, unless the second one is a combined result covering it along with other chunks,
+     * in which case it replaces it (see RouteAccumulator). Results arriving after their route was completed are
+     * ignored.
+     *
+     * @param result the result of one or more chunks
+     * @throws IllegalArgumentException if the result covers chunks the route does not have
+     */
+    public void add(ChunkResult result)
+    {
+        int routeID = result.getRouteID();
+        PendingRoute route = routes.get(routeID);
+        if (route == null)
+        {
+            System.out.println("RouteAggregator: Ignoring late result of chunks "
+                    + Arrays.toString(result.getChunkIndices()) + " of completed route " + routeID);
+            return;
+        }
+
+        ActivityStats finalResults;
+        synchronized (route)
+        {
+            if (route.accumulator == null)
+            {
+                route.accumulator = new RouteAccumulator(routeID, result.getTotalChunks());
+            }
+            // a completed accumulator has received every chunk, so it ignores the results still delivered to it
+            if (!route.accumulator.add(result))
+            {
+                System.out.println("RouteAggregator: Ignoring duplicate result of chunks "
+                        + Arrays.toString(result.getChunkIndices()) + " of route " + routeID);
+                return;
+            }
+            if (!route.accumulator.isComplete())
+            {
+                return;
+            }
+            finalResults = route.accumulator.finish();
+        }
+        // all the chunks have arrived, the route is done with
+        routes.remove(routeID, route);
+        route.future.complete(finalResults);
+    }
+
+    /**
+     * Called when a chunk of a route could not be mapped. The route cannot be completed without it, so it is
+     * forgotten and its future is completed exceptionally. The results of its other chunks still arriving are ignored.
+     * @param routeID the id of the route
+     * @param cause why the chunk could not be mapped
+     */
+    public void fail(int routeID, Throwable cause)
+    {
+        PendingRoute route = routes.remove(routeID);
+        if (route == null)
+        {
+            // the route already completed or failed
+            return;
+        }
+        System.out.println("RouteAggregator: Route " + routeID + " failed: " + cause.getMessage());
+        route.future.completeExceptionally(cause);
+    }
+
+    /**
+     * @return the number of routes being mapped
+     */
+    public int getPendingRoutes()
+    {
+        return routes.size();
+    }
+
+    /**
+     * PendingRoute: A route being mapped, along with the stats of the chunks received so far.
+     */
+    private static class PendingRoute
+    {
+        private final CompletableFuture<ActivityStats> future = new CompletableFuture<>();
+        // accumulator: created along with the first result, which tells the number of chunks of the route
+        private RouteAccumulator accumulator;
+    }
+}
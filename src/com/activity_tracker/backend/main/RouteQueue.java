@@ -0,0 +1,140 @@
+package com.activity_tracker.backend.main;
+
+import com.activity_tracker.backend.calculations.ActivityStats;
+import com.activity_tracker.backend.parser.Route;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RouteQueue: The queue of the routes waiting to be dispatched, with admission control.
+ * A route holds on to its waypoints from the moment it is parsed until it has been reduced, whether it is still
+ * queued, being split, or in flight on the workers. So the limits apply to the routes admitted and not reduced yet,
+ * by number and by total waypoints. A route that does not fit is rejected right away instead of piling up in the
+ * heap of the master, and its client is asked to retry later.
+ */
+public class RouteQueue
+{
+    // RETRY_LATER: the answer sent to a client whose route was rejected, or whose service could not be queued
+    public static final String RETRY_LATER = "RETRY_LATER";
+
+    // queue: the routes admitted and not taken by the work dispatcher yet
+    private final BlockingQueue<Route> queue = new LinkedBlockingQueue<>();
+    // aggregator: collects the results of the chunks, and tells when an admitted route is done with
+    private final RouteAggregator aggregator;
+    // maxRoutes, maxWaypoints: the limits on the routes admitted and not reduced yet, 0 for no limit
+    private final int maxRoutes;
+    private final long maxWaypoints;
+    // admittedRoutes, admittedWaypoints: the routes admitted and not reduced yet, guarded by this
+    private int admittedRoutes;
+    private long admittedWaypoints;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param aggregator the aggregator collecting the results of the chunks of the routes
+     * @param maxRoutes the number of routes admitted and not reduced yet above which routes are rejected, 0 for no limit
+     * @param maxWaypoints the same limit on their total number of waypoints, 0 for no limit
+     * @throws IllegalArgumentException if a limit is negative
+     */
+    public RouteQueue(RouteAggregator aggregator, int maxRoutes, long maxWaypoints)
+    {
+        if (maxRoutes < 0 || maxWaypoints < 0)
+        {
+            throw new IllegalArgumentException("The limits of the route queue cannot be negative.");
+        }
+        this.aggregator = aggregator;
+        this.maxRoutes = maxRoutes;
+        this.maxWaypoints = maxWaypoints;
+    }
+
+    /**
+     * Admits a route if there is room for it, and queues it to be dispatched.
+     * A route with more waypoints than the limit is still admitted when no other route is, so that it can go through.
+     * @param route the parsed route
+     * @return the future completed with the reduced stats of the route, or exceptionally if one of its chunks could not
+     * be mapped, null if the route was rejected
+     * @throws IllegalArgumentException if a route with the same id is already admitted
+     */
+    public CompletableFuture<ActivityStats> submit(Route route)
+    {
+        final int waypoints = route.getTrack().size();
+        synchronized (this)
+        {
+            boolean full = (maxRoutes > 0 && admittedRoutes >= maxRoutes)
+                    || (maxWaypoints > 0 && admittedRoutes > 0 && admittedWaypoints + waypoints > maxWaypoints);
+            if (full)
+            {
+                rejected.incrementAndGet();
+                return null;
+            }
+            admittedRoutes++;
+            admittedWaypoints += waypoints;
+        }
+
+        // the route is expected before it is dispatched, so that none of its results can arrive before
+        CompletableFuture<ActivityStats> reduced;
+        try
+        {
+            reduced = aggregator.expect(route.getRouteID());
+        }
+        catch (RuntimeException e)
+        {
+            release(waypoints);
+            throw e;
+        }
+        // the route holds its place until it is reduced, or until one of its chunks fails
+        reduced.whenComplete((finalResults, e) -> release(waypoints));
+        queue.add(route);
+        return reduced;
+    }
+
+    /**
+     * Called by the work dispatcher. Blocks until a route is queued and returns it.
+     * @return the next route to dispatch
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Route take() throws InterruptedException
+    {
+        return queue.take();
+    }
+
+    private synchronized void release(int waypoints)
+    {
+        admittedRoutes--;
+        admittedWaypoints -= waypoints;
+    }
+
+    /**
+     * @return the number of routes waiting to be dispatched
+     */
+    public int size()
+    {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of routes admitted and not reduced yet
+     */
+    public synchronized int getAdmittedRoutes()
+    {
+        return admittedRoutes;
+    }
+
+    /**
+     * @return the total number of waypoints of the routes admitted and not reduced yet
+     */
+    public synchronized long getAdmittedWaypoints()
+    {
+        return admittedWaypoints;
+    }
+
+    /**
+     * @return the number of routes rejected since the master started
+     */
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,264 @@
+package com.activity_tracker.backend.main;
+
+import com.activity_tracker.backend.mapreduce.ChunkResult;
+import com.activity_tracker.backend.misc.ChunkFailure;
+import com.activity_tracker.backend.parser.Chunk;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StragglerMonitor: Speculative execution of the chunks that take much longer than the other chunks of their route.
+ * A route is only reduced once all of its chunks have arrived, so a single slow chunk delays the whole route.
+ * Once at least half of the chunks of a route have returned, a chunk that has been in flight for longer than a
+ * multiple of the median round trip of its siblings is sent to a second worker. Whichever copy returns first is used,
+ * the other one is removed from the chunks in flight of its worker and its result is ignored by the client handler.
+ */
+class StragglerMonitor implements Runnable
+{
+    // CHECK_INTERVAL_MILLIS: how often the chunks in flight are checked for stragglers
+    private static final long CHECK_INTERVAL_MILLIS = 10;
+    // MIN_STRAGGLER_NANOS: a chunk is never copied before it has been in flight this long, so that the scheduling
+    // noise of very short chunks does not duplicate them
+    private static final long MIN_STRAGGLER_NANOS = 50_000_000L;
+
+    private final WorkDispatcher dispatcher;
+    // factor: how many times the median round trip of its siblings a chunk may take before it is copied
+    private final double factor;
+    // pending: the chunks sent whose first result has not arrived yet, keyed by WorkerHandler.chunkKey
+    private final ConcurrentHashMap<Long, PendingChunk> pending = new ConcurrentHashMap<>();
+    // routes: the round trips of the chunks returned so far, for every route that still has chunks pending
+    private final ConcurrentHashMap<Integer, RouteProgress> routes = new ConcurrentHashMap<>();
+    // launched, won: the number of copies sent, and the number of them that returned before the original
+    private final AtomicLong launched = new AtomicLong();
+    private final AtomicLong won = new AtomicLong();
+
+    /**
+     * @param dispatcher the work dispatcher used to send the copies
+     * @param factor how many times the median round trip of its siblings a chunk may take before it is copied
+     * @throws IllegalArgumentException if the factor is not greater than 1
+     */
+    StragglerMonitor(WorkDispatcher dispatcher, double factor)
+    {
+        if (factor <= 1)
+        {
+            throw new IllegalArgumentException("The speculation factor must be greater than 1.");
+        }
+        this.dispatcher = dispatcher;
+        this.factor = factor;
+    }
+
+    /**
+     * Records that a chunk is about to be sent to a worker. Must be called before the chunk is sent, so that its
+     * result cannot arrive before it is recorded.
+     * @param chunk the chunk being sent
+     * @param worker the worker it is sent to
+     * @param copy true if this is a speculative copy of a chunk that is already in flight
+     */
+    void track(Chunk chunk, WorkerHandler worker, boolean copy)
+    {
+        routes.computeIfAbsent(chunk.getRouteID(), routeID -> new RouteProgress(chunk.getTotalChunks()));
+        long key = WorkerHandler.chunkKey(chunk.getRouteID(), chunk.getChunkIndex());
+        PendingChunk pendingChunk = pending.computeIfAbsent(key, k -> new PendingChunk(chunk, System.nanoTime()));
+        pendingChunk.holders.add(worker);
+        if (copy)
+        {
+            pendingChunk.copyHolder = worker;
+        }
+    }
+
+    /**
+     * Called for every result received from a worker. The first result of a chunk completes it, and the copies of
+     * the chunk still in flight on other workers are cancelled.
+     * @param result the result received
+     * @param worker the worker that returned it
+     */
+    void completed(ChunkResult result, WorkerHandler worker)
+    {
+        for (int chunkIndex : result.getChunkIndices())
+        {
+            completed(WorkerHandler.chunkKey(result.getRouteID(), chunkIndex), result.getRouteID(), worker);
+        }
+    }
+
+    /**
+     * Called when a worker could not map a chunk. Its route fails, so none of its chunks is copied any more.
+     * @param failure the failure reported by the worker
+     * @param worker the worker that reported it
+     */
+    void failed(ChunkFailure failure, WorkerHandler worker)
+    {
+        long key = WorkerHandler.chunkKey(failure.getRouteID(), failure.getChunkIndex());
+        PendingChunk pendingChunk = pending.remove(key);
+        if (pendingChunk != null)
+        {
+            for (WorkerHandler holder : pendingChunk.holders)
+            {
+                if (holder != worker)
+                {
+                    holder.cancel(pendingChunk.chunk);
+                }
+            }
+        }
+        // without the progress of its route, no other chunk of the route is considered a straggler
+        routes.remove(failure.getRouteID());
+    }
+
+    /**
+     * Completes a single chunk of a result.
+     */
+    private void completed(long key, int routeID, WorkerHandler worker)
+    {
+        PendingChunk pendingChunk = pending.remove(key);
+        if (pendingChunk == null)
+        {
+            // a copy of a chunk that has already returned
+            return;
+        }
+        if (worker == pendingChunk.copyHolder)
+        {
+            won.incrementAndGet();
+        }
+        for (WorkerHandler holder : pendingChunk.holders)
+        {
+            if (holder != worker)
+            {
+                holder.cancel(pendingChunk.chunk);
+            }
+        }
+
+        RouteProgress progress = routes.get(routeID);
+        if (progress != null && progress.add(System.nanoTime() - pendingChunk.sentAt))
+        {
+            routes.remove(routeID);
+        }
+    }
+
+    /**
+     * Run by the monitor thread. Sends a copy of every chunk that has become a straggler.
+     */
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                Thread.sleep(CHECK_INTERVAL_MILLIS);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            long now = System.nanoTime();
+            for (PendingChunk pendingChunk : pending.values())
+            {
+                if (pendingChunk.copied)
+                {
+                    continue;
+                }
+                RouteProgress progress = routes.get(pendingChunk.chunk.getRouteID());
+                long threshold = (progress == null) ? -1 : progress.stragglerThreshold(factor);
+                long inFlight = now - pendingChunk.sentAt;
+                if (threshold < 0 || inFlight < Math.max(threshold, MIN_STRAGGLER_NANOS))
+                {
+                    continue;
+                }
+
+                // a chunk is copied at most once, even if no other worker could take the copy
+                pendingChunk.copied = true;
+                if (dispatcher.sendCopy(pendingChunk.chunk, pendingChunk.holders))
+                {
+                    launched.incrementAndGet();
+                    System.out.println("StragglerMonitor: Chunk " + pendingChunk.chunk.getChunkIndex() + " of route "
+                            + pendingChunk.chunk.getRouteID() + " in flight for " + inFlight / 1_000_000
+                            + " ms, sent a copy to another worker");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of speculative copies sent
+     */
+    long getLaunched()
+    {
+        return launched.get();
+    }
+
+    /**
+     * @return the number of speculative copies that returned before the original chunk
+     */
+    long getWon()
+    {
+        return won.get();
+    }
+
+    /**
+     * PendingChunk: A chunk whose first result has not arrived yet, along with the workers it was sent to.
+     */
+    private static class PendingChunk
+    {
+        private final Chunk chunk;
+        // sentAt: the time the chunk was first sent, as given by System.nanoTime
+        private final long sentAt;
+        // holders: every worker the chunk was sent to, including the ones it was re-sent to when a worker was lost
+        private final List<WorkerHandler> holders = new CopyOnWriteArrayList<>();
+        // copyHolder: the worker the speculative copy was sent to, null if no copy was sent
+        private volatile WorkerHandler copyHolder;
+        // copied: set once the chunk has been considered a straggler
+        private volatile boolean copied;
+
+        private PendingChunk(Chunk chunk, long sentAt)
+        {
+            this.chunk = chunk;
+            this.sentAt = sentAt;
+        }
+    }
+
+    /**
+     * RouteProgress: The round trips of the chunks of a route returned so far.
+     */
+    private static class RouteProgress
+    {
+        private final long[] roundTrips;
+        private int completed;
+
+        private RouteProgress(int totalChunks)
+        {
+            this.roundTrips = new long[totalChunks];
+        }
+
+        /**
+         * Adds the round trip of a returned chunk.
+         * @return true once all the chunks of the route have returned
+         */
+        private synchronized boolean add(long roundTrip)
+        {
+            if (completed < roundTrips.length)
+            {
+                roundTrips[completed++] = roundTrip;
+            }
+            return completed == roundTrips.length;
+        }
+
+        /**
+         * @return the time after which a chunk of the route is a straggler, -1 while less than half of the chunks
+         * of the route have returned
+         */
+        private synchronized long stragglerThreshold(double factor)
+        {
+            if (completed == 0 || completed * 2 < roundTrips.length)
+            {
+                return -1;
+            }
+            long[] returned = Arrays.copyOf(roundTrips, completed);
+            Arrays.sort(returned);
+            return (long) (returned[completed / 2] * factor);
+        }
+    }
+}
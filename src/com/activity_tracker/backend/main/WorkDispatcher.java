@@ -1,35 +1,87 @@
 package com.activity_tracker.backend.main;
 
+import com.activity_tracker.backend.mapreduce.ChunkResult;
+import com.activity_tracker.backend.misc.ChunkFailure;
+import com.activity_tracker.backend.misc.ThreadLauncher;
 import com.activity_tracker.backend.parser.Chunk;
 import com.activity_tracker.backend.parser.Route;
-import com.activity_tracker.backend.parser.Waypoint;
+import com.activity_tracker.backend.parser.Segment;
 
 import java.util.ArrayList;
-import java.util.Queue;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * The WorkDispatcher class is responsible for taking in a route and splitting it into chunks, then sending the chunks to
- * the workers using round-robin.
+ * The WorkDispatcher class is responsible for taking in a route and splitting it into chunks, then sending each chunk
+ * to the worker with the least outstanding work.
+ * It also watches the workers: a worker that has been silent for longer than the heartbeat timeout, or whose
+ * connection is lost, is removed and the chunks it did not return are sent to the remaining workers.
+ * Workers can join and leave at any time: every chunk goes to the least loaded of the current workers, so new
+ * workers are given work right away, and chunks wait while there are no workers at all.
+ * Optionally, chunks that take much longer than their siblings are sent to a second worker (see StragglerMonitor),
+ * and some or all of the routes are mapped inside the master instead (see EmbeddedExecutor).
  */
 public class WorkDispatcher implements Runnable
 {
-    // This is the queue that contains all the workers
-    private final Queue<WorkerHandler> workers;
+    // This is the list that contains all the workers
+    private final List<WorkerHandler> workers;
     // This is the queue that contains all the routes that need to be handled
-    private final Queue<Route> routeQueue;
-    private final Object writeLock = new Object();
-    private final Object readLock = new Object();
+    private final RouteQueue routeQueue;
+    // aggregator: collects the results of the routes, failed here for the routes that could not be split
+    private final RouteAggregator aggregator;
+    // selectionLock: held while a worker is chosen for a chunk and the chunk is recorded as in flight on it, so that
+    // the next chunk sees the added work. Giving a chunk to a worker only queues it, so the lock is never held while
+    // writing to a worker.
+    private final Object selectionLock = new Object();
+    // membership, workerJoined: signalled whenever a worker joins, to wake up the chunks waiting for one. A lock is
+    // used rather than a monitor, as a virtual thread waiting on a monitor would hold on to its carrier thread.
+    private final ReentrantLock membership = new ReentrantLock();
+    private final Condition workerJoined = membership.newCondition();
+    // chunkSizing: decides how many waypoints each chunk of a route holds
+    private final ChunkSizingPolicy chunkSizing;
+    // nextWorker: the worker the search for the least loaded worker starts from, so that ties are spread evenly
+    private int nextWorker = 0;
+    // heartbeatTimeout: how long, in milliseconds, a worker may stay silent before it is considered dead.
+    // 0 disables the check, leaving only lost connections to be detected.
+    private final long heartbeatTimeout;
+    // stragglers: sends copies of the chunks that fall behind the rest of their route, null if speculation is disabled
+    private final StragglerMonitor stragglers;
+    // embedded: maps the routes it handles inside the master, null if every route goes to the workers
+    private final EmbeddedExecutor embedded;
+    // detectedSegments: the registered segments, when the chunks detect them while being mapped, null if the master
+    // detects them while parsing the routes
+    private final Collection<Segment> detectedSegments;
 
     /**
      * Constructs a WorkDispatcher object with a list of workers and routes to process.
      *
      * @param workers list of workers to process routes
      * @param routeQueue list of routes to be processed
+     * @param aggregator the aggregator collecting the results of the routes
+     * @param chunkSizing the policy deciding the size of the chunks
+     * @param heartbeatTimeout the time in milliseconds a worker may stay silent before it is considered dead,
+     *                         0 to never time out a worker
+     * @param speculationFactor how many times longer than the median of its siblings a chunk may take before a copy
+     *                          of it is sent to another worker, 0 to disable speculative execution
+     * @param embedded the executor mapping routes inside the master, null to send every route to the workers
+     * @param detectedSegments the registered segments if the chunks detect them while being mapped, null if the
+     *                         master detects them while parsing the routes
      */
-    public WorkDispatcher(Queue<WorkerHandler> workers, Queue<Route> routeQueue)
+    public WorkDispatcher(List<WorkerHandler> workers, RouteQueue routeQueue, RouteAggregator aggregator,
+                          ChunkSizingPolicy chunkSizing, long heartbeatTimeout, double speculationFactor,
+                          EmbeddedExecutor embedded, Collection<Segment> detectedSegments)
     {
+        this.embedded = embedded;
+        this.detectedSegments = detectedSegments;
         this.workers = workers;
         this.routeQueue = routeQueue;
+        this.aggregator = aggregator;
+        this.chunkSizing = chunkSizing;
+        this.heartbeatTimeout = heartbeatTimeout;
+        this.stragglers = (speculationFactor > 0) ? new StragglerMonitor(this, speculationFactor) : null;
     }
 
     /**
@@ -37,117 +89,114 @@ public class WorkDispatcher implements Runnable
      */
     public void run()
     {
-        synchronized (routeQueue)
+        if (heartbeatTimeout > 0)
         {
-            while (true)
+            Thread monitor = new Thread(this::monitorWorkers, "worker-monitor");
+            monitor.setDaemon(true);
+            monitor.start();
+        }
+        if (stragglers != null)
+        {
+            Thread stragglerMonitor = new Thread(stragglers, "straggler-monitor");
+            stragglerMonitor.setDaemon(true);
+            stragglerMonitor.start();
+        }
+
+        while (true)
+        {
+            Route route;
+            try
             {
-                while (routeQueue.isEmpty())
-                {
-                    try
-                    {
-                        routeQueue.wait();
-                    }
-                    catch (InterruptedException e)
-                    {
-                        System.out.println("Error: " + e.getMessage());
-                    }
-                }
-                Route route = routeQueue.poll();
-                // Create a new thread to handle the route
-                // We create a new thread for each route, so that we can handle multiple routes at the same time
-                // and because if one route takes a long time to process, we can still process other routes
-                // But also to ensure that if one process fails, it does not affect the other processes
-                Thread handleRoute = new Thread(() -> handleRoute(route));
-                handleRoute.start();
+                route = routeQueue.take();
             }
+            catch (InterruptedException e)
+            {
+                System.out.println("Error: " + e.getMessage());
+                continue;
+            }
+            // Create a new thread to handle the route
+            // We create a new thread for each route, so that we can handle multiple routes at the same time
+            // and because if one route takes a long time to process, we can still process other routes
+            // But also to ensure that if one process fails, it does not affect the other processes
+            ThreadLauncher.start(() -> handleRoute(route), "route-" + route.getRouteID());
         }
     }
 
     /**
-     * Splits a route into chunks of waypoints and sends each chunk to a worker.
+     * Splits a route into chunks of waypoints and sends each chunk to a worker. A route that cannot be split fails,
+     * releasing its admission and answering its client, just as when the workers cannot map one of its chunks.
      *
      * @param route the route to be split into chunks.
      */
     private void handleRoute(Route route)
     {
-        ArrayList<Waypoint> waypoints = route.getWaypoints();
-        final int waypointsSize = waypoints.size();
-
-        // n will represent the chunk size
-        final int n = calculateChunkSize(waypointsSize);
-
-        // expectedChunks: determines how many chunks of waypoints the route will be split into
-        final int expectedChunks = calculateExpectedChunks(waypointsSize, n);
-
-        ArrayList<Waypoint> waypointChunk = new ArrayList<>();
-        int chunks = 0;
-
-        for (int i = 0; i < waypoints.size(); i++)
+        try
         {
-            Waypoint currentWaypoint = waypoints.get(i);
-            waypointChunk.add(currentWaypoint);
+            final int waypointsSize = route.getTrack().size();
+            // local: true if the route is mapped inside the master rather than by the workers
+            final boolean local = embedded != null && embedded.handles(waypointsSize);
 
-            // First condition: Turns true when the first chunk is full.
-            if (waypointChunk.size() == n && chunks == 0)
+            // n will represent the chunk size
+            final int n;
+            if (local)
             {
-                chunks++;
-                createChunk(route, waypointChunk, expectedChunks);
+                n = embedded.chunkSize(waypointsSize);
+            }
+            else
+            {
+                // The chunk size is calculated from a snapshot of the workers, so that workers joining or leaving
+                // meanwhile cannot give the policy an inconsistent view of them
+                n = chunkSizing.chunkSize(waypointsSize, awaitWorkers());
+            }
 
-                if (i != waypoints.size() - 1)
-                {
-                    // clear the chunk for the next set of waypoints
-                    waypointChunk = new ArrayList<>();
-                    // adding the last waypoint from the previous chunk, so we do not miss the connection between i and i+1
-                    waypointChunk.add(waypoints.get(i));
-                }
+            // expectedChunks: determines how many chunks of waypoints the route will be split into
+            final int expectedChunks = calculateExpectedChunks(waypointsSize, n);
+            System.out.println("WorkDispatcher: Splitting route " + route.getRouteID() + " of " + waypointsSize
+                    + " waypoints into " + expectedChunks + " chunks" + (local ? ", mapped locally" : ""));
 
-            } // Second condition: Turns true when we reach the end of the waypoints to be processed, at which point we
-            // assign the chunk as is to a worker to process
-            else if (i == waypoints.size() - 1)
-            {
-                chunks++;
-                createChunk(route, waypointChunk, expectedChunks);
+            // lookahead: the waypoints following each chunk that are sent along with it, so that a segment starting
+            // inside the chunk can be matched in full, -1 if the segments were detected while parsing the route
+            final int lookahead = segmentLookahead();
 
-            } // Third condition: Turns true when a chunk after the first is full. Size limit is n+1, since it needs
-            // to hold the last waypoint of the previous chunk
-            else if (waypointChunk.size() == n + 1 && chunks != 0)
-            {
-                chunks++;
-                createChunk(route, waypointChunk, expectedChunks);
+            // The first chunk holds the first n waypoints. Every following chunk starts from the last waypoint of the
+            // previous chunk, so we do not miss the connection between the two, and holds up to n more waypoints.
+            int chunkIndex = 0;
+            int chunkStart = 0;
+            int chunkEnd = Math.min(n, waypointsSize) - 1;
+            createChunk(route, chunkIndex, chunkStart, chunkEnd, expectedChunks, lookahead, local);
 
-                if (i != waypoints.size() - 1)
-                {
-                    // clear the chunk for the next set of waypoints
-                    waypointChunk = new ArrayList<>();
-                    // adding the last waypoint from the previous chunk, so we do not miss the connection between i and i+1
-                    waypointChunk.add(currentWaypoint);
-                }
+            while (chunkEnd < waypointsSize - 1)
+            {
+                chunkIndex++;
+                chunkStart = chunkEnd;
+                chunkEnd = Math.min(chunkStart + n, waypointsSize - 1);
+                createChunk(route, chunkIndex, chunkStart, chunkEnd, expectedChunks, lookahead, local);
             }
         }
+        catch (RuntimeException e)
+        {
+            System.out.println("WorkDispatcher: Could not split route " + route.getRouteID());
+            System.out.println("Error: " + e.getMessage());
+            aggregator.fail(route.getRouteID(), e);
+        }
     }
 
     /**
-     * Calculates the chunk size based on the number of waypoints and the number of workers.
-     *
-     * @param waypointsSize the number of waypoints in the route
-     * @return the chunk size
+     * @return the number of waypoints following a chunk needed to match the longest segment starting inside it,
+     * or -1 if the chunks do not detect their segments
      */
-    private int calculateChunkSize(int waypointsSize)
+    private int segmentLookahead()
     {
-        // if there's more waypoints than workers provided, make n equal to waypoints.size / workers.size * 2
-        synchronized (readLock)
+        if (detectedSegments == null)
         {
-            if (waypointsSize >= workers.size())
-            {
-                return (int) Math.ceil(waypointsSize / (workers.size() * 2.0));
-            }
-            else
-            {
-                // making the assumption that if workers are more than the waypoints provided, n will be
-                // equal to 1, to achieve equal load balance between the first (waypoints.size()) workers
-                return 1;
-            }
+            return -1;
         }
+        int longest = 1;
+        for (Segment segment : detectedSegments)
+        {
+            longest = Math.max(longest, segment.getTrack().size());
+        }
+        return longest - 1;
     }
 
     /**
@@ -163,29 +212,298 @@ public class WorkDispatcher implements Runnable
     }
 
     /**
-     * Creates the chunk and sends it to a worker to process.
+     * Creates the chunk and sends it to the worker with the least outstanding work, or maps it locally.
      * @param route the route that the chunk belongs to
-     * @param chunkWaypoints the waypoints that belong to the chunk
+     * @param chunkIndex the index of the chunk amongst the chunks of the route
+     * @param chunkStart the index of the route where the chunk begins
+     * @param chunkEnd the index of the route where the chunk ends, inclusive
      * @param expectedChunks the expected number of chunks
+     * @param lookahead the number of waypoints following the chunk to send along with it, -1 if the chunk does not
+     *                  detect its segments
+     * @param local true to map the chunk on the embedded executor
      *
      */
-    private void createChunk(Route route, ArrayList<Waypoint> chunkWaypoints, int expectedChunks)
+    private void createChunk(Route route, int chunkIndex, int chunkStart, int chunkEnd, int expectedChunks,
+                             int lookahead, boolean local)
     {
-        Chunk chunk = new Chunk(chunkWaypoints, route, expectedChunks);
-
-        synchronized (writeLock)
+        Chunk chunk = new Chunk(route, chunkIndex, chunkStart, chunkEnd, expectedChunks, lookahead);
+        if (local)
+        {
+            embedded.execute(chunk);
+        }
+        else
         {
-            WorkerHandler worker = workers.poll();
+            dispatch(chunk);
+        }
+    }
 
+    /**
+     * Sends a chunk to the worker with the least outstanding work. If that worker turns out to be lost, it is removed
+     * and the chunk is given to the next best worker. If there are no workers, waits for one to join.
+     * @param chunk the chunk to send
+     */
+    private void dispatch(Chunk chunk)
+    {
+        while (true)
+        {
+            WorkerHandler worker;
+            synchronized (selectionLock)
+            {
+                // the worker records the chunk as in flight before the lock is released, so the next chunk sees the added work
+                worker = selectWorker(chunk.getTrack().size(), Collections.emptyList());
+                if (worker != null)
+                {
+                    if (stragglers != null)
+                    {
+                        stragglers.track(chunk, worker, false);
+                    }
+                    if (worker.processJob(chunk))
+                    {
+                        return;
+                    }
+                }
+            }
             if (worker == null)
             {
-                throw new RuntimeException("Tried to poll from an empty worker queue.");
+                awaitWorkers();
+            }
+            else
+            {
+                workers.remove(worker);
+            }
+        }
+    }
+
+    /**
+     * Waits until there is at least one worker.
+     * @return a snapshot of the current workers
+     */
+    private List<WorkerHandler> awaitWorkers()
+    {
+        membership.lock();
+        try
+        {
+            while (workers.isEmpty())
+            {
+                System.out.println("WorkDispatcher: Waiting for a worker to join");
+                try
+                {
+                    workerJoined.await();
+                }
+                catch (InterruptedException e)
+                {
+                    System.out.println("Error: " + e.getMessage());
+                }
             }
+            return List.copyOf(workers);
+        }
+        finally
+        {
+            membership.unlock();
+        }
+    }
 
-            worker.processJob(chunk);
-            // adding the worker to the end of the queue
+    /**
+     * Adds a worker that has just connected. It is considered for the very next chunk.
+     * @param worker the handler of the new worker
+     */
+    public void addWorker(WorkerHandler worker)
+    {
+        membership.lock();
+        try
+        {
             workers.add(worker);
+            workerJoined.signalAll();
+        }
+        finally
+        {
+            membership.unlock();
+        }
+        System.out.println("WorkDispatcher: Worker joined, " + workers.size() + " workers");
+    }
+
+    /**
+     * Called by a worker handler when its worker deregisters. The worker is given no more chunks, but keeps the ones
+     * it already has.
+     * @param worker the handler of the leaving worker
+     */
+    void workerLeaving(WorkerHandler worker)
+    {
+        workers.remove(worker);
+        System.out.println("WorkDispatcher: Worker is leaving, " + workers.size() + " workers left");
+    }
+
+    /**
+     * Sends a speculative copy of a chunk to the least loaded worker that does not have it already.
+     * @param chunk the chunk to copy
+     * @param holders the workers the chunk has already been sent to
+     * @return true if the copy was sent
+     */
+    boolean sendCopy(Chunk chunk, Collection<WorkerHandler> holders)
+    {
+        synchronized (selectionLock)
+        {
+            WorkerHandler worker = selectWorker(chunk.getTrack().size(), holders);
+            if (worker == null)
+            {
+                return false;
+            }
+            stragglers.track(chunk, worker, true);
+            // the copy must come back on its own, so that it can stand in for the original
+            chunk.setCombinable(false);
+            return worker.processJob(chunk);
+        }
+    }
+
+    /**
+     * Called by a worker handler for every result its worker returns.
+     * @param result the result received
+     * @param worker the handler of the worker that returned it
+     */
+    void chunkCompleted(ChunkResult result, WorkerHandler worker)
+    {
+        if (stragglers != null)
+        {
+            stragglers.completed(result, worker);
+        }
+    }
+
+    /**
+     * Called by a worker handler when its worker could not map a chunk. The chunk is no longer waited for, and its
+     * copies on other workers are cancelled.
+     * @param failure the failure reported by the worker
+     * @param worker the worker that reported it
+     */
+    void chunkFailed(ChunkFailure failure, WorkerHandler worker)
+    {
+        if (stragglers != null)
+        {
+            stragglers.failed(failure, worker);
+        }
+    }
+
+    /**
+     * @return the number of speculative copies of chunks sent so far
+     */
+    public long getSpeculativeLaunched()
+    {
+        return (stragglers == null) ? 0 : stragglers.getLaunched();
+    }
+
+    /**
+     * @return the number of speculative copies that returned before the chunk they copied
+     */
+    public long getSpeculativeWon()
+    {
+        return (stragglers == null) ? 0 : stragglers.getWon();
+    }
+
+    /**
+     * Called by a worker handler once the connection to its worker is closed. Removes the worker, so that it is not
+     * given any more chunks, and sends the chunks it did not return to the remaining workers.
+     * @param worker the handler of the lost worker
+     */
+    public void workerFailed(WorkerHandler worker)
+    {
+        workers.remove(worker);
+
+        ArrayList<Chunk> lostChunks = worker.drainInFlight();
+        if (lostChunks.isEmpty())
+        {
+            return;
+        }
+        System.out.println("WorkDispatcher: Re-sending " + lostChunks.size() + " chunks of a lost worker, "
+                + workers.size() + " workers left");
+        // The chunks may have to wait for a worker to join, so they are not re-sent by the thread reporting the loss
+        ThreadLauncher.start(() ->
+        {
+            for (Chunk chunk : lostChunks)
+            {
+                // the original may have been combined by the lost worker with chunks it did return, so this one
+                // must come back on its own
+                chunk.setCombinable(false);
+                dispatch(chunk);
+            }
+        }, "redispatch");
+    }
+
+    /**
+     * Run by the monitor thread. Closes the connection to every worker that has been silent for longer than the
+     * heartbeat timeout, which in turn re-sends its chunks.
+     */
+    private void monitorWorkers()
+    {
+        while (true)
+        {
+            try
+            {
+                Thread.sleep(Math.max(1, heartbeatTimeout / 4));
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            for (WorkerHandler worker : workers)
+            {
+                long silence = worker.getMillisSinceLastMessage();
+                if (silence > heartbeatTimeout)
+                {
+                    System.out.println("WorkDispatcher: No message from a worker for " + silence + " ms, removing it");
+                    worker.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the worker that would return a chunk of the given size the soonest, based on the waypoints it already
+     * has in flight, the rate at which it has been returning them and its capacity.
+     * @param waypoints the number of waypoints of the chunk
+     * @param excluded the workers that must not be chosen
+     * @return the least loaded worker, null if there are no workers to choose from
+     */
+    private WorkerHandler selectWorker(int waypoints, Collection<WorkerHandler> excluded)
+    {
+        // workers may be removed at any time, so the search works on a snapshot of them
+        WorkerHandler[] candidates = workers.toArray(new WorkerHandler[0]);
+        if (candidates.length == 0)
+        {
+            return null;
+        }
+
+        // Workers that have not returned any results yet are assumed to be as fast as the average worker
+        double totalLatency = 0;
+        int measuredWorkers = 0;
+        for (WorkerHandler worker : candidates)
+        {
+            if (worker.hasLatency())
+            {
+                totalLatency += worker.getNanosPerWaypoint();
+                measuredWorkers++;
+            }
+        }
+        double defaultLatency = (measuredWorkers == 0) ? 1 : totalLatency / measuredWorkers;
+
+        int size = candidates.length;
+        WorkerHandler best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (int i = 0; i < size; i++)
+        {
+            WorkerHandler worker = candidates[(nextWorker + i) % size];
+            if (excluded.contains(worker))
+            {
+                continue;
+            }
+            double load = worker.estimateLoad(waypoints, defaultLatency);
+            if (load < bestLoad)
+            {
+                best = worker;
+                bestLoad = load;
+            }
         }
+        nextWorker = (nextWorker + 1) % size;
+        return best;
     }
 
 }
\ No newline at end of file
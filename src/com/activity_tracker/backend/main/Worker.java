@@ -2,31 +2,71 @@ package com.activity_tracker.backend.main;
 
 
 
-import com.activity_tracker.backend.calculations.ActivityStats;
+import com.activity_tracker.backend.mapreduce.ChunkResult;
 import com.activity_tracker.backend.mapreduce.Map;
-import com.activity_tracker.backend.misc.Pair;
+import com.activity_tracker.backend.misc.ChunkFailure;
+import com.activity_tracker.backend.misc.Deregister;
+import com.activity_tracker.backend.misc.Heartbeat;
+import com.activity_tracker.backend.misc.MetricsReporter;
+import com.activity_tracker.backend.misc.SegmentCatalogue;
+import com.activity_tracker.backend.misc.WorkerInfo;
+import com.activity_tracker.backend.network.MessageChannel;
 import com.activity_tracker.backend.parser.Chunk;
+import com.activity_tracker.backend.parser.Segment;
 
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The worker class is responsible for handling the mapping of the data.
+ * Chunks received from the master are put in a bounded queue and mapped by a fixed number of processing lanes.
+ * The results are then sent back to the master by a single writer thread, optionally after the results of the
+ * chunks of the same route have been combined into one.
+ * When the worker process is asked to stop, it deregisters from the master and waits for the master to collect the
+ * results of the chunks it already has before exiting.
  */
 public class Worker
 {
     // This is the socket that the worker is connected to
     private Socket connection;
-    // Input stream for the worker to receive objects from the master
-    private ObjectInputStream in;
-    // Output stream for the worker to send objects to the master
-    private ObjectOutputStream out;
-    // This is the lock that will be used to ensure that only one thread can write to the output stream at a time
-    private final Object writeLock = new Object();
+    // channel: used by the worker to receive chunks from the master and to send the results back
+    private MessageChannel channel;
+    // lanes: the number of threads mapping chunks at the same time
+    private int lanes;
+    // chunkQueue: the chunks received from the master that are waiting for a free lane.
+    // It is bounded, so when the worker falls behind it stops reading from the master instead of piling up chunks.
+    private BlockingQueue<Chunk> chunkQueue;
+    // LEAVE_TIMEOUT_SECONDS: how long a stopping worker waits for the master to collect its results
+    private static final long LEAVE_TIMEOUT_SECONDS = 30;
+
+    // outbox: the messages waiting for the writer to send them to the master, mostly the results of the mapped chunks
+    private final BlockingQueue<Object> outbox = new LinkedBlockingQueue<>();
+    // disconnected: released once the connection to the master is closed
+    private final CountDownLatch disconnected = new CountDownLatch(1);
+    // leaving: set once the worker has deregistered, after which the master closing the connection is expected
+    private volatile boolean leaving;
+    // busyLanes: the number of lanes currently mapping a chunk
+    private final AtomicInteger busyLanes = new AtomicInteger();
+    // chunksMapped: the number of chunks mapped since the worker started
+    private final AtomicLong chunksMapped = new AtomicLong();
+    private MetricsReporter metrics;
+    // heartbeatInterval: how long, in milliseconds, the writer may stay silent before it lets the master know the
+    // worker is still alive. 0 disables the heartbeats.
+    private long heartbeatInterval;
+    // combiner: merges the results of the chunks of the same route before they are sent, null if disabled
+    private ResultCombiner combiner;
+    // segments: the registered segments, sent by the master before any chunk when the workers detect the segments
+    private volatile ArrayList<Segment> segments;
 
     /*
      * Initializes a new instance of the Worker class.
@@ -40,10 +80,48 @@ public class Worker
 
             final String masterIP = config.getProperty("master_ip");
             final int workerPort = Integer.parseInt(config.getProperty("worker_port"));
-            // Creating a socket that will connect to the master and creating the input and output streams
+            // workerProtocol: the wire protocol spoken between the master and the workers, must match the master's
+            final String workerProtocol = config.getProperty("worker_protocol", "binary");
+
+            // By default, one lane per core, and a queue that can hold a few chunks for every lane
+            lanes = Integer.parseInt(config.getProperty("worker_threads",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+            final int queueCapacity = Integer.parseInt(config.getProperty("worker_queue_capacity",
+                    String.valueOf(lanes * 4)).trim());
+            if (lanes <= 0 || queueCapacity <= 0)
+            {
+                throw new IllegalArgumentException("worker_threads and worker_queue_capacity must be positive.");
+            }
+            chunkQueue = new ArrayBlockingQueue<>(queueCapacity);
+            // capacity: how much work this worker can take compared to the others, by default as much as its lanes
+            final int capacity = Integer.parseInt(config.getProperty("worker_capacity", String.valueOf(lanes)).trim());
+            heartbeatInterval = Long.parseLong(config.getProperty("heartbeat_interval_ms", "1000").trim());
+            // combineMaxChunks: the most results of a route merged into one, 1 to send every result on its own
+            final int combineMaxChunks = Integer.parseInt(config.getProperty("combine_max_chunks", "1").trim());
+            if (combineMaxChunks > 1)
+            {
+                combiner = new ResultCombiner(combineMaxChunks,
+                        Long.parseLong(config.getProperty("combine_max_delay_ms", "5").trim()));
+            }
+
+            metrics = new MetricsReporter("Worker", Long.parseLong(config.getProperty("metrics_interval_seconds", "0").trim()));
+            metrics.register("queue_depth", chunkQueue::size);
+            metrics.register("busy_lanes", busyLanes::get);
+            metrics.register("lanes", () -> lanes);
+            metrics.register("pending_results", outbox::size);
+            metrics.register("chunks_mapped", chunksMapped::get);
+            if (combiner != null)
+            {
+                metrics.register("chunks_combined", combiner::getChunksCombined);
+            }
+
+            // Creating a socket that will connect to the master and opening a message channel over it
             connection = new Socket(masterIP, workerPort);
-            out = new ObjectOutputStream(connection.getOutputStream());
-            in = new ObjectInputStream(connection.getInputStream());
+            // the results are small messages sent one after the other, none of them may wait for the previous ACK
+            connection.setTcpNoDelay(true);
+            channel = MessageChannel.open(connection, workerProtocol);
+            // Letting the master know how much work this worker can take, before anything else
+            channel.send(new WorkerInfo(capacity));
             System.out.println("Worker: Connection to master established");
         }
         catch (Exception e)
@@ -56,17 +134,67 @@ public class Worker
     }
 
     /**
-     * Starts the worker and begins listening for jobs from the master.
+     * Starts the worker: the processing lanes, the writer, and the thread listening for jobs from the master.
      */
     private void start()
     {
+        // The lanes and the writer only wait on the queues, they are daemons so that they do not keep the worker
+        // alive once the connection to the master is closed.
+        for (int i = 0; i < lanes; i++)
+        {
+            Thread lane = new Thread(this::processChunks, "worker-lane-" + i);
+            lane.setDaemon(true);
+            lane.start();
+        }
+        Thread writer = new Thread(this::writeResults, "worker-writer");
+        writer.setDaemon(true);
+        writer.start();
+        if (combiner != null)
+        {
+            Thread flusher = new Thread(this::flushCombinedResults, "worker-combiner");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+
+        metrics.start();
+
+        // Stopping the process (e.g. when scaling down) lets the master drain the worker first
+        Runtime.getRuntime().addShutdownHook(new Thread(this::leave, "worker-leave"));
+
         Thread readData = new Thread(this::readForData);
         readData.start();
     }
 
     /**
-     * Reads data from the master and handles the mapping of the data.
-     * For each chunk that is received, a new thread will be created to handle the mapping of the data.
+     * Run by the shutdown hook. Tells the master the worker is leaving, then waits for the master to collect the
+     * results of the chunks it was given and close the connection.
+     */
+    private void leave()
+    {
+        if (disconnected.getCount() == 0)
+        {
+            return;
+        }
+        System.out.println("Worker: Deregistering from master");
+        leaving = true;
+        outbox.add(new Deregister());
+        try
+        {
+            if (!disconnected.await(LEAVE_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            {
+                System.out.println("Worker: Master did not collect the results in time, leaving anyway");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            System.out.println("Worker: Interrupted while leaving");
+        }
+    }
+
+    /**
+     * Reads data from the master and puts the chunks received in the chunk queue.
+     * If the queue is full, it blocks until a lane frees up a place.
+     * The registered segments, if the master sends them, arrive before any chunk.
      * @throws RuntimeException if the received object is not a chunk.
      */
     private void readForData()
@@ -75,15 +203,24 @@ public class Worker
         {
             try
             {
-                Object receivedObject = in.readObject();
+                Object receivedObject = channel.read();
                 System.out.println("Worker: Received object from master");
                 Chunk chunk;
 
-                // If the received object is a chunk, a new thread will be created to handle the mapping of the data
+                // If the received object is a chunk, it will wait in the queue for a lane to map it
                 if (receivedObject instanceof Chunk)
                 {
                     chunk = (Chunk) receivedObject;
-                    new Thread(() -> handleMapping(chunk)).start();
+                    if (combiner != null)
+                    {
+                        combiner.chunkReceived(chunk);
+                    }
+                    chunkQueue.put(chunk);
+                }
+                else if (receivedObject instanceof SegmentCatalogue)
+                {
+                    segments = ((SegmentCatalogue) receivedObject).getSegments();
+                    System.out.println("Worker: Received " + segments.size() + " segments to detect");
                 }
                 else
                 {
@@ -91,44 +228,153 @@ public class Worker
                 }
 
             }
+            catch (InterruptedException e)
+            {
+                System.out.println("Worker: Interrupted while waiting for a free place in the queue");
+                shutdown();
+            }
             catch (IOException | ClassNotFoundException e)
             {
-                System.out.println("Could not receive object");
+                if (leaving)
+                {
+                    System.out.println("Worker: Master closed the connection, all results collected");
+                }
+                else
+                {
+                    System.out.println("Could not receive object");
+                    System.out.println("Error: " + e.getMessage());
+                }
                 shutdown();
+            }
+        }
+        disconnected.countDown();
+    }
+
+    /**
+     * Run by each processing lane. Takes chunks from the chunk queue, maps them
+     * and puts the results in the result queue for the writer to send.
+     */
+    private void processChunks()
+    {
+        while (true)
+        {
+            Chunk chunk;
+            try
+            {
+                chunk = chunkQueue.take();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            busyLanes.incrementAndGet();
+            ChunkResult result = null;
+            try
+            {
+                result = handleMapping(chunk);
+                chunksMapped.incrementAndGet();
+            }
+            catch (RuntimeException e)
+            {
+                // a chunk that cannot be mapped should not take its lane down with it, and the master is told so that
+                // it does not wait for the route forever
+                System.out.println("Worker: Could not map chunk " + chunk.getChunkIndex() + " of route " + chunk.getRouteID());
                 System.out.println("Error: " + e.getMessage());
+                outbox.add(new ChunkFailure(chunk.getRouteID(), chunk.getChunkIndex(), e.getMessage()));
+            }
+            finally
+            {
+                busyLanes.decrementAndGet();
+            }
+
+            if (combiner != null)
+            {
+                // even a chunk that could not be mapped tells the combiner there is one less result to wait for
+                outbox.addAll(combiner.chunkMapped(chunk, result));
+            }
+            else if (result != null)
+            {
+                outbox.add(result);
             }
         }
     }
 
+    /**
+     * Run by the combiner thread. Sends the results the combiner has held for too long.
+     */
+    private void flushCombinedResults()
+    {
+        while (true)
+        {
+            try
+            {
+                Thread.sleep(combiner.getCheckIntervalMillis());
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            outbox.addAll(combiner.expire());
+        }
+    }
+
     /**
      * Handles the mapping of the data.
-     * Calls the map method from the Map class and sends the result back to the master.
+     * Calls the map method from the Map class and returns its result.
      *
      * @param chunk The chunk of data to be mapped.
+     * @return the activity stats of the chunk, along with the ids of the chunk
      */
-    private void handleMapping(Chunk chunk)
+    private ChunkResult handleMapping(Chunk chunk)
     {
         if (chunk == null)
         {
             throw new RuntimeException("The chunk appears null.");
         }
 
-        // intermediateResult: the mapping process returns a key-value pair,
-        // where key is the client id, and the value is another pair of chunk, activityStats
-        Pair<Integer, Pair<Chunk, ActivityStats>> intermediateResult = Map.map(chunk.getRoute().getClientID(), chunk);
+        // intermediateResult: the mapping process returns the activity stats of the chunk, keyed by the client id
+        return Map.map(chunk, segments);
+    }
+
+    /**
+     * Run by the writer thread, which is the only thread writing to the master.
+     * Waits for a message, then writes it along with all the other messages that are ready, and flushes them together.
+     * If no message is ready within the heartbeat interval, it sends a heartbeat instead.
+     */
+    private void writeResults()
+    {
         try
         {
-            // Send the result back to the worker-handler
-            synchronized (writeLock)
+            while (true)
             {
-                out.writeObject(intermediateResult);
-                out.flush();
+                Object first = (heartbeatInterval > 0)
+                        ? outbox.poll(heartbeatInterval, TimeUnit.MILLISECONDS)
+                        : outbox.take();
+                if (first == null)
+                {
+                    channel.send(new Heartbeat());
+                    continue;
+                }
+                channel.write(first);
+
+                Object message;
+                while ((message = outbox.poll()) != null)
+                {
+                    channel.write(message);
+                }
+                // Send the results back to the worker-handler
+                channel.flush();
             }
         }
+        catch (InterruptedException e)
+        {
+            System.out.println("Worker: Writer interrupted");
+        }
         catch (IOException e)
         {
             System.out.println("Could not send object to the worker handler");
-            throw new RuntimeException(e);
+            shutdown();
         }
     }
 
@@ -139,25 +385,22 @@ public class Worker
     {
         try
         {
-            in.close();
-        }
-        catch (IOException e)
-        {
-            System.out.println("Could not close input stream");
-            System.out.println("Error: " + e.getMessage());
-        }
-        try
-        {
-            out.close();
+            if (channel != null)
+            {
+                channel.close();
+            }
         }
         catch (IOException e)
         {
-            System.out.println("Could not close output stream");
+            System.out.println("Could not close message channel");
             System.out.println("Error: " + e.getMessage());
         }
         try
         {
-            connection.close();
+            if (connection != null)
+            {
+                connection.close();
+            }
         }
         catch (IOException e)
         {
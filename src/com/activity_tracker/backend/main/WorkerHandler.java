@@ -1,37 +1,95 @@
 package com.activity_tracker.backend.main;
 
-import com.activity_tracker.backend.calculations.ActivityStats;
-import com.activity_tracker.backend.misc.Pair;
+import com.activity_tracker.backend.mapreduce.ChunkResult;
+import com.activity_tracker.backend.misc.ChunkFailure;
+import com.activity_tracker.backend.misc.Deregister;
+import com.activity_tracker.backend.misc.Heartbeat;
+import com.activity_tracker.backend.misc.SegmentCatalogue;
+import com.activity_tracker.backend.misc.ThreadLauncher;
+import com.activity_tracker.backend.misc.WorkerInfo;
+import com.activity_tracker.backend.network.MessageChannel;
 import com.activity_tracker.backend.parser.Chunk;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class is responsible to handle the connection to a worker node.
+ * It also keeps track of the chunks the worker has in flight and of how fast it returns them,
+ * so that the work dispatcher can send each chunk to the least loaded worker.
+ * If the connection to the worker is lost, the handler reports it to the work dispatcher, which re-sends the chunks
+ * still in flight to the other workers.
+ * A worker that deregisters is drained instead: it is given no more chunks, and the connection is closed once all
+ * the chunks it has are returned.
+ * The chunks are written to the worker by a sender thread of its own, so giving a chunk to a worker never waits for
+ * its socket, and a slow worker does not hold up the chunks of the others. The chunks queued while the sender is
+ * writing are written together and flushed once.
  */
 public class WorkerHandler implements Runnable
 {
-    // These are the input and output streams for the worker
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
+    // LATENCY_SMOOTHING: the weight of the latest result in the moving average of the latency of the worker
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    // This is the channel used to send chunks to the worker and receive its results
+    private MessageChannel channel;
     // This is the socket that the worker is connected to
     private final Socket workerSocket;
-    private HashMap<Integer,ClientHandler> clients;
+    // aggregator: collects the results of the chunks, matching them to their route by its id
+    private final RouteAggregator aggregator;
+    // dispatcher: the work dispatcher sending chunks to this worker, told when the worker is lost
+    private final WorkDispatcher dispatcher;
+    // outbound: the chunks given to the worker and not written to it yet, in order. Its size needs no bound, as the
+    // chunks queued are in flight too, and count towards the load the work dispatcher balances.
+    private final LinkedBlockingQueue<InFlightChunk> outbound = new LinkedBlockingQueue<>();
+    // sender: the thread writing the queued chunks to the worker, interrupted once the connection is closed
+    private volatile Thread sender;
+    // inFlight: the chunks sent to the worker whose results have not arrived yet, keyed by chunkKey.
+    // The chunks themselves are kept, so that they can be sent to another worker if this one is lost.
+    private final ConcurrentHashMap<Long, InFlightChunk> inFlight = new ConcurrentHashMap<>();
+    // outstandingWaypoints: the total number of waypoints of the chunks in flight
+    private final AtomicLong outstandingWaypoints = new AtomicLong();
+    // nanosPerWaypoint: moving average of the time it takes the worker to return a chunk, divided by the number of
+    // waypoints of the chunk. It is 0 until the first result arrives.
+    private volatile double nanosPerWaypoint = 0;
+    // mapNanosPerWaypoint: moving average of the time the worker spends mapping a waypoint, as reported by the worker
+    private volatile double mapNanosPerWaypoint = 0;
+    // transportCost: the time from sending a chunk to receiving its result, minus the time spent mapping it,
+    // split in a fixed and a per-waypoint part
+    private final CostModel transportCost = new CostModel();
+    // sendCost: the time the master spends sending a chunk to the worker, split the same way
+    private final CostModel sendCost = new CostModel();
+    // capacity: the relative weight the worker reported when it connected, 1 if it did not report one
+    private volatile int capacity = 1;
+    // lastHeard: the time, as given by System.nanoTime, the last message from the worker arrived
+    private volatile long lastHeard = System.nanoTime();
+    // draining: set once the worker has deregistered, the connection is closed when its last chunk returns
+    private volatile boolean draining;
+    // closed: set once the connection to the worker is closed, after which no more chunks are accepted
+    private volatile boolean closed;
+    private final AtomicBoolean shutDown = new AtomicBoolean();
 
-    public WorkerHandler(Socket workerSocket, HashMap<Integer, ClientHandler> clients)
+    /**
+     * @param workerSocket the socket that the worker is connected to
+     * @param aggregator the aggregator collecting the results of the chunks of the routes
+     * @param protocol the wire protocol spoken with the worker, "binary" or "java"
+     * @param dispatcher the work dispatcher to report the worker to if it is lost
+     */
+    public WorkerHandler(Socket workerSocket, RouteAggregator aggregator, String protocol, WorkDispatcher dispatcher)
     {
         this.workerSocket = workerSocket;
+        this.aggregator = aggregator;
+        this.dispatcher = dispatcher;
         // Add the worker to the queue
         try
         {
-            // Creating the input and output streams for the worker
-            this.in = new ObjectInputStream(workerSocket.getInputStream());
-            this.out = new ObjectOutputStream(workerSocket.getOutputStream());
-            this.clients = clients;
+            // Opening the message channel for the worker
+            this.channel = MessageChannel.open(workerSocket, protocol);
         }
         catch (IOException e)
         {
@@ -41,20 +99,40 @@ public class WorkerHandler implements Runnable
     }
 
     /**
-     * Starts the thread to listen for messages from the worker.
+     * Sends the registered segments to the worker, for it to detect them in the chunks it maps. Must be called before
+     * the handler is started, so that the segments reach the worker before any chunk.
+     * @param catalogue the registered segments
+     * @return false if the connection to the worker was lost, in which case the worker must not be given any chunks
+     */
+    public boolean sendSegments(SegmentCatalogue catalogue)
+    {
+        try
+        {
+            channel.send(catalogue);
+            return true;
+        }
+        catch (IOException e)
+        {
+            System.out.println("WorkerHandler: Could not send the segments to the worker");
+            shutdown();
+            return false;
+        }
+    }
+
+    /**
+     * Starts the threads to listen for messages from the worker and to send it its chunks.
      */
     @Override
     public void run()
     {
-        Thread listenToWorker = new Thread(this::listenToWorker);
-        listenToWorker.start();
+        ThreadLauncher.start(this::listenToWorker, "worker-listener");
+        sender = ThreadLauncher.start(this::sendToWorker, "worker-sender");
     }
 
     /**
      * Listens for messages from the worker and adds the intermediate results
      * to the appropriate client handler.
      */
-    @SuppressWarnings("unchecked")
     private void listenToWorker()
     {
         try
@@ -62,28 +140,112 @@ public class WorkerHandler implements Runnable
             while (!workerSocket.isClosed())
             {
                 // Receive the results from the worker
-                Object receivedObject = in.readObject();
+                Object receivedObject = channel.read();
+                lastHeard = System.nanoTime();
 
-                if (receivedObject instanceof Pair<?,?>)
+                if (receivedObject instanceof Heartbeat)
+                {
+                    continue;
+                }
+                if (receivedObject instanceof Deregister)
                 {
-                    Pair<Integer, Pair<Chunk, ActivityStats>> activityStatsPair = (Pair<Integer, Pair<Chunk, ActivityStats>>) receivedObject;
+                    System.out.println("WorkerHandler: Worker is leaving, waiting for its " + inFlight.size() + " chunks");
+                    draining = true;
+                    dispatcher.workerLeaving(this);
+                    closeIfDrained();
+                }
+                else if (receivedObject instanceof WorkerInfo)
+                {
+                    capacity = ((WorkerInfo) receivedObject).getCapacity();
+                    System.out.println("WorkerHandler: Worker reported a capacity of " + capacity);
+                }
+                else if (receivedObject instanceof ChunkResult)
+                {
+                    ChunkResult result = (ChunkResult) receivedObject;
+                    completeChunk(result);
+                    dispatcher.chunkCompleted(result, this);
 
-                    // extracting the pair associated with the client
-                    Pair<Chunk, ActivityStats> stats = activityStatsPair.getValue();
+                    // folding the result into its route, which is sent to its client once complete
+                    aggregator.add(result);
+                    closeIfDrained();
+                }
+                else if (receivedObject instanceof ChunkFailure)
+                {
+                    ChunkFailure failure = (ChunkFailure) receivedObject;
+                    release(chunkKey(failure.getRouteID(), failure.getChunkIndex()));
+                    dispatcher.chunkFailed(failure, this);
 
-                    ClientHandler appropriateHandler = clients.get(activityStatsPair.getKey());
-                    // sending the results to the appropriate client by writing them to shared memory
-                    appropriateHandler.addStats(stats);
+                    // the route cannot be reduced without the chunk, so it fails and gives up its place in the queue
+                    aggregator.fail(failure.getRouteID(), new RuntimeException("Chunk " + failure.getChunkIndex()
+                            + " could not be mapped: " + failure.getReason()));
+                    closeIfDrained();
                 }
                 else
                 {
-                    throw new ClassNotFoundException("Received object is not of type Pair");
+                    throw new ClassNotFoundException("Received object is not of type ChunkResult");
                 }
             }
         }
         catch (IOException | ClassNotFoundException e)
         {
-            System.out.println("WorkerHandler: Connection to worker lost");
+            // the connection is closed on purpose once a leaving worker is drained
+            if (!closed)
+            {
+                System.out.println("WorkerHandler: Connection to worker lost");
+            }
+        }
+        finally
+        {
+            shutdown();
+        }
+    }
+
+    /**
+     * Sends the queued chunks to the worker, until the connection is closed. Every chunk queued by the time the
+     * previous ones are written is written along with them, and flushed once.
+     */
+    private void sendToWorker()
+    {
+        ArrayList<InFlightChunk> batch = new ArrayList<>();
+        try
+        {
+            while (!closed)
+            {
+                batch.add(outbound.take());
+                outbound.drainTo(batch);
+
+                long batchWaypoints = 0;
+                for (InFlightChunk job : batch)
+                {
+                    long writeStart = System.nanoTime();
+                    channel.write(job.chunk);
+                    job.sendNanos = System.nanoTime() - writeStart;
+                    batchWaypoints += job.waypoints;
+                }
+                long writeEnd = System.nanoTime();
+                channel.flush();
+                // the flush is shared amongst the chunks of the batch by their size
+                long flushNanos = System.nanoTime() - writeEnd;
+                for (InFlightChunk job : batch)
+                {
+                    long flushShare = (batchWaypoints == 0) ? flushNanos / batch.size()
+                            : flushNanos * job.waypoints / batchWaypoints;
+                    sendCost.add(job.waypoints, job.sendNanos + flushShare);
+                }
+                batch.clear();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // interrupted by shutdown
+        }
+        catch (IOException e)
+        {
+            // the chunks of the batch are still in flight, so they are re-sent to the other workers along with the rest
+            if (!closed)
+            {
+                System.out.println("WorkerHandler: Could not send chunks to worker because the connection is lost");
+            }
         }
         finally
         {
@@ -92,47 +254,270 @@ public class WorkerHandler implements Runnable
     }
 
     /**
-     * Sends a chunk to the worker to be processed.
+     * Gives a chunk to the worker to be processed, and records it as in flight until its result arrives.
+     * The chunk is queued to be sent by the sender thread, so this never blocks.
+     * @param chunk the chunk to send
+     * @return true if the chunk is now the responsibility of the worker, or of the chunks re-sent when it was lost,
+     * false if it was not sent and must be given to another worker
      */
-    public void processJob(Chunk chunk)
+    public boolean processJob(Chunk chunk)
     {
         if (chunk == null)
         {
             throw new RuntimeException("The chunk appears null.");
         }
 
-        try
+        long key = chunkKey(chunk.getRouteID(), chunk.getChunkIndex());
+        InFlightChunk job = new InFlightChunk(chunk, System.nanoTime());
+        inFlight.put(key, job);
+        outstandingWaypoints.addAndGet(job.waypoints);
+
+        // The chunks in flight are collected after the handler is closed, so a chunk recorded too late to be
+        // collected is taken back here
+        if (closed)
         {
-            // Send the chunk to the worker to be mapped
-            out.writeObject(chunk);
-            out.flush();
+            return !release(key);
         }
-        catch (IOException e)
+
+        // Queue the chunk to be sent to the worker to be mapped. If the connection is lost before it is written, it
+        // is collected along with the other chunks in flight and re-sent.
+        outbound.add(job);
+        return true;
+    }
+
+    /**
+     * Removes a chunk from the chunks in flight.
+     * @return true if the chunk was still in flight
+     */
+    private boolean release(long key)
+    {
+        InFlightChunk job = inFlight.remove(key);
+        if (job == null)
         {
-            System.out.println("WorkerHandler: Could not send route to worker because the connection is lost");
+            return false;
         }
+        outstandingWaypoints.addAndGet(-job.waypoints);
+        return true;
     }
+
     /**
-     * Closes the connection to the worker and cleans up resources.
+     * Cancels a chunk whose result has already arrived from another worker, so that it no longer counts towards the
+     * load of this worker and is not re-sent if this worker is lost. The worker still maps it, but its result is ignored.
+     * @param chunk the chunk to cancel
      */
-    private void shutdown()
+    void cancel(Chunk chunk)
     {
-        try
+        release(chunkKey(chunk.getRouteID(), chunk.getChunkIndex()));
+        closeIfDrained();
+    }
+
+    /**
+     * Closes the connection to a worker that is leaving, once it has returned all of its chunks.
+     */
+    private void closeIfDrained()
+    {
+        if (draining && inFlight.isEmpty())
         {
-            in.close();
+            System.out.println("WorkerHandler: Worker returned all its chunks and left");
+            shutdown();
         }
-        catch (IOException e)
+    }
+
+    /**
+     * Removes all the chunks in flight, so that they can be given to other workers.
+     * @return the chunks the worker has not returned
+     */
+    public ArrayList<Chunk> drainInFlight()
+    {
+        ArrayList<Chunk> chunks = new ArrayList<>();
+        Iterator<Long> keys = inFlight.keySet().iterator();
+        while (keys.hasNext())
         {
-            System.out.println("WorkerHandler: Could not close input stream");
+            InFlightChunk job = inFlight.remove(keys.next());
+            if (job != null)
+            {
+                outstandingWaypoints.addAndGet(-job.waypoints);
+                chunks.add(job.chunk);
+            }
         }
-        try
+        return chunks;
+    }
+
+    /**
+     * Removes the chunks of a result from the chunks in flight, and updates the latency of the worker.
+     * @param result the result received from the worker
+     */
+    private void completeChunk(ChunkResult result)
+    {
+        long now = System.nanoTime();
+        ArrayList<InFlightChunk> jobs = new ArrayList<>(result.getChunkCount());
+        long totalWaypoints = 0;
+        for (int chunkIndex : result.getChunkIndices())
         {
-            out.close();
+            InFlightChunk job = inFlight.remove(chunkKey(result.getRouteID(), chunkIndex));
+            if (job != null)
+            {
+                outstandingWaypoints.addAndGet(-job.waypoints);
+                jobs.add(job);
+                totalWaypoints += job.waypoints;
+            }
         }
-        catch (IOException e)
+
+        for (InFlightChunk job : jobs)
         {
-            System.out.println("WorkerHandler: Could not close output stream");
+            long roundTrip = now - job.sentAt;
+            int waypoints = Math.max(1, job.waypoints);
+            // the mapping time of a combined result is shared amongst its chunks by their size
+            long mapNanos = (totalWaypoints == 0) ? 0 : result.getMapNanos() * job.waypoints / totalWaypoints;
+            synchronized (inFlight)
+            {
+                nanosPerWaypoint = smooth(nanosPerWaypoint, roundTrip / (double) waypoints);
+                mapNanosPerWaypoint = smooth(mapNanosPerWaypoint, mapNanos / (double) waypoints);
+            }
+            transportCost.add(job.waypoints, Math.max(0, roundTrip - mapNanos));
+        }
+    }
+
+    /**
+     * Adds a sample to a moving average, the first sample becoming the average.
+     */
+    private static double smooth(double average, double sample)
+    {
+        return (average == 0) ? sample : LATENCY_SMOOTHING * sample + (1 - LATENCY_SMOOTHING) * average;
+    }
+
+    /**
+     * Estimates how long the worker would take to return a new chunk, given the work it already has in flight.
+     * @param waypoints the number of waypoints of the new chunk
+     * @param defaultNanosPerWaypoint the latency to assume if the worker is idle or has not returned any results yet
+     * @return the estimated time, in nanoseconds, scaled by the capacity of the worker
+     */
+    public double estimateLoad(int waypoints, double defaultNanosPerWaypoint)
+    {
+        long outstanding = outstandingWaypoints.get();
+        // An idle worker is assumed to be as fast as the average worker. Its own latency is only refreshed when it
+        // is given work, so a single slow result must not keep it idle for good.
+        double latency = (hasLatency() && outstanding > 0) ? nanosPerWaypoint : defaultNanosPerWaypoint;
+        return (outstanding + waypoints) * latency / capacity;
+    }
+
+    /**
+     * @return true once the worker has returned at least one result, and its latency is known
+     */
+    public boolean hasLatency()
+    {
+        return nanosPerWaypoint != 0;
+    }
+
+    /**
+     * @return the moving average of the time it takes the worker to return a chunk, per waypoint
+     */
+    public double getNanosPerWaypoint()
+    {
+        return nanosPerWaypoint;
+    }
+
+    /**
+     * @return the moving average of the time the worker spends mapping a waypoint, 0 until its first result arrives
+     */
+    public double getMapNanosPerWaypoint()
+    {
+        return mapNanosPerWaypoint;
+    }
+
+    /**
+     * @return the part of the round trip of a chunk that does not depend on its size, in nanoseconds
+     */
+    public double getMessageOverheadNanos()
+    {
+        return transportCost.fixed();
+    }
+
+    /**
+     * @return the part of the round trip of a chunk added by each of its waypoints, mapping it and transferring it,
+     * in nanoseconds
+     */
+    public double getWaypointCostNanos()
+    {
+        return mapNanosPerWaypoint + transportCost.perWaypoint();
+    }
+
+    /**
+     * @return the part of the time the master spends sending a chunk that does not depend on its size, in nanoseconds
+     */
+    public double getSendOverheadNanos()
+    {
+        return sendCost.fixed();
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * @return the time, in milliseconds, since the last message from the worker arrived
+     */
+    public long getMillisSinceLastMessage()
+    {
+        return (System.nanoTime() - lastHeard) / 1_000_000;
+    }
+
+    /**
+     * @return the number of chunks the worker has not returned yet
+     */
+    public int getOutstandingChunks()
+    {
+        return inFlight.size();
+    }
+
+    /**
+     * @return the key identifying a chunk amongst the chunks of all routes
+     */
+    static long chunkKey(int routeID, int chunkIndex)
+    {
+        return ((long) routeID << 32) | (chunkIndex & 0xFFFFFFFFL);
+    }
+
+    /**
+     * InFlightChunk: A chunk given to the worker, along with its size and the time it was given.
+     */
+    private static class InFlightChunk
+    {
+        private final Chunk chunk;
+        private final int waypoints;
+        // sentAt: the time the chunk was given to the worker. The time it waits to be written counts towards the
+        // latency of the worker, so that a worker with a slow connection is given fewer chunks.
+        private final long sentAt;
+        // sendNanos: the time spent writing the chunk, only used by the sender thread
+        private long sendNanos;
+
+        private InFlightChunk(Chunk chunk, long sentAt)
+        {
+            this.chunk = chunk;
+            this.waypoints = chunk.getTrack().size();
+            this.sentAt = sentAt;
         }
+    }
+
+    /**
+     * Closes the connection to the worker and cleans up resources, then lets the work dispatcher re-send the chunks
+     * the worker did not return. Only the first call has any effect.
+     */
+    void shutdown()
+    {
+        if (!shutDown.compareAndSet(false, true))
+        {
+            return;
+        }
+        closed = true;
+        // the chunks not written yet are in flight, and are re-sent along with the rest
+        outbound.clear();
+        if (sender != null)
+        {
+            sender.interrupt();
+        }
+        // The socket is closed first, so that a send blocked on a worker that stopped reading fails right away
         try
         {
             workerSocket.close();
@@ -141,6 +526,19 @@ public class WorkerHandler implements Runnable
         {
             System.out.println("WorkerHandler: Could not close socket");
         }
+        try
+        {
+            if (channel != null)
+            {
+                channel.close();
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println("WorkerHandler: Could not close message channel");
+        }
         System.out.println("WorkerHandler: Worker disconnected.");
+
+        dispatcher.workerFailed(this);
     }
 }
\ No newline at end of file
@@ -0,0 +1,108 @@
+package com.activity_tracker.backend.mapreduce;
+
+import com.activity_tracker.backend.calculations.ActivityStats;
+import com.activity_tracker.backend.parser.Chunk;
+
+import java.io.Serializable;
+
+/**
+ * ChunkResult: The result of the map phase for one or more chunks of a route, sent back from the worker to the master.
+ * Carries the ids needed to route it to the right client and route, instead of echoing the chunks themselves.
+ * A worker may combine the results of several chunks of the same route into one (see Reduce.combine), in which case
+ * the result lists the indices of all of them.
+ */
+public class ChunkResult implements Serializable
+{
+    // clientID: the id of the client that uploaded the route, used as the key of the map phase
+    private final int clientID;
+    private final int routeID;
+    // chunkIndices: the indices of the chunks this result covers, in ascending order
+    private final int[] chunkIndices;
+    private final int totalChunks;
+    private final ActivityStats stats;
+    // mapNanos: the time the worker spent mapping the chunks, used by the master to size the chunks of later routes
+    private final long mapNanos;
+    // copy: true if the chunk mapped was a copy sent to more than one worker, whose result is never combined
+    private final boolean copy;
+
+    /**
+     * @param chunk the chunk that was mapped
+     * @param stats the activity stats calculated for the chunk
+     * @param mapNanos the time spent mapping the chunk, in nanoseconds
+     */
+    public ChunkResult(Chunk chunk, ActivityStats stats, long mapNanos)
+    {
+        this(chunk.getClientID(), chunk.getRouteID(), new int[] {chunk.getChunkIndex()}, chunk.getTotalChunks(), stats,
+                mapNanos, !chunk.isCombinable());
+    }
+
+    /**
+     * @param clientID the id of the client that uploaded the route
+     * @param routeID the id of the route
+     * @param chunkIndices the indices of the chunks the result covers, in ascending order
+     * @param totalChunks the total number of chunks of the route
+     * @param stats the activity stats of the chunks
+     * @param mapNanos the time spent mapping the chunks, in nanoseconds
+     * @param copy true if the result is of a single chunk that was sent to more than one worker
+     */
+    public ChunkResult(int clientID, int routeID, int[] chunkIndices, int totalChunks, ActivityStats stats, long mapNanos,
+                       boolean copy)
+    {
+        this.clientID = clientID;
+        this.routeID = routeID;
+        this.chunkIndices = chunkIndices;
+        this.totalChunks = totalChunks;
+        this.stats = stats;
+        this.mapNanos = mapNanos;
+        this.copy = copy;
+    }
+
+    public int getClientID()
+    {
+        return clientID;
+    }
+
+    public int getRouteID()
+    {
+        return routeID;
+    }
+
+    /**
+     * @return the indices of the chunks the result covers, in ascending order. The array must not be modified.
+     */
+    public int[] getChunkIndices()
+    {
+        return chunkIndices;
+    }
+
+    /**
+     * @return the number of chunks the result covers
+     */
+    public int getChunkCount()
+    {
+        return chunkIndices.length;
+    }
+
+    public int getTotalChunks()
+    {
+        return totalChunks;
+    }
+
+    public ActivityStats getStats()
+    {
+        return stats;
+    }
+
+    public long getMapNanos()
+    {
+        return mapNanos;
+    }
+
+    /**
+     * @return true if the result is of a single chunk that was sent to more than one worker
+     */
+    public boolean isCopy()
+    {
+        return copy;
+    }
+}
@@ -1,60 +1,151 @@
 package com.activity_tracker.backend.mapreduce;
 
 import com.activity_tracker.backend.calculations.ActivityStats;
-import com.activity_tracker.backend.misc.Pair;
+import com.activity_tracker.backend.calculations.SegmentActivityStats;
 import com.activity_tracker.backend.parser.Chunk;
-import com.activity_tracker.backend.parser.Waypoint;
+import com.activity_tracker.backend.parser.Segment;
+import com.activity_tracker.backend.parser.Track;
 
-import java.util.ArrayList;
+import java.util.Collection;
 
 public class Map
 {
     /**
-     * Maps a chunk to a pair of client ID and activity stats.
+     * Maps a chunk to its activity stats, keyed by the ID of the client that requested them.
      *
-     * @param clientID the ID of the client that requested the activity stats.
      * @param chunk the chunk to be mapped.
-     * @return a pair of client ID and the chunk's activity stats.
+     * @return the chunk's result, carrying the client ID and the chunk's activity stats.
      */
-    public static Pair<Integer, Pair<Chunk, ActivityStats>> map(int clientID, Chunk chunk)
+    public static ChunkResult map(Chunk chunk)
     {
-        // Get the waypoints from the chunk
-        ArrayList<Waypoint> waypoints = chunk.getWaypoints();
+        return map(chunk, null);
+    }
+
+    /**
+     * Maps a chunk to its activity stats, detecting the segments it contains if the master did not.
+     *
+     * @param chunk the chunk to be mapped.
+     * @param segments the registered segments, only used if the chunk detects its segments
+     * @return the chunk's result, carrying the client ID and the chunk's activity stats.
+     * @throws IllegalStateException if the chunk detects its segments but the registered segments are not known
+     */
+    public static ChunkResult map(Chunk chunk, Collection<Segment> segments)
+    {
+        long start = System.nanoTime();
+
+        // Get the track of waypoints from the chunk
+        Track track = chunk.getTrack();
 
         // create a new ActivityStats instance with the route ID of the chunk
-        ActivityStats stats = new ActivityStats(chunk.getRoute().getRouteID());
+        ActivityStats stats = new ActivityStats(chunk.getRouteID());
 
         // register the segments starting from the first waypoint of the chunk, if it is also the first waypoint of a segment
-        Waypoint previousWaypoint = waypoints.get(0);
-        if (chunk.isFirstSegmentIndex(previousWaypoint))
+        if (chunk.isFirstSegmentIndex(0))
         {
-            stats.registerSegments(chunk.getSegmentsStartingFrom(previousWaypoint));
+            stats.registerSegments(chunk.getSegmentsStartingFrom(0));
         }
 
         // iterate over the waypoints and update the activity stats accordingly
-        for (Waypoint currentWaypoint : waypoints.subList(1, waypoints.size()))
+        for (int current = 1; current < track.size(); current++)
         {
+            int previous = current - 1;
+
             // Register the segments starting from the current waypoint, if it is also the first waypoint of a segment
-            if (chunk.isFirstSegmentIndex(currentWaypoint))
+            if (chunk.isFirstSegmentIndex(current))
             {
-                stats.registerSegments(chunk.getSegmentsStartingFrom(currentWaypoint));
+                stats.registerSegments(chunk.getSegmentsStartingFrom(current));
             }
 
             // If the current waypoint is inside any of the chunk segments, update the segment stats
-            if (chunk.isInsideSegment(currentWaypoint))
+            if (chunk.isInsideSegment(current))
             {
-                stats.updateSegmentStats(previousWaypoint, currentWaypoint, chunk.getSegmentsContainingWaypoint(currentWaypoint));
+                stats.updateSegmentStats(track, previous, current, chunk.getSegmentsContainingWaypoint(current));
             }
 
             // Update the activity stats
-            stats.updateStats(previousWaypoint, currentWaypoint);
-            previousWaypoint = currentWaypoint;
+            stats.updateStats(track, previous, current);
+        }
+
+        if (chunk.detectsSegments())
+        {
+            if (segments == null)
+            {
+                throw new IllegalStateException("The registered segments were not received from the master.");
+            }
+            detectSegments(chunk, segments, stats);
         }
 
         // Finalize the activity stats
         stats.finaliseStats();
 
-        // Return a pair of client ID and the chunk's activity stats
-        return new Pair<>(clientID, new Pair<>(chunk, stats));
+        // Return the chunk's activity stats along with the client ID, and the time it took to map them
+        return new ChunkResult(chunk, stats, System.nanoTime() - start);
+    }
+
+    /**
+     * Looks for the first occurrence of each segment starting in the chunk, the same way Route.checkForSegment looks
+     * for it in the whole route. An occurrence may run past the end of the chunk, into its lookahead.
+     * The stats of each occurrence found carry the index of the route it starts at, so that the reducer keeps the
+     * first occurrence in the route amongst the ones found in each chunk.
+     *
+     * @param chunk the chunk to look into
+     * @param segments the registered segments
+     * @param stats the stats of the chunk, the stats of the segments found are added to
+     */
+    private static void detectSegments(Chunk chunk, Collection<Segment> segments, ActivityStats stats)
+    {
+        Track track = chunk.getTrack();
+        Track lookahead = chunk.getLookahead();
+        int available = track.size() + lookahead.size();
+
+        for (Segment segment : segments)
+        {
+            Track segmentTrack = segment.getTrack();
+            int length = segmentTrack.size();
+            if (length == 0)
+            {
+                continue;
+            }
+
+            int maxCandidate = Math.min(chunk.getSegmentStarts() - 1, available - length);
+            nextCandidate:
+            for (int candidate = 0; candidate <= maxCandidate; candidate++)
+            {
+                for (int i = 0; i < length; i++)
+                {
+                    int index = candidate + i;
+                    boolean matches = (index < track.size())
+                            ? track.matches(index, segmentTrack, i)
+                            : lookahead.matches(index - track.size(), segmentTrack, i);
+                    if (!matches)
+                    {
+                        continue nextCandidate;
+                    }
+                }
+
+                SegmentActivityStats segmentStats = new SegmentActivityStats(segment.getSegmentID(),
+                        segment.getFileName(), chunk.getStartIndex() + candidate);
+                segmentStats.updateTime(minutesBetween(timeAt(track, lookahead, candidate),
+                        timeAt(track, lookahead, candidate + length - 1)));
+                stats.getSegmentStatsList().add(segmentStats);
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the timestamp of a waypoint of the chunk, or of its lookahead for the indices past the end of the chunk
+     */
+    private static long timeAt(Track track, Track lookahead, int index)
+    {
+        return (index < track.size()) ? track.getTime(index) : lookahead.getTime(index - track.size());
+    }
+
+    /**
+     * @return the time between two timestamps in minutes, as ActivityCalculator measures it
+     */
+    private static double minutesBetween(long from, long to)
+    {
+        return ((to - from) / 1000.0) / 60.0;
     }
-}
\ No newline at end of file
+}
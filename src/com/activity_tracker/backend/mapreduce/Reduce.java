@@ -1,72 +1,91 @@
 package com.activity_tracker.backend.mapreduce;
 
 import com.activity_tracker.backend.calculations.ActivityStats;
-import com.activity_tracker.backend.calculations.SegmentActivityStats;
-import com.activity_tracker.backend.misc.Pair;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class Reduce
 {
 
     /**
      * Reduces all the intermediate results received from the workers into a single result that will be sent to the client.
-     * @param intermediateResults the intermediate results to reduce
+     * @param routeID the id of the route the results belong to
+     * @param intermediateResults the intermediate results to reduce, covering every chunk of the route once
      * @return the reduced activity statistics
      */
-    public static ActivityStats reduce(Pair<Integer, ArrayList<ActivityStats>> intermediateResults)
+    public static ActivityStats reduce(int routeID, List<ChunkResult> intermediateResults)
     {
-        if (intermediateResults == null || intermediateResults.getValue() == null)
+        if (intermediateResults == null)
         {
-            throw new IllegalArgumentException("The pair passed as argument to reduce has an invalid value.");
+            throw new IllegalArgumentException("The list passed as argument to reduce is null.");
         }
 
-        if (intermediateResults.getValue().isEmpty())
+        if (intermediateResults.isEmpty())
         {
             throw new RuntimeException("The list of stats passed to reduce appears empty.");
         }
 
-        // activityStatsList: The value of the pair. Represents the results for each chunk of the route.
-        ArrayList<ActivityStats> activityStatsList = intermediateResults.getValue();
-
-        double elevation = 0;
-        double time = 0;
-        double distance = 0;
-        double totalSpeed = 0;
+        return merge(routeID, intermediateResults);
+    }
 
-        int routeID = intermediateResults.getKey();
-        // finalSegmentStats: contains the statistics for each segment the route contains
-        ArrayList<SegmentActivityStats> finalSegmentStats = new ArrayList<>();
+    /**
+     * Combines the results of several chunks of the same route into a single result, with the same logic as reduce.
+     * Used by the workers to send the master one result for all the chunks of a route they mapped together.
+     * @param results the results to combine, all of the same route and covering different chunks
+     * @return a result covering all the chunks of the results
+     * @throws IllegalArgumentException if the list is empty or the results belong to different routes
+     */
+    public static ChunkResult combine(List<ChunkResult> results)
+    {
+        if (results == null || results.isEmpty())
+        {
+            throw new IllegalArgumentException("There are no results to combine.");
+        }
+        ChunkResult first = results.get(0);
+        if (results.size() == 1)
+        {
+            return first;
+        }
 
-        // iterating over the stats returned by each chunk of our route
-        for (ActivityStats stats : activityStatsList)
+        int chunkCount = 0;
+        long mapNanos = 0;
+        for (ChunkResult result : results)
         {
-            // reduce the stats of each chunk into a single result
-            elevation += stats.getElevation();
-            time += stats.getTime();
-            distance += stats.getDistance();
-            totalSpeed += stats.getSpeed();
+            if (result.getRouteID() != first.getRouteID())
+            {
+                throw new IllegalArgumentException("Only the results of the same route can be combined.");
+            }
+            chunkCount += result.getChunkCount();
+            mapNanos += result.getMapNanos();
+        }
 
-            // get the list of segment stats that this chunk contained
-            ArrayList<SegmentActivityStats> chunkSegmentStats = stats.getSegmentStatsList();
+        int[] chunkIndices = new int[chunkCount];
+        int filled = 0;
+        for (ChunkResult result : results)
+        {
+            System.arraycopy(result.getChunkIndices(), 0, chunkIndices, filled, result.getChunkCount());
+            filled += result.getChunkCount();
+        }
+        Arrays.sort(chunkIndices);
 
-            // for each segment stats in the list above:
-            for (SegmentActivityStats segmentStats : chunkSegmentStats)
-            {
-                // check if these segment stats are already included in our final stats (by comparing their segmentID)
-                int segmentStatsIndex = finalSegmentStats.indexOf(segmentStats);
+        ActivityStats stats = merge(first.getRouteID(), results);
+        return new ChunkResult(first.getClientID(), first.getRouteID(), chunkIndices, first.getTotalChunks(), stats,
+                mapNanos, false);
+    }
 
-                // if these segment stats are not included in our final stats yet, add them
-                if (segmentStatsIndex == -1)
-                {
-                    finalSegmentStats.add(segmentStats);
-                    continue;
-                }
-                // else (meaning we have already found other stats about this segment), update the total time
-                SegmentActivityStats currentSegmentStats = finalSegmentStats.get(segmentStatsIndex);
-                currentSegmentStats.updateTime(segmentStats.getTime());
-            }
+    /**
+     * Sums the distance, elevation and time of the results and the time of their segments, and averages their speed.
+     * The speed of a result is the average speed of the chunks it covers, so it is weighted by the number of them,
+     * which gives the same speed whether or not the results were combined before.
+     */
+    private static ActivityStats merge(int routeID, List<ChunkResult> results)
+    {
+        RouteAccumulator accumulator = new RouteAccumulator(routeID, 0);
+        for (ChunkResult result : results)
+        {
+            accumulator.fold(result.getStats(), result.getChunkCount());
         }
-        return new ActivityStats(routeID, distance, totalSpeed / activityStatsList.size(), elevation, time, finalSegmentStats);
+        return accumulator.toStats();
     }
 }
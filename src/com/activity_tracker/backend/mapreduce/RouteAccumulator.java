@@ -0,0 +1,178 @@
+package com.activity_tracker.backend.mapreduce;
+
+import com.activity_tracker.backend.calculations.ActivityStats;
+import com.activity_tracker.backend.calculations.SegmentActivityStats;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * RouteAccumulator: The reduce phase of a single route, done incrementally. The stats of every chunk result are
+ * folded into running totals as soon as the result arrives, so the results themselves do not have to be kept until
+ * the last one arrives. The route is complete once every one of its chunks has been received.
+ *
+ * A chunk may be received more than once when it was sent to more than one worker. The first result of a chunk wins
+ * and the later ones are ignored, with one exception: the result of a copy of a chunk is held back instead of being
+ * folded, since the original may still arrive combined with the results of other chunks, in which case the combined
+ * result replaces the copy.
+ *
+ * An accumulator is not thread safe, the results of a route must be added while holding its lock.
+ */
+public class RouteAccumulator
+{
+    private final int routeID;
+    private final int totalChunks;
+    // received: the indices of the chunks received so far, whether folded or held back
+    private final BitSet received;
+    // heldCopies: the results of copies of chunks, by chunk index, waiting for the route to complete
+    private final HashMap<Integer, ChunkResult> heldCopies = new HashMap<>();
+
+    // the running totals of the stats folded so far
+    private double distance;
+    private double elevation;
+    private double time;
+    // speedSum, chunks: the speeds of the chunks folded so far, weighted by the number of chunks of every result
+    private double speedSum;
+    private int chunks;
+    // segmentStats: the statistics of every segment the route contains, one per segment
+    private final ArrayList<SegmentActivityStats> segmentStats = new ArrayList<>();
+
+    /**
+     * @param routeID the id of the route
+     * @param totalChunks the number of chunks the route was split into
+     */
+    public RouteAccumulator(int routeID, int totalChunks)
+    {
+        this.routeID = routeID;
+        this.totalChunks = totalChunks;
+        this.received = new BitSet(totalChunks);
+    }
+
+    /**
+     * Adds the result of one or more chunks of the route.
+     * @param result the result received
+     * @return false if the result was ignored, because its chunks have already been received
+     * @throws IllegalArgumentException if the result covers chunks the route does not have
+     */
+    public boolean add(ChunkResult result)
+    {
+        int[] chunkIndices = result.getChunkIndices();
+        // the chunks of the result that were already received, which is only allowed if they are all held copies
+        ArrayList<Integer> replaced = new ArrayList<>();
+        for (int chunkIndex : chunkIndices)
+        {
+            if (chunkIndex < 0 || chunkIndex >= totalChunks)
+            {
+                throw new IllegalArgumentException("Chunk " + chunkIndex + " is not a chunk of route " + routeID);
+            }
+            if (!received.get(chunkIndex))
+            {
+                continue;
+            }
+            if (chunkIndices.length == 1 || !heldCopies.containsKey(chunkIndex))
+            {
+                return false;
+            }
+            replaced.add(chunkIndex);
+        }
+        for (int chunkIndex : replaced)
+        {
+            heldCopies.remove(chunkIndex);
+        }
+
+        for (int chunkIndex : chunkIndices)
+        {
+            received.set(chunkIndex);
+        }
+        if (result.isCopy())
+        {
+            heldCopies.put(chunkIndices[0], result);
+        }
+        else
+        {
+            fold(result.getStats(), result.getChunkCount());
+        }
+        return true;
+    }
+
+    /**
+     * @return true once every chunk of the route has been received
+     */
+    public boolean isComplete()
+    {
+        return received.cardinality() == totalChunks;
+    }
+
+    /**
+     * Folds the copies held back, and returns the stats of the whole route.
+     * @return the reduced activity statistics of the route
+     * @throws IllegalStateException if the route is not complete
+     */
+    public ActivityStats finish()
+    {
+        if (!isComplete())
+        {
+            throw new IllegalStateException("Route " + routeID + " still has chunks missing.");
+        }
+        Iterator<Map.Entry<Integer, ChunkResult>> copies = heldCopies.entrySet().iterator();
+        while (copies.hasNext())
+        {
+            ChunkResult copy = copies.next().getValue();
+            fold(copy.getStats(), copy.getChunkCount());
+            copies.remove();
+        }
+        return toStats();
+    }
+
+    /**
+     * Adds stats to the running totals.
+     * @param stats the stats of one or more chunks
+     * @param weight the number of chunks the stats cover, as their speed is the average speed of those chunks
+     */
+    void fold(ActivityStats stats, int weight)
+    {
+        elevation += stats.getElevation();
+        time += stats.getTime();
+        distance += stats.getDistance();
+        speedSum += stats.getSpeed() * weight;
+        chunks += weight;
+
+        // for each segment the chunks contained:
+        for (SegmentActivityStats chunkSegmentStats : stats.getSegmentStatsList())
+        {
+            // check if these segment stats are already included in our final stats (by comparing their segmentID)
+            int segmentStatsIndex = segmentStats.indexOf(chunkSegmentStats);
+
+            // if these segment stats are not included in our final stats yet, add them
+            if (segmentStatsIndex == -1)
+            {
+                segmentStats.add(chunkSegmentStats);
+                continue;
+            }
+            // if the workers detected the segment, each one found a whole occurrence of it: the route keeps the one
+            // starting first, as the master would have when detecting it
+            SegmentActivityStats found = segmentStats.get(segmentStatsIndex);
+            if (found.getStartIndex() >= 0 && chunkSegmentStats.getStartIndex() >= 0)
+            {
+                if (chunkSegmentStats.getStartIndex() < found.getStartIndex())
+                {
+                    segmentStats.set(segmentStatsIndex, chunkSegmentStats);
+                }
+                continue;
+            }
+            // else (meaning we have already found other stats about this segment), update the total time
+            found.updateTime(chunkSegmentStats.getTime());
+        }
+    }
+
+    /**
+     * @return the stats folded so far, with the speed averaged over the chunks
+     */
+    ActivityStats toStats()
+    {
+        return new ActivityStats(routeID, distance, (chunks == 0) ? 0 : speedSum / chunks, elevation, time, segmentStats);
+    }
+}
@@ -0,0 +1,42 @@
+package com.activity_tracker.backend.misc;
+
+import java.io.Serializable;
+
+/**
+ * This class is sent by a worker to the master in place of the result of a chunk it could not map. The route of the
+ * chunk cannot be reduced without it, so the master fails the route instead of waiting for it forever.
+ */
+public class ChunkFailure implements Serializable
+{
+    private final int routeID;
+    private final int chunkIndex;
+    // reason: why the chunk could not be mapped, null if unknown
+    private final String reason;
+
+    /**
+     * @param routeID the id of the route of the chunk
+     * @param chunkIndex the index of the chunk in its route
+     * @param reason why the chunk could not be mapped, null if unknown
+     */
+    public ChunkFailure(int routeID, int chunkIndex, String reason)
+    {
+        this.routeID = routeID;
+        this.chunkIndex = chunkIndex;
+        this.reason = reason;
+    }
+
+    public int getRouteID()
+    {
+        return routeID;
+    }
+
+    public int getChunkIndex()
+    {
+        return chunkIndex;
+    }
+
+    public String getReason()
+    {
+        return reason;
+    }
+}
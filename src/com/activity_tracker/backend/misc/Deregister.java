@@ -0,0 +1,11 @@
+package com.activity_tracker.backend.misc;
+
+import java.io.Serializable;
+
+/**
+ * This class is sent by a worker to the master when it is about to leave. The master stops giving it chunks, waits for
+ * the chunks it already has to return and then closes the connection
+ */
+public class Deregister implements Serializable
+{
+}
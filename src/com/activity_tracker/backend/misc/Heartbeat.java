@@ -0,0 +1,11 @@
+package com.activity_tracker.backend.misc;
+
+import java.io.Serializable;
+
+/**
+ * This class is sent periodically by a worker to the master, so that the master can tell a worker that is alive but
+ * idle apart from one that has died or hung
+ */
+public class Heartbeat implements Serializable
+{
+}
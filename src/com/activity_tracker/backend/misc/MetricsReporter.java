@@ -0,0 +1,87 @@
+package com.activity_tracker.backend.misc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * MetricsReporter: Periodically prints a set of named counters to the console, so that the load of a component
+ * (e.g. the queue depth of a worker) can be followed while it is running.
+ * Metrics are registered as suppliers, which are read every time a report is printed.
+ */
+public class MetricsReporter
+{
+    // name: the name of the component the metrics belong to, printed in front of every report
+    private final String name;
+    // intervalSeconds: the number of seconds between two reports, the reporter is disabled if it is not positive
+    private final long intervalSeconds;
+    // metrics: the registered metrics, kept in the order they were registered in
+    private final Map<String, Supplier<? extends Number>> metrics = new LinkedHashMap<>();
+
+    /**
+     * @param name the name of the component the metrics belong to
+     * @param intervalSeconds the number of seconds between two reports, 0 or less to disable reporting
+     */
+    public MetricsReporter(String name, long intervalSeconds)
+    {
+        this.name = name;
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    /**
+     * Registers a metric to be included in every report.
+     * @param metric the name of the metric
+     * @param value a supplier returning the current value of the metric
+     * @throws IllegalStateException if a metric with the same name is already registered
+     */
+    public synchronized void register(String metric, Supplier<? extends Number> value)
+    {
+        if (metrics.containsKey(metric))
+        {
+            throw new IllegalStateException("Metric " + metric + " is already registered.");
+        }
+        metrics.put(metric, value);
+    }
+
+    /**
+     * @return a single line containing the current value of every metric
+     */
+    public synchronized String report()
+    {
+        StringBuilder report = new StringBuilder(name).append(" metrics:");
+        for (Map.Entry<String, Supplier<? extends Number>> metric : metrics.entrySet())
+        {
+            report.append(' ').append(metric.getKey()).append('=').append(metric.getValue().get());
+        }
+        return report.toString();
+    }
+
+    /**
+     * Starts a daemon thread that prints a report every intervalSeconds. Does nothing if reporting is disabled.
+     */
+    public void start()
+    {
+        if (intervalSeconds <= 0)
+        {
+            return;
+        }
+
+        Thread reporter = new Thread(() ->
+        {
+            while (true)
+            {
+                try
+                {
+                    Thread.sleep(intervalSeconds * 1000);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                System.out.println(report());
+            }
+        });
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+}
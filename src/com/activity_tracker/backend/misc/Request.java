@@ -0,0 +1,32 @@
+package com.activity_tracker.backend.misc;
+
+import java.io.Serializable;
+
+/**
+ * This class is used by a client to tag a message (a GPXData upload, or the name of a service) with an id of its
+ * choice. The master answers with a Response carrying the same id, so a client can send many requests without
+ * waiting for the previous ones, and match the answers, which may arrive in any order.
+ */
+public class Request implements Serializable
+{
+    // requestID: chosen by the client, should be unique among the requests it has in flight
+    private final int requestID;
+    // payload: the GPXData to upload, or the name of the service requested
+    private final Object payload;
+
+    public Request(int requestID, Object payload)
+    {
+        this.requestID = requestID;
+        this.payload = payload;
+    }
+
+    public int getRequestID()
+    {
+        return requestID;
+    }
+
+    public Object getPayload()
+    {
+        return payload;
+    }
+}
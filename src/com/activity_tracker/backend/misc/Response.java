@@ -0,0 +1,31 @@
+package com.activity_tracker.backend.misc;
+
+import java.io.Serializable;
+
+/**
+ * This class is used by the master to answer a Request, tagging the answer with the id of the request.
+ * Answers are sent as soon as they are ready, so they do not necessarily arrive in the order of the requests.
+ */
+public class Response implements Serializable
+{
+    // requestID: the id of the request this is the answer to
+    private final int requestID;
+    // payload: the ActivityStats of an upload, the answer of a service, or "INVALID" if the request was rejected
+    private final Object payload;
+
+    public Response(int requestID, Object payload)
+    {
+        this.requestID = requestID;
+        this.payload = payload;
+    }
+
+    public int getRequestID()
+    {
+        return requestID;
+    }
+
+    public Object getPayload()
+    {
+        return payload;
+    }
+}
@@ -0,0 +1,29 @@
+package com.activity_tracker.backend.misc;
+
+import com.activity_tracker.backend.parser.Segment;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * This class is sent by the master to a worker as soon as it connects, when the workers detect the segments in the
+ * chunks they map. It holds every registered segment, with the ids the master gave them.
+ */
+public class SegmentCatalogue implements Serializable
+{
+    private final ArrayList<Segment> segments;
+
+    /**
+     * @param segments the registered segments
+     */
+    public SegmentCatalogue(Collection<Segment> segments)
+    {
+        this.segments = new ArrayList<>(segments);
+    }
+
+    public ArrayList<Segment> getSegments()
+    {
+        return segments;
+    }
+}
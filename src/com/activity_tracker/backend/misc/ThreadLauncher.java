@@ -0,0 +1,104 @@
+package com.activity_tracker.backend.misc;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Properties;
+
+/**
+ * ThreadLauncher: Starts the threads running the blocking handlers of the master (one per client, worker, route
+ * and reduction), either as platform threads or as virtual threads, depending on the thread_mode set in the config.
+ * <p>
+ * The virtual mode needs Java 21 or later: Thread.startVirtualThread does not exist before, so on older runtimes the
+ * launcher always falls back to platform threads, and says so when the master starts. The same build runs everywhere.
+ * Virtual threads are always daemons, so threads that must keep the process alive (e.g. the threads accepting
+ * connections) should not be started through the launcher.
+ * <p>
+ * A virtual thread blocking while it holds a monitor holds on to its carrier thread too, so the handlers wait with
+ * java.util.concurrent locks and conditions rather than with synchronized and wait. The monitors left only guard
+ * short sections that never block.
+ */
+public class ThreadLauncher
+{
+    // startVirtualThread: Thread.startVirtualThread(Runnable), or null if virtual threads are not used
+    private static final MethodHandle startVirtualThread = loadVirtualThreadLauncher();
+
+    /**
+     * Starts a new thread running the given task.
+     * @param task the task to run
+     * @param name the name of the thread
+     * @return the started thread
+     */
+    public static Thread start(Runnable task, String name)
+    {
+        if (startVirtualThread != null)
+        {
+            try
+            {
+                Thread thread = (Thread) startVirtualThread.invokeExact(task);
+                thread.setName(name);
+                return thread;
+            }
+            catch (Throwable e)
+            {
+                throw new RuntimeException("Could not start virtual thread " + name, e);
+            }
+        }
+
+        Thread thread = new Thread(task, name);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @return true if the threads are started as virtual threads
+     */
+    public static boolean isVirtual()
+    {
+        return startVirtualThread != null;
+    }
+
+    /**
+     * Reads the thread mode from the configuration file and, if it is "virtual", looks up the method starting
+     * virtual threads.
+     * @return the method handle, or null if platform threads should be used
+     */
+    private static MethodHandle loadVirtualThreadLauncher()
+    {
+        String mode = "platform";
+        try
+        {
+            Properties config = new Properties();
+            config.load(new FileInputStream("config.properties"));
+            mode = config.getProperty("thread_mode", "platform").trim().toLowerCase();
+        }
+        catch (IOException e)
+        {
+            System.out.println("ThreadLauncher: Could not load config, using platform threads.");
+        }
+
+        if (!mode.equals("virtual"))
+        {
+            return null;
+        }
+
+        try
+        {
+            MethodHandle handle = MethodHandles.publicLookup().findStatic(Thread.class, "startVirtualThread",
+                    MethodType.methodType(Thread.class, Runnable.class));
+            // On the runtimes where virtual threads are a preview feature, this fails unless previews are enabled
+            Thread probe = (Thread) handle.invokeExact((Runnable) () -> {});
+            probe.join();
+            System.out.println("ThreadLauncher: Using virtual threads.");
+            return handle;
+        }
+        catch (Throwable e)
+        {
+            System.out.println("ThreadLauncher: Virtual threads need Java 21 or later, this runtime is Java "
+                    + Runtime.version().feature() + ", using platform threads.");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.activity_tracker.backend.misc;
+
+import java.io.Serializable;
+
+/**
+ * This class is sent by a worker to the master as soon as it connects, to describe how much work it can take
+ */
+public class WorkerInfo implements Serializable
+{
+    // capacity: the relative weight of the worker, a worker with twice the capacity is given twice the work
+    private final int capacity;
+
+    /**
+     * @param capacity the relative weight of the worker
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public WorkerInfo(int capacity)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("The capacity of a worker must be positive.");
+        }
+        this.capacity = capacity;
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+}
@@ -0,0 +1,83 @@
+package com.activity_tracker.backend.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * BinaryMessageChannel: A message channel that sends every message as a frame of the binary protocol:
+ * <pre>
+ *     int  length   the number of bytes that follow
+ *     byte version  MessageCodec.PROTOCOL_VERSION
+ *     byte type     the type of the message, see MessageCodec
+ *     ...  payload  the message, as written by MessageCodec
+ * </pre>
+ */
+public class BinaryMessageChannel implements MessageChannel
+{
+    private final DataOutputStream out;
+    private final DataInputStream in;
+
+    // payloadBuffer: reused between writes to encode the payload of each frame before its length is known
+    private final ByteArrayOutputStream payloadBuffer = new ByteArrayOutputStream(8192);
+    private final DataOutputStream payloadOut = new DataOutputStream(payloadBuffer);
+
+    /**
+     * @param socket the socket to communicate through
+     * @throws IOException if the streams of the socket could not be created
+     */
+    public BinaryMessageChannel(Socket socket) throws IOException
+    {
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+    }
+
+    @Override
+    public void write(Object message) throws IOException
+    {
+        payloadBuffer.reset();
+        byte type = MessageCodec.encode(message, payloadOut);
+        payloadOut.flush();
+
+        out.writeInt(payloadBuffer.size() + 2);
+        out.writeByte(MessageCodec.PROTOCOL_VERSION);
+        out.writeByte(type);
+        payloadBuffer.writeTo(out);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        out.flush();
+    }
+
+    @Override
+    public Object read() throws IOException, ClassNotFoundException
+    {
+        int length = in.readInt();
+        if (length < 2 || length > MessageCodec.MAX_FRAME_LENGTH)
+        {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return MessageCodec.decodeFrame(frame);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            in.close();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.activity_tracker.backend.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferPool: A pool of equally sized byte buffers, used by the non-blocking connections to read from their sockets.
+ * A connection only holds a buffer while it has bytes of an incomplete frame, so idle connections hold none.
+ */
+public class BufferPool
+{
+    // bufferSize: the capacity of every buffer of the pool
+    private final int bufferSize;
+    // maxPooled: the maximum number of free buffers kept, the rest are left to the garbage collector
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * @param bufferSize the capacity of every buffer of the pool
+     * @param maxPooled the maximum number of free buffers to keep
+     * @throws IllegalArgumentException if the buffer size is not positive or the maximum is negative
+     */
+    public BufferPool(int bufferSize, int maxPooled)
+    {
+        if (bufferSize <= 0 || maxPooled < 0)
+        {
+            throw new IllegalArgumentException("Invalid buffer pool size.");
+        }
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return a cleared buffer, taken from the pool if one is free
+     */
+    public ByteBuffer acquire()
+    {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+        {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used after it is released.
+     * @param buffer the buffer to return
+     */
+    public void release(ByteBuffer buffer)
+    {
+        if (buffer == null || buffer.capacity() != bufferSize)
+        {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled)
+        {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        buffers.offer(buffer);
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+}
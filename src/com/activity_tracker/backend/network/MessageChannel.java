@@ -0,0 +1,42 @@
+package com.activity_tracker.backend.network;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * MessageChannel: A connection over which the master, the workers and the clients exchange messages.
+ * Two implementations exist, selected through the configuration file:
+ * "binary", a versioned, length-prefixed format with hand-written codecs (see MessageCodec),
+ * and "java", which uses Java serialization through object streams.
+ */
+public interface MessageChannel extends MessageSink
+{
+    /**
+     * Blocks until the next message arrives and returns it.
+     * @return the message received
+     * @throws IOException if the connection is lost or the message is malformed
+     * @throws ClassNotFoundException if the message is of an unknown type
+     */
+    Object read() throws IOException, ClassNotFoundException;
+
+    /**
+     * Opens a channel over a connected socket.
+     * @param socket the socket to communicate through
+     * @param protocol "binary" or "java"
+     * @return the message channel
+     * @throws IOException if the streams of the socket could not be created
+     * @throws IllegalArgumentException if the protocol is unknown
+     */
+    static MessageChannel open(Socket socket, String protocol) throws IOException
+    {
+        switch (protocol.trim().toLowerCase())
+        {
+            case "binary":
+                return new BinaryMessageChannel(socket);
+            case "java":
+                return new ObjectMessageChannel(socket);
+            default:
+                throw new IllegalArgumentException("Unknown wire protocol: " + protocol);
+        }
+    }
+}
@@ -0,0 +1,658 @@
+package com.activity_tracker.backend.network;
+
+import com.activity_tracker.backend.calculations.ActivityStats;
+import com.activity_tracker.backend.calculations.SegmentActivityStats;
+import com.activity_tracker.backend.calculations.SegmentLeaderboard;
+import com.activity_tracker.backend.calculations.Statistics;
+import com.activity_tracker.backend.calculations.UserSegmentStatistics;
+import com.activity_tracker.backend.calculations.UserStatistics;
+import com.activity_tracker.backend.mapreduce.ChunkResult;
+import com.activity_tracker.backend.misc.ChunkFailure;
+import com.activity_tracker.backend.misc.Deregister;
+import com.activity_tracker.backend.misc.GPXData;
+import com.activity_tracker.backend.misc.Heartbeat;
+import com.activity_tracker.backend.misc.Request;
+import com.activity_tracker.backend.misc.Response;
+import com.activity_tracker.backend.misc.SegmentCatalogue;
+import com.activity_tracker.backend.misc.WorkerInfo;
+import com.activity_tracker.backend.parser.Chunk;
+import com.activity_tracker.backend.parser.Segment;
+import com.activity_tracker.backend.parser.SegmentInterval;
+import com.activity_tracker.backend.parser.Track;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MessageCodec: Hand-written encoders and decoders for every message the system exchanges over the binary protocol.
+ * Each message type has a one byte tag, written in the frame header by the channel, and a fixed field layout.
+ */
+public class MessageCodec
+{
+    // PROTOCOL_VERSION: bumped whenever the layout of any message changes
+    public static final byte PROTOCOL_VERSION = 6;
+
+    public static final byte STRING = 1;
+    public static final byte GPX_DATA = 2;
+    public static final byte CHUNK = 3;
+    public static final byte CHUNK_RESULT = 4;
+    public static final byte ACTIVITY_STATS = 5;
+    public static final byte LEADERBOARDS = 6;
+    public static final byte STATISTICS = 7;
+    public static final byte WORKER_INFO = 8;
+    public static final byte HEARTBEAT = 9;
+    public static final byte DEREGISTER = 10;
+    public static final byte REQUEST = 11;
+    public static final byte RESPONSE = 12;
+    public static final byte SEGMENT_CATALOGUE = 13;
+    public static final byte CHUNK_FAILURE = 14;
+
+    // MAX_FRAME_LENGTH: the biggest frame we are willing to read, to avoid allocating huge buffers for a corrupted length
+    public static final int MAX_FRAME_LENGTH = 256 * 1024 * 1024;
+
+    // WAYPOINT_BYTES: the size of a waypoint on the wire, three doubles and a long
+    private static final int WAYPOINT_BYTES = 32;
+
+    /**
+     * Writes the payload of a message.
+     * @param message the message to encode
+     * @param out the stream to write the payload to
+     * @return the type of the message
+     * @throws IOException if the payload could not be written
+     * @throws IllegalArgumentException if the message is of a type the protocol does not support
+     */
+    public static byte encode(Object message, DataOutputStream out) throws IOException
+    {
+        if (message instanceof String)
+        {
+            writeString(out, (String) message);
+            return STRING;
+        }
+        else if (message instanceof GPXData)
+        {
+            writeGPXData(out, (GPXData) message);
+            return GPX_DATA;
+        }
+        else if (message instanceof Chunk)
+        {
+            writeChunk(out, (Chunk) message);
+            return CHUNK;
+        }
+        else if (message instanceof ChunkResult)
+        {
+            writeChunkResult(out, (ChunkResult) message);
+            return CHUNK_RESULT;
+        }
+        else if (message instanceof ActivityStats)
+        {
+            writeActivityStats(out, (ActivityStats) message);
+            return ACTIVITY_STATS;
+        }
+        else if (message instanceof Statistics)
+        {
+            writeStatistics(out, (Statistics) message);
+            return STATISTICS;
+        }
+        else if (message instanceof WorkerInfo)
+        {
+            out.writeInt(((WorkerInfo) message).getCapacity());
+            return WORKER_INFO;
+        }
+        else if (message instanceof Heartbeat)
+        {
+            // a heartbeat carries no payload, its arrival is all that matters
+            return HEARTBEAT;
+        }
+        else if (message instanceof Deregister)
+        {
+            return DEREGISTER;
+        }
+        else if (message instanceof ChunkFailure)
+        {
+            ChunkFailure failure = (ChunkFailure) message;
+            out.writeInt(failure.getRouteID());
+            out.writeInt(failure.getChunkIndex());
+            writeString(out, failure.getReason());
+            return CHUNK_FAILURE;
+        }
+        else if (message instanceof Request)
+        {
+            Request request = (Request) message;
+            out.writeInt(request.getRequestID());
+            writeTagged(out, request.getPayload());
+            return REQUEST;
+        }
+        else if (message instanceof Response)
+        {
+            Response response = (Response) message;
+            out.writeInt(response.getRequestID());
+            writeTagged(out, response.getPayload());
+            return RESPONSE;
+        }
+        else if (message instanceof SegmentCatalogue)
+        {
+            writeSegmentCatalogue(out, (SegmentCatalogue) message);
+            return SEGMENT_CATALOGUE;
+        }
+        else if (isLeaderboardList(message))
+        {
+            ArrayList<?> leaderboards = (ArrayList<?>) message;
+            out.writeInt(leaderboards.size());
+            for (Object leaderboard : leaderboards)
+            {
+                writeLeaderboard(out, (SegmentLeaderboard) leaderboard);
+            }
+            return LEADERBOARDS;
+        }
+        throw new IllegalArgumentException("Cannot encode a message of type " +
+                (message == null ? "null" : message.getClass().getName()));
+    }
+
+    /**
+     * Encodes a whole frame, length prefix included, ready to be written to a socket channel.
+     * @param message the message to encode
+     * @return a buffer containing the frame, positioned at its start
+     * @throws IOException if the message could not be encoded
+     * @throws IllegalArgumentException if the message is of a type the protocol does not support
+     */
+    public static ByteBuffer encodeFrame(Object message) throws IOException
+    {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(frame);
+        // placeholders for the length, the version and the type, filled in once the payload is written
+        out.writeInt(0);
+        out.writeShort(0);
+        byte type = encode(message, out);
+        out.flush();
+
+        ByteBuffer buffer = ByteBuffer.wrap(frame.toByteArray());
+        buffer.putInt(0, buffer.capacity() - 4);
+        buffer.put(4, PROTOCOL_VERSION);
+        buffer.put(5, type);
+        return buffer;
+    }
+
+    /**
+     * Reads the message contained in a frame, without its length prefix.
+     * @param frame the version, type and payload of the frame
+     * @return the decoded message
+     * @throws IOException if the frame is malformed or of a different protocol version
+     * @throws ClassNotFoundException if the type of the message is unknown
+     */
+    public static Object decodeFrame(byte[] frame) throws IOException, ClassNotFoundException
+    {
+        if (frame.length < 2)
+        {
+            throw new IOException("Frame too short.");
+        }
+        if (frame[0] != PROTOCOL_VERSION)
+        {
+            throw new IOException("Unsupported protocol version " + frame[0] + ", expected " + PROTOCOL_VERSION);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame, 2, frame.length - 2));
+        return decode(frame[1], in);
+    }
+
+    /**
+     * Reads the payload of a message of the given type.
+     * @param type the type of the message
+     * @param in the stream to read the payload from
+     * @return the decoded message
+     * @throws IOException if the payload is malformed
+     * @throws ClassNotFoundException if the type is unknown
+     */
+    public static Object decode(byte type, DataInputStream in) throws IOException, ClassNotFoundException
+    {
+        switch (type)
+        {
+            case STRING:
+                return readString(in);
+            case GPX_DATA:
+                return readGPXData(in);
+            case CHUNK:
+                return readChunk(in);
+            case CHUNK_RESULT:
+                return readChunkResult(in);
+            case ACTIVITY_STATS:
+                return readActivityStats(in);
+            case STATISTICS:
+                return readStatistics(in);
+            case WORKER_INFO:
+                return new WorkerInfo(in.readInt());
+            case HEARTBEAT:
+                return new Heartbeat();
+            case DEREGISTER:
+                return new Deregister();
+            case CHUNK_FAILURE:
+                int routeID = in.readInt();
+                int chunkIndex = in.readInt();
+                return new ChunkFailure(routeID, chunkIndex, readString(in));
+            case REQUEST:
+                int requestID = in.readInt();
+                return new Request(requestID, readTagged(in));
+            case RESPONSE:
+                int responseID = in.readInt();
+                return new Response(responseID, readTagged(in));
+            case SEGMENT_CATALOGUE:
+                return readSegmentCatalogue(in);
+            case LEADERBOARDS:
+                int count = readCount(in);
+                ArrayList<SegmentLeaderboard> leaderboards = new ArrayList<>(count);
+                for (int i = 0; i < count; i++)
+                {
+                    leaderboards.add(readLeaderboard(in));
+                }
+                return leaderboards;
+            default:
+                throw new ClassNotFoundException("Unknown message type: " + type);
+        }
+    }
+
+    // Tagged payloads (of requests and responses): the type of the payload followed by its own layout.
+    // A request or a response never contains another one.
+
+    private static void writeTagged(DataOutputStream out, Object payload) throws IOException
+    {
+        if (payload instanceof Request || payload instanceof Response)
+        {
+            throw new IllegalArgumentException("Requests and responses cannot be nested.");
+        }
+        // the type is only known once the payload is encoded, so the payload is encoded to a buffer first
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        DataOutputStream payloadOut = new DataOutputStream(buffer);
+        byte type = encode(payload, payloadOut);
+        payloadOut.flush();
+        out.writeByte(type);
+        buffer.writeTo(out);
+    }
+
+    private static Object readTagged(DataInputStream in) throws IOException, ClassNotFoundException
+    {
+        byte type = in.readByte();
+        if (type == REQUEST || type == RESPONSE)
+        {
+            throw new IOException("Requests and responses cannot be nested.");
+        }
+        return decode(type, in);
+    }
+
+    private static boolean isLeaderboardList(Object message)
+    {
+        if (!(message instanceof ArrayList<?>))
+        {
+            return false;
+        }
+        for (Object element : (ArrayList<?>) message)
+        {
+            if (!(element instanceof SegmentLeaderboard))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Strings: length in bytes followed by UTF-8 bytes, a length of -1 marks null
+
+    static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        if (value == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length == -1)
+        {
+            return null;
+        }
+        if (length < 0 || length > in.available())
+        {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the size of a collection, checking that it is not negative.
+     */
+    static int readCount(DataInputStream in) throws IOException
+    {
+        int count = in.readInt();
+        if (count < 0)
+        {
+            throw new IOException("Invalid count: " + count);
+        }
+        return count;
+    }
+
+    private static void writeGPXData(DataOutputStream out, GPXData gpxData) throws IOException
+    {
+        writeString(out, gpxData.getFileName());
+        byte[] content = gpxData.getFileContent();
+        out.writeInt(content.length);
+        out.write(content);
+    }
+
+    private static GPXData readGPXData(DataInputStream in) throws IOException
+    {
+        String fileName = readString(in);
+        int length = readCount(in);
+        if (length > in.available())
+        {
+            throw new IOException("Invalid file length: " + length);
+        }
+        byte[] content = new byte[length];
+        in.readFully(content);
+        return new GPXData(fileName, content);
+    }
+
+    private static void writeChunk(DataOutputStream out, Chunk chunk) throws IOException
+    {
+        out.writeInt(chunk.getRouteID());
+        out.writeInt(chunk.getClientID());
+        out.writeInt(chunk.getChunkIndex());
+        out.writeInt(chunk.getTotalChunks());
+        out.writeInt(chunk.getStartIndex());
+        out.writeInt(chunk.getEndIndex());
+        writeTrack(out, chunk.getTrack());
+
+        ArrayList<SegmentInterval> segments = chunk.getSegments();
+        out.writeInt(segments.size());
+        for (SegmentInterval segment : segments)
+        {
+            out.writeInt(segment.getSegmentID());
+            writeString(out, segment.getFileName());
+            out.writeInt(segment.getStartIndex());
+            out.writeInt(segment.getEndIndex());
+        }
+        out.writeBoolean(chunk.isCombinable());
+        out.writeBoolean(chunk.detectsSegments());
+        if (chunk.detectsSegments())
+        {
+            writeTrack(out, chunk.getLookahead());
+        }
+    }
+
+    private static Chunk readChunk(DataInputStream in) throws IOException
+    {
+        int routeID = in.readInt();
+        int clientID = in.readInt();
+        int chunkIndex = in.readInt();
+        int totalChunks = in.readInt();
+        int startIndex = in.readInt();
+        int endIndex = in.readInt();
+        Track track = readTrack(in);
+
+        int segmentCount = readCount(in);
+        ArrayList<SegmentInterval> segments = new ArrayList<>(segmentCount);
+        for (int i = 0; i < segmentCount; i++)
+        {
+            int segmentID = in.readInt();
+            String fileName = readString(in);
+            int segmentStart = in.readInt();
+            int segmentEnd = in.readInt();
+            segments.add(new SegmentInterval(segmentID, fileName, segmentStart, segmentEnd));
+        }
+        boolean combinable = in.readBoolean();
+        Track lookahead = in.readBoolean() ? readTrack(in) : null;
+        Chunk chunk = new Chunk(routeID, clientID, chunkIndex, totalChunks, startIndex, endIndex, track, segments,
+                lookahead);
+        chunk.setCombinable(combinable);
+        return chunk;
+    }
+
+    private static void writeSegmentCatalogue(DataOutputStream out, SegmentCatalogue catalogue) throws IOException
+    {
+        ArrayList<Segment> segments = catalogue.getSegments();
+        out.writeInt(segments.size());
+        for (Segment segment : segments)
+        {
+            out.writeInt(segment.getSegmentID());
+            writeString(out, segment.getFileName());
+            writeTrack(out, segment.getTrack());
+        }
+    }
+
+    private static SegmentCatalogue readSegmentCatalogue(DataInputStream in) throws IOException
+    {
+        int segmentCount = readCount(in);
+        ArrayList<Segment> segments = new ArrayList<>(segmentCount);
+        for (int i = 0; i < segmentCount; i++)
+        {
+            int segmentID = in.readInt();
+            String fileName = readString(in);
+            segments.add(new Segment(segmentID, readTrack(in), fileName));
+        }
+        return new SegmentCatalogue(segments);
+    }
+
+    // Tracks are written column by column, the same way they are laid out in memory. The columns are packed into
+    // a single array before being written, writing them value by value through the stream is several times slower.
+
+    private static void writeTrack(DataOutputStream out, Track track) throws IOException
+    {
+        int size = track.size();
+        ByteBuffer columns = ByteBuffer.allocate(size * WAYPOINT_BYTES);
+        for (int i = 0; i < size; i++)
+        {
+            columns.putDouble(track.getLatitude(i));
+        }
+        for (int i = 0; i < size; i++)
+        {
+            columns.putDouble(track.getLongitude(i));
+        }
+        for (int i = 0; i < size; i++)
+        {
+            columns.putDouble(track.getElevation(i));
+        }
+        for (int i = 0; i < size; i++)
+        {
+            columns.putLong(track.getTime(i));
+        }
+        out.writeInt(size);
+        out.write(columns.array());
+    }
+
+    private static Track readTrack(DataInputStream in) throws IOException
+    {
+        int size = readCount(in);
+        if (size > in.available() / WAYPOINT_BYTES)
+        {
+            throw new IOException("Invalid track size: " + size);
+        }
+        byte[] bytes = new byte[size * WAYPOINT_BYTES];
+        in.readFully(bytes);
+        ByteBuffer columns = ByteBuffer.wrap(bytes);
+
+        // the absolute offsets of the columns in the buffer
+        int longitudes = size * 8;
+        int elevations = size * 16;
+        int times = size * 24;
+
+        Track track = new Track(size);
+        for (int i = 0; i < size; i++)
+        {
+            track.add(columns.getDouble(i * 8), columns.getDouble(longitudes + i * 8),
+                    columns.getDouble(elevations + i * 8), columns.getLong(times + i * 8));
+        }
+        return track;
+    }
+
+    private static void writeChunkResult(DataOutputStream out, ChunkResult result) throws IOException
+    {
+        out.writeInt(result.getClientID());
+        out.writeInt(result.getRouteID());
+        int[] chunkIndices = result.getChunkIndices();
+        out.writeInt(chunkIndices.length);
+        for (int chunkIndex : chunkIndices)
+        {
+            out.writeInt(chunkIndex);
+        }
+        out.writeInt(result.getTotalChunks());
+        out.writeLong(result.getMapNanos());
+        out.writeBoolean(result.isCopy());
+        writeActivityStats(out, result.getStats());
+    }
+
+    private static ChunkResult readChunkResult(DataInputStream in) throws IOException
+    {
+        int clientID = in.readInt();
+        int routeID = in.readInt();
+        int chunkCount = readCount(in);
+        if (chunkCount > in.available() / 4)
+        {
+            throw new IOException("Invalid chunk count: " + chunkCount);
+        }
+        int[] chunkIndices = new int[chunkCount];
+        for (int i = 0; i < chunkCount; i++)
+        {
+            chunkIndices[i] = in.readInt();
+        }
+        int totalChunks = in.readInt();
+        long mapNanos = in.readLong();
+        boolean copy = in.readBoolean();
+        ActivityStats stats = readActivityStats(in);
+        return new ChunkResult(clientID, routeID, chunkIndices, totalChunks, stats, mapNanos, copy);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void writeActivityStats(DataOutputStream out, ActivityStats stats) throws IOException
+    {
+        out.writeInt(stats.getRouteID());
+        out.writeDouble(stats.getDistance());
+        out.writeDouble(stats.getSpeed());
+        out.writeDouble(stats.getElevation());
+        out.writeDouble(stats.getTime());
+
+        ArrayList<SegmentActivityStats> segmentStatsList = stats.getSegmentStatsList();
+        out.writeInt(segmentStatsList.size());
+        for (SegmentActivityStats segmentStats : segmentStatsList)
+        {
+            out.writeInt(segmentStats.getSegmentID());
+            writeString(out, segmentStats.getFileName());
+            out.writeInt(segmentStats.getStartIndex());
+            out.writeDouble(segmentStats.getTime());
+        }
+    }
+
+    private static ActivityStats readActivityStats(DataInputStream in) throws IOException
+    {
+        int routeID = in.readInt();
+        double distance = in.readDouble();
+        double speed = in.readDouble();
+        double elevation = in.readDouble();
+        double time = in.readDouble();
+
+        int segmentCount = readCount(in);
+        ArrayList<SegmentActivityStats> segmentStatsList = new ArrayList<>(segmentCount);
+        for (int i = 0; i < segmentCount; i++)
+        {
+            int segmentID = in.readInt();
+            String fileName = readString(in);
+            SegmentActivityStats segmentStats = new SegmentActivityStats(segmentID, fileName, in.readInt());
+            segmentStats.updateTime(in.readDouble());
+            segmentStatsList.add(segmentStats);
+        }
+        return new ActivityStats(routeID, distance, speed, elevation, time, segmentStatsList);
+    }
+
+    private static void writeLeaderboard(DataOutputStream out, SegmentLeaderboard leaderboard) throws IOException
+    {
+        writeString(out, leaderboard.getFileName());
+        out.writeInt(leaderboard.getLeaderboard().size());
+        for (UserSegmentStatistics userStats : leaderboard.getLeaderboard())
+        {
+            out.writeInt(userStats.getSegmentHashID());
+            writeString(out, userStats.getUsername());
+            out.writeDouble(userStats.getTime());
+        }
+    }
+
+    private static SegmentLeaderboard readLeaderboard(DataInputStream in) throws IOException
+    {
+        SegmentLeaderboard leaderboard = new SegmentLeaderboard(readString(in));
+        int count = readCount(in);
+        for (int i = 0; i < count; i++)
+        {
+            int segmentHashID = in.readInt();
+            String username = readString(in);
+            double time = in.readDouble();
+            leaderboard.registerSegmentStatistics(new UserSegmentStatistics(segmentHashID, username, time));
+        }
+        return leaderboard;
+    }
+
+    private static void writeStatistics(DataOutputStream out, Statistics statistics) throws IOException
+    {
+        out.writeInt(statistics.getRoutesRecorded());
+        out.writeDouble(statistics.getTotalDistance());
+        out.writeDouble(statistics.getTotalElevation());
+        out.writeDouble(statistics.getTotalActivityTime());
+
+        HashMap<String, UserStatistics> userStats = statistics.getAllUserStats();
+        out.writeInt(userStats.size());
+        for (UserStatistics user : userStats.values())
+        {
+            writeString(out, user.getUser());
+            out.writeInt(user.getRoutesRecorded());
+            out.writeDouble(user.getTotalDistance());
+            out.writeDouble(user.getTotalElevation());
+            out.writeDouble(user.getTotalActivityTime());
+        }
+
+        HashMap<Integer, SegmentLeaderboard> segmentStatistics = statistics.getSegmentStatistics();
+        out.writeInt(segmentStatistics.size());
+        for (Map.Entry<Integer, SegmentLeaderboard> entry : segmentStatistics.entrySet())
+        {
+            out.writeInt(entry.getKey());
+            writeLeaderboard(out, entry.getValue());
+        }
+    }
+
+    private static Statistics readStatistics(DataInputStream in) throws IOException
+    {
+        int routesRecorded = in.readInt();
+        double totalDistance = in.readDouble();
+        double totalElevation = in.readDouble();
+        double totalActivityTime = in.readDouble();
+
+        int userCount = readCount(in);
+        HashMap<String, UserStatistics> userStats = new HashMap<>();
+        for (int i = 0; i < userCount; i++)
+        {
+            String user = readString(in);
+            int routes = in.readInt();
+            double distance = in.readDouble();
+            double elevation = in.readDouble();
+            double activityTime = in.readDouble();
+            userStats.put(user, new UserStatistics(user, routes, distance, elevation, activityTime));
+        }
+
+        int segmentCount = readCount(in);
+        HashMap<Integer, SegmentLeaderboard> segmentStatistics = new HashMap<>();
+        for (int i = 0; i < segmentCount; i++)
+        {
+            int segmentHash = in.readInt();
+            segmentStatistics.put(segmentHash, readLeaderboard(in));
+        }
+        return new Statistics(routesRecorded, totalDistance, totalElevation, totalActivityTime, userStats, segmentStatistics);
+    }
+}
@@ -0,0 +1,35 @@
+package com.activity_tracker.backend.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * MessageSink: The sending side of a connection. The connections whose messages are read by someone else, such as
+ * the non-blocking connections read by their selector, only offer this side to their owners.
+ */
+public interface MessageSink extends Closeable
+{
+    /**
+     * Writes a message to the connection, without flushing it.
+     * @param message the message to write
+     * @throws IOException if the message could not be written
+     */
+    void write(Object message) throws IOException;
+
+    /**
+     * Flushes all the messages written so far to the other end of the connection.
+     * @throws IOException if the messages could not be flushed
+     */
+    void flush() throws IOException;
+
+    /**
+     * Writes a message to the connection and flushes it.
+     * @param message the message to send
+     * @throws IOException if the message could not be sent
+     */
+    default void send(Object message) throws IOException
+    {
+        write(message);
+        flush();
+    }
+}
@@ -0,0 +1,299 @@
+package com.activity_tracker.backend.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NioConnection: A non-blocking connection speaking the binary protocol, driven by a selector.
+ * The selector thread calls readFrames when the socket is readable and writePending when it is writable, so the
+ * connection only offers its sending side to its owner.
+ * Any thread can send messages through it: they are encoded to frames and queued, and the selector is woken up
+ * to write them once the socket can take them. The number of frames queued is bounded: a client that stops reading
+ * has its connection closed once the bound is reached, rather than having its answers pile up in the master.
+ * The frames read are bounded too: a frame longer than the limit closes the connection, and the buffer of a frame
+ * grows as its bytes arrive, so announcing a long frame costs nothing until it is actually sent. The owner of the
+ * connection can also pause reading while it has too many frames left to process.
+ */
+public class NioConnection implements MessageSink
+{
+    private final SocketChannel channel;
+    // pool: the pool the read buffer is taken from
+    private final BufferPool pool;
+    // key: the selection key of the channel, set once the channel is registered with the selector
+    private volatile SelectionKey key;
+
+    // INITIAL_FRAME_BUFFER: the size the buffer of a frame starts at, it doubles as the bytes of the frame arrive
+    private static final int INITIAL_FRAME_BUFFER = 8 * 1024;
+
+    // readBuffer: holds the bytes read from the socket that are not part of a frame yet, null while there are none
+    private ByteBuffer readBuffer;
+    // maxFrameLength: the longest frame accepted from the other side
+    private final int maxFrameLength;
+    // partialFrame, partialLength, partialFilled: the buffer of the frame currently being read, the length announced
+    // for the frame and the number of its bytes read so far
+    private byte[] partialFrame;
+    private int partialLength;
+    private int partialFilled;
+    // endOfStream: set once the client has closed its side of the connection
+    private boolean endOfStream;
+
+    // pendingWrites: the encoded frames waiting to be written to the socket, in order
+    private final Queue<ByteBuffer> pendingWrites = new ConcurrentLinkedQueue<>();
+    // pendingCount, maxPending: the number of frames in pendingWrites, and the most that may wait to be written
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final int maxPending;
+    private volatile boolean closed;
+    // writeWanted, readPaused: whether the selector waits for the socket to be writable, and whether reading is
+    // paused by the owner of the connection, which together give the interest set of the key. Guarded by this.
+    private boolean writeWanted;
+    private boolean readPaused;
+
+    /**
+     * @param channel the connected socket channel, in non-blocking mode
+     * @param pool the pool to take the read buffers from
+     * @param maxPending the number of frames that may wait to be written, above which the connection is closed
+     * @param maxFrameLength the longest frame accepted, at most MessageCodec.MAX_FRAME_LENGTH
+     * @throws IllegalArgumentException if maxPending is not positive, or maxFrameLength is out of range
+     */
+    public NioConnection(SocketChannel channel, BufferPool pool, int maxPending, int maxFrameLength)
+    {
+        if (maxPending <= 0)
+        {
+            throw new IllegalArgumentException("The send queue needs room for at least one frame.");
+        }
+        if (maxFrameLength < 2 || maxFrameLength > MessageCodec.MAX_FRAME_LENGTH)
+        {
+            throw new IllegalArgumentException("The frame limit must be between 2 and " + MessageCodec.MAX_FRAME_LENGTH
+                    + " bytes.");
+        }
+        this.channel = channel;
+        this.pool = pool;
+        this.maxPending = maxPending;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Called once the channel is registered with the selector.
+     * @param key the selection key of the channel
+     */
+    public void setKey(SelectionKey key)
+    {
+        this.key = key;
+    }
+
+    /**
+     * Called by the selector thread when the socket is readable. Reads at most a buffer's worth of the bytes available
+     * and returns the frames they complete, without their length prefix, ready to be decoded by
+     * MessageCodec.decodeFrame. The bytes left on the socket are read on the next call, so a fast client cannot
+     * flood the master in a single call, and the other clients get their turn in between.
+     * @return the complete frames read, possibly none
+     * @throws IOException if the socket could not be read or a frame has an invalid length
+     */
+    public ArrayList<byte[]> readFrames() throws IOException
+    {
+        ArrayList<byte[]> frames = new ArrayList<>();
+        if (readBuffer == null)
+        {
+            readBuffer = pool.acquire();
+        }
+
+        int read = channel.read(readBuffer);
+        if (read > 0)
+        {
+            readBuffer.flip();
+            extractFrames(frames);
+            readBuffer.compact();
+        }
+        else if (read == -1)
+        {
+            endOfStream = true;
+        }
+
+        // frames being read are copied out of the buffer, so it can go back to the pool unless a length is split
+        if (readBuffer.position() == 0)
+        {
+            pool.release(readBuffer);
+            readBuffer = null;
+        }
+        return frames;
+    }
+
+    /**
+     * Moves the bytes of the read buffer, which is in read mode, into frames.
+     */
+    private void extractFrames(ArrayList<byte[]> frames) throws IOException
+    {
+        while (true)
+        {
+            if (partialFrame == null)
+            {
+                if (readBuffer.remaining() < 4)
+                {
+                    return;
+                }
+                int length = readBuffer.getInt();
+                if (length < 2 || length > maxFrameLength)
+                {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                partialFrame = new byte[Math.min(length, INITIAL_FRAME_BUFFER)];
+                partialLength = length;
+                partialFilled = 0;
+            }
+
+            int count = Math.min(readBuffer.remaining(), partialLength - partialFilled);
+            if (partialFilled + count > partialFrame.length)
+            {
+                int size = Math.max(partialFilled + count, (int) Math.min(2L * partialFrame.length, partialLength));
+                partialFrame = Arrays.copyOf(partialFrame, size);
+            }
+            readBuffer.get(partialFrame, partialFilled, count);
+            partialFilled += count;
+            if (partialFilled < partialLength)
+            {
+                return;
+            }
+            frames.add(partialFrame);
+            partialFrame = null;
+        }
+    }
+
+    /**
+     * @return true if the client has closed its side of the connection
+     */
+    public boolean isEndOfStream()
+    {
+        return endOfStream;
+    }
+
+    /**
+     * Called by the selector thread when the socket is writable. Writes as many of the pending frames as the socket
+     * accepts, and stops waiting for the socket to be writable once they are all written.
+     * @throws IOException if the socket could not be written to
+     */
+    public void writePending() throws IOException
+    {
+        ByteBuffer frame;
+        while ((frame = pendingWrites.peek()) != null)
+        {
+            channel.write(frame);
+            if (frame.hasRemaining())
+            {
+                return;
+            }
+            pendingWrites.poll();
+            pendingCount.decrementAndGet();
+        }
+
+        setWriteWanted(false);
+        // a frame may have been queued after the loop, in which case its flush must not be lost
+        if (!pendingWrites.isEmpty())
+        {
+            setWriteWanted(true);
+        }
+    }
+
+    /**
+     * Stops reading from the socket until resumeReading is called. The bytes the client keeps sending wait in the
+     * socket buffers, and eventually hold the client back.
+     */
+    public synchronized void pauseReading()
+    {
+        readPaused = true;
+        updateInterest();
+    }
+
+    /**
+     * Reads from the socket again after pauseReading, and wakes the selector up so that it notices.
+     * Does nothing if reading is not paused.
+     */
+    public void resumeReading()
+    {
+        synchronized (this)
+        {
+            if (!readPaused)
+            {
+                return;
+            }
+            readPaused = false;
+            updateInterest();
+        }
+        key.selector().wakeup();
+    }
+
+    private synchronized void setWriteWanted(boolean writeWanted)
+    {
+        this.writeWanted = writeWanted;
+        updateInterest();
+    }
+
+    /**
+     * Sets the interest set of the key from the current state of the connection. Called with the lock held, as the
+     * selector thread and the threads sending messages or pausing the reads update it at the same time.
+     */
+    private void updateInterest()
+    {
+        key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (writeWanted ? SelectionKey.OP_WRITE : 0));
+    }
+
+    /**
+     * Encodes the message and queues it to be written by the selector thread.
+     * @throws IOException if the connection is closed, or if too many frames are waiting to be written, in which case
+     * the connection is closed
+     */
+    @Override
+    public void write(Object message) throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Connection closed.");
+        }
+        ByteBuffer frame = MessageCodec.encodeFrame(message);
+        if (pendingCount.incrementAndGet() > maxPending)
+        {
+            close();
+            throw new IOException("The client is not keeping up, " + maxPending + " messages are waiting to be sent.");
+        }
+        pendingWrites.add(frame);
+    }
+
+    /**
+     * Asks the selector thread to write the queued messages.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Connection closed.");
+        }
+        try
+        {
+            setWriteWanted(true);
+            key.selector().wakeup();
+        }
+        catch (CancelledKeyException e)
+        {
+            throw new IOException("Connection closed.", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        if (key != null)
+        {
+            key.cancel();
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,65 @@
+package com.activity_tracker.backend.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+
+/**
+ * ObjectMessageChannel: A message channel that sends messages using Java serialization.
+ * Kept as a fallback for peers that do not speak the binary protocol.
+ */
+public class ObjectMessageChannel implements MessageChannel
+{
+    private final ObjectOutputStream out;
+    private final ObjectInputStream in;
+
+    /**
+     * Creates the object streams of the socket. The output stream is created (and its header flushed) first, so
+     * that both ends can open their channels in any order without blocking each other.
+     * @param socket the socket to communicate through
+     * @throws IOException if the streams could not be created
+     */
+    public ObjectMessageChannel(Socket socket) throws IOException
+    {
+        this.out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.out.flush();
+        this.in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    @Override
+    public void write(Object message) throws IOException
+    {
+        out.writeObject(message);
+        // Resetting the stream after every message, so that objects which changed are sent again with all their
+        // changes, and so that the table of already-sent objects does not keep growing.
+        out.reset();
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        out.flush();
+    }
+
+    @Override
+    public Object read() throws IOException, ClassNotFoundException
+    {
+        return in.readObject();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            in.close();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.activity_tracker.backend.network;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * QueuedMessageChannel: Sends the messages of a blocking channel from the threads of a writer pool, so that the
+ * threads producing the messages never wait for the socket. The messages wait in a bounded queue, and the channel is
+ * handed to a thread of the pool when its queue stops being empty. The thread writes every message queued meanwhile
+ * and flushes once, so the messages produced together leave in a single flush, and then moves on to other channels.
+ *
+ * A receiver that does not keep up eventually fills the queue. The message that does not fit is refused and the
+ * channel is closed, so the owner of the channel drops the receiver instead of buffering its messages without end.
+ * A receiver that stops reading altogether blocks the write in progress, and is closed by the watchdog of the pool.
+ * Only the sending side is queued: messages are read directly from the underlying channel.
+ */
+public class QueuedMessageChannel implements MessageSink
+{
+    private final MessageChannel channel;
+    // outbound: the messages written and not sent yet, in order
+    private final BlockingQueue<Object> outbound;
+    private final int capacity;
+    private volatile boolean closed;
+    // writers: the pool whose threads send the queued messages
+    private final WriterPool writers;
+    // scheduled: set while the channel is handed to a thread of the pool, so that it is never handed to two at once
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // writeStarted: the time the write or flush in progress started, in System.nanoTime, 0 while none is
+    private volatile long writeStarted;
+
+    /**
+     * @param channel the blocking channel to send the messages through
+     * @param capacity the number of messages that may wait to be sent, above which the receiver is dropped
+     * @param writers the pool whose threads send the messages
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public QueuedMessageChannel(MessageChannel channel, int capacity, WriterPool writers)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("The send queue needs room for at least one message.");
+        }
+        this.channel = channel;
+        this.outbound = new ArrayBlockingQueue<>(capacity);
+        this.capacity = capacity;
+        this.writers = writers;
+    }
+
+    /**
+     * Run by a thread of the writer pool. Sends the queued messages until the queue is empty or the channel is closed.
+     */
+    void writeQueued()
+    {
+        try
+        {
+            Object message;
+            while (!closed && (message = outbound.poll()) != null)
+            {
+                do
+                {
+                    writeStarted = System.nanoTime();
+                    channel.write(message);
+                }
+                while ((message = outbound.poll()) != null);
+                writeStarted = System.nanoTime();
+                channel.flush();
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // a message the protocol cannot encode ends the writes too, so the channel is closed rather than left
+            // accepting messages no one sends
+            if (!closed)
+            {
+                System.out.println("QueuedMessageChannel: Could not send message: " + e.getMessage());
+                closeQuietly();
+            }
+        }
+        finally
+        {
+            writeStarted = 0;
+            scheduled.set(false);
+        }
+        // a message queued after the queue was found empty, but before the channel was released, is not lost
+        if (!closed && !outbound.isEmpty())
+        {
+            schedule();
+        }
+    }
+
+    /**
+     * Queues the message to be sent by the writer pool. Never blocks.
+     * @throws IOException if the channel is closed, or if the queue is full, in which case the channel is closed
+     */
+    @Override
+    public void write(Object message) throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Connection closed.");
+        }
+        if (!outbound.offer(message))
+        {
+            closeQuietly();
+            throw new IOException("The receiver is not keeping up, " + capacity + " messages are waiting to be sent.");
+        }
+        schedule();
+    }
+
+    /**
+     * The writer pool flushes on its own once the queue is empty.
+     * @throws IOException if the channel is closed
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Connection closed.");
+        }
+    }
+
+    /**
+     * Closes the channel, dropping the messages not sent yet.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        outbound.clear();
+        channel.close();
+    }
+
+    /**
+     * @return the time the write in progress started, in System.nanoTime, or 0 if no write is in progress
+     */
+    long getWriteStarted()
+    {
+        return writeStarted;
+    }
+
+    /**
+     * Called by the watchdog of the writer pool when the write in progress has been blocked for too long. Closing the
+     * channel ends the write, and frees its thread for the other channels.
+     * @param blockedMillis how long the write has been blocked, in milliseconds
+     */
+    void closeStalled(long blockedMillis)
+    {
+        if (!closed)
+        {
+            System.out.println("QueuedMessageChannel: The receiver has not read for " + blockedMillis
+                    + " ms, closing the channel");
+            closeQuietly();
+        }
+    }
+
+    private void schedule()
+    {
+        if (scheduled.compareAndSet(false, true))
+        {
+            writers.schedule(this);
+        }
+    }
+
+    private void closeQuietly()
+    {
+        try
+        {
+            close();
+        }
+        catch (IOException e)
+        {
+            System.out.println("QueuedMessageChannel: Could not close channel");
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.activity_tracker.backend.network;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WriterPool: The threads sending the queued messages of the blocking channels (see QueuedMessageChannel), shared by
+ * all of them. A channel is only handed to a thread while it has messages waiting, so a few threads serve any number
+ * of receivers, instead of every receiver holding a writer thread of its own.
+ * <p>
+ * A write to a blocking socket lasts as long as the receiver does not read, and would hold its thread away from the
+ * other channels meanwhile. A watchdog closes the channels whose write has been blocked for longer than the stall
+ * timeout, which ends the write and frees the thread.
+ */
+public class WriterPool
+{
+    private final ExecutorService threads;
+    // writing: the channels being written by a thread of the pool, watched for stalled writes
+    private final Set<QueuedMessageChannel> writing = ConcurrentHashMap.newKeySet();
+    // stallTimeoutNanos: how long a single write may block before its channel is closed, 0 to never close one
+    private final long stallTimeoutNanos;
+
+    /**
+     * Starts the threads of the pool, and its watchdog if the stall timeout is set.
+     * @param threads the number of threads writing to the channels
+     * @param stallTimeoutMillis how long, in milliseconds, a write may block before its channel is closed, 0 to let
+     *                           writes block for as long as their receiver does not read
+     * @param name the prefix of the names of the threads
+     * @throws IllegalArgumentException if the number of threads is not positive, or the timeout is negative
+     */
+    public WriterPool(int threads, long stallTimeoutMillis, String name)
+    {
+        if (threads <= 0 || stallTimeoutMillis < 0)
+        {
+            throw new IllegalArgumentException("The writer pool needs at least one thread and a stall timeout of "
+                    + "at least 0.");
+        }
+        AtomicInteger created = new AtomicInteger();
+        this.threads = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                task ->
+                {
+                    Thread thread = new Thread(task, name + "-" + created.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.stallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(stallTimeoutMillis);
+        if (stallTimeoutMillis > 0)
+        {
+            Thread watchdog = new Thread(this::watchWrites, name + "-watchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+    }
+
+    /**
+     * Hands a channel to a thread of the pool, which sends its queued messages. A channel is scheduled again only
+     * once the thread is done with it, so that its messages are never written by two threads at once.
+     * @param channel the channel with messages waiting
+     */
+    void schedule(QueuedMessageChannel channel)
+    {
+        threads.execute(() ->
+        {
+            writing.add(channel);
+            try
+            {
+                channel.writeQueued();
+            }
+            finally
+            {
+                writing.remove(channel);
+            }
+        });
+    }
+
+    /**
+     * Run by the watchdog. Closes the channels whose current write has been blocked for longer than the stall timeout.
+     */
+    private void watchWrites()
+    {
+        long interval = Math.max(TimeUnit.NANOSECONDS.toMillis(stallTimeoutNanos) / 4, 10);
+        while (true)
+        {
+            try
+            {
+                Thread.sleep(interval);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            long now = System.nanoTime();
+            for (QueuedMessageChannel channel : writing)
+            {
+                long blockedSince = channel.getWriteStarted();
+                if (blockedSince != 0 && now - blockedSince > stallTimeoutNanos)
+                {
+                    channel.closeStalled(TimeUnit.NANOSECONDS.toMillis(now - blockedSince));
+                }
+            }
+        }
+    }
+}
@@ -4,56 +4,129 @@ import java.io.Serializable;
 import java.util.ArrayList;
 
 /**
- * Chunk: Wrapper class, which contains the ArrayList of Waypoints the chunk is supposed to contain,
+ * Chunk: Wrapper class, which contains the Track of waypoints the chunk is supposed to contain,
  * a variable indicating how many chunks in total the route was split into, and a variable indicating
- * the index of the chunk being currently processed amongst the total chunks
+ * the index of the chunk being currently processed amongst the total chunks.
+ * A chunk is the message sent to the workers, so it does not keep a reference to its route: it only carries the
+ * ids it needs, its own waypoints and the intervals of the segments that apply to it.
  * */
 public class Chunk implements Serializable
 {
+    // routeID, clientID: the ids of the route this chunk is a part of, and of the client that uploaded that route
+    private final int routeID;
 
-    // route represents the original route this chunk is a part of
-    private final Route route;
+    private final int clientID;
+
+    // Chunk index is the index of this chunk amongst the chunks of its route, starting from 0
+    private final int chunkIndex;
 
     // Total chunks is the total number of chunks the route was split into
     private final int totalChunks;
 
-    private final ArrayList<Waypoint> waypoints;
+    private final Track track;
 
-    /* segments, segmentStartingIndices, segmentEndingIndices:
-     * Three symmetrical arraylists, the index of a starting/ending segment index corresponds
-     * to the segment in the according segments index
-     */
-    private final ArrayList<Segment> segments;
+    // startIndex, endIndex: the indices of the route where this chunk's first and last waypoints are, both inclusive
+    private final int startIndex;
+
+    private final int endIndex;
 
-    private final ArrayList<Integer> segmentStartingIndices;
+    // segments: the parts of the route's segments that this chunk contains
+    private final ArrayList<SegmentInterval> segments;
 
-    private final ArrayList<Integer> segmentEndingIndices;
+    // lookahead: the waypoints of the route following this chunk, null if the master detected the segments of the
+    // route. Otherwise the worker detects them itself, and needs to see far enough past the end of the chunk to match
+    // a segment starting inside the chunk in full.
+    private final Track lookahead;
+
+    // combinable: whether the worker may merge the result of this chunk with the results of other chunks of the route.
+    // Chunks sent a second time (re-sent or speculative copies) are not, so that a merged result never partly
+    // overlaps with another result of the route.
+    private volatile boolean combinable = true;
 
     /**
      * Constructor for the Chunk class
-     * @param waypoints the waypoints the chunk is supposed to contain
      * @param route the route this chunk is a part of
+     * @param chunkIndex the index of this chunk amongst the chunks of the route
+     * @param startIndex the index of the route where the chunk begins
+     * @param endIndex the index of the route where the chunk ends, inclusive
+     * @param totalChunks the total number of chunks the route was split into
+     * @throws IndexOutOfBoundsException if the range is not inside the route
+     */
+    public Chunk(Route route, int chunkIndex, int startIndex, int endIndex, int totalChunks)
+    {
+        this(route, chunkIndex, startIndex, endIndex, totalChunks, -1);
+    }
+
+    /**
+     * Constructor for a chunk whose segments may be detected by the worker mapping it.
+     * @param route the route this chunk is a part of
+     * @param chunkIndex the index of this chunk amongst the chunks of the route
+     * @param startIndex the index of the route where the chunk begins
+     * @param endIndex the index of the route where the chunk ends, inclusive
      * @param totalChunks the total number of chunks the route was split into
+     * @param lookahead the number of waypoints following the chunk to send along with it for the worker to detect
+     *                  the segments, at most as many as the route has, or -1 if the master detected the segments
+     * @throws IndexOutOfBoundsException if the range is not inside the route
      */
-    public Chunk(ArrayList<Waypoint> waypoints, Route route, int totalChunks)
+    public Chunk(Route route, int chunkIndex, int startIndex, int endIndex, int totalChunks, int lookahead)
     {
-        this.route = route;
-        this.waypoints = new ArrayList<>(waypoints);
+        this.routeID = route.getRouteID();
+        this.clientID = route.getClientID();
+        this.chunkIndex = chunkIndex;
+        this.startIndex = startIndex;
+        this.endIndex = endIndex;
+        this.track = route.getTrack().slice(startIndex, endIndex + 1);
         this.totalChunks = totalChunks;
         this.segments = new ArrayList<>();
-        this.segmentStartingIndices = new ArrayList<>();
-        this.segmentEndingIndices = new ArrayList<>();
-        registerSegments();
+        this.lookahead = (lookahead < 0) ? null
+                : route.getTrack().slice(endIndex + 1, Math.min(endIndex + 1 + lookahead, route.getTrack().size()));
+        registerSegments(route);
+    }
+
+    /**
+     * Constructor used when rebuilding a chunk that was received over the network.
+     * @param routeID the id of the route this chunk is a part of
+     * @param clientID the id of the client that uploaded the route
+     * @param chunkIndex the index of this chunk amongst the chunks of the route
+     * @param totalChunks the total number of chunks the route was split into
+     * @param startIndex the index of the route where the chunk begins
+     * @param endIndex the index of the route where the chunk ends, inclusive
+     * @param track the waypoints of the chunk
+     * @param segments the parts of the route's segments that this chunk contains
+     * @param lookahead the waypoints of the route following the chunk, null if the master detected the segments
+     */
+    public Chunk(int routeID, int clientID, int chunkIndex, int totalChunks, int startIndex, int endIndex,
+                 Track track, ArrayList<SegmentInterval> segments, Track lookahead)
+    {
+        this.routeID = routeID;
+        this.clientID = clientID;
+        this.chunkIndex = chunkIndex;
+        this.totalChunks = totalChunks;
+        this.startIndex = startIndex;
+        this.endIndex = endIndex;
+        this.track = track;
+        this.segments = new ArrayList<>(segments);
+        this.lookahead = lookahead;
     }
 
-    public ArrayList<Waypoint> getWaypoints()
+    public Track getTrack()
     {
-        return waypoints;
+        return track;
     }
 
-    public Route getRoute()
+    public int getRouteID()
     {
-        return route;
+        return routeID;
+    }
+
+    public int getClientID()
+    {
+        return clientID;
+    }
+
+    public int getChunkIndex()
+    {
+        return chunkIndex;
     }
 
     public int getTotalChunks()
@@ -61,12 +134,61 @@ public class Chunk implements Serializable
         return totalChunks;
     }
 
+    public int getStartIndex()
+    {
+        return startIndex;
+    }
+
+    public int getEndIndex()
+    {
+        return endIndex;
+    }
+
+    public ArrayList<SegmentInterval> getSegments()
+    {
+        return segments;
+    }
+
+    public Track getLookahead()
+    {
+        return lookahead;
+    }
+
+    /**
+     * @return true if the worker mapping the chunk detects the segments it contains
+     */
+    public boolean detectsSegments()
+    {
+        return lookahead != null;
+    }
+
+    /**
+     * Chunks share their boundary waypoints, so an occurrence of a segment is only reported by the chunk it starts
+     * in: the occurrences starting on the last waypoint of a chunk belong to the following chunk, if there is one.
+     * @return the number of waypoints of this chunk an occurrence of a segment reported by the chunk may start at
+     */
+    public int getSegmentStarts()
+    {
+        return (chunkIndex == totalChunks - 1) ? track.size() : track.size() - 1;
+    }
+
+    public boolean isCombinable()
+    {
+        return combinable;
+    }
+
+    public void setCombinable(boolean combinable)
+    {
+        this.combinable = combinable;
+    }
+
     /**
      *  Called on the route this chunk belongs to. The route calls
      * addSegment for all the segments that are contained in this chunk.
+     * @param route the route this chunk is a part of
      * @throws IllegalArgumentException if the method on the route class fails to register the segments,
      * */
-    private void registerSegments()
+    private void registerSegments(Route route)
     {
         try
         {
@@ -79,35 +201,34 @@ public class Chunk implements Serializable
     }
 
     /**
-     * @param waypoint the waypoint to check
-     * @return Returns true if the waypoint parameter is the first index of the part of a segment that this chunk contains
-     * @throws IllegalArgumentException if the waypoint parameter is null
+     * @param index the index of the waypoint in this chunk's track
+     * @return Returns true if the waypoint at the given index is the first index of the part of a segment that this chunk contains
+     * @throws IndexOutOfBoundsException if the index is not inside this chunk
      */
-    public boolean isFirstSegmentIndex(Waypoint waypoint)
+    public boolean isFirstSegmentIndex(int index)
     {
-        if (waypoint == null)
+        checkIndex(index);
+        for (SegmentInterval segment : segments)
         {
-            throw new IllegalArgumentException("Received a null waypoint");
+            if (segment.getStartIndex() == index)
+            {
+                return true;
+            }
         }
-        return segmentStartingIndices.contains(waypoints.indexOf(waypoint));
+        return false;
     }
 
     /**
-     * @param waypoint the waypoint to check
-     * @return Returns true if the given waypoint is contained in a segment in this chunk
-     * @throws IllegalArgumentException if the waypoint parameter is null or not contained in this chunk
+     * @param index the index of the waypoint in this chunk's track
+     * @return Returns true if the waypoint at the given index is contained in a segment in this chunk
+     * @throws IndexOutOfBoundsException if the index is not inside this chunk
      */
-    public boolean isInsideSegment(Waypoint waypoint)
+    public boolean isInsideSegment(int index)
     {
-        if (!waypoints.contains(waypoint) || waypoint == null)
+        checkIndex(index);
+        for (SegmentInterval segment : segments)
         {
-            throw new IllegalArgumentException("Waypoint is not contained in this chunk");
-        }
-
-        int indexInChunk = waypoints.indexOf(waypoint);
-        for (int i = 0; i < segmentStartingIndices.size(); i++)
-        {
-            if (indexInChunk > segmentStartingIndices.get(i) && indexInChunk <= segmentEndingIndices.get(i))
+            if (segment.contains(index))
             {
                 return true;
             }
@@ -116,66 +237,64 @@ public class Chunk implements Serializable
     }
 
     /**
-     * Returns the segments starting from the given waypoint.
-     * @param waypoint the waypoint to check
+     * Returns the segments starting from the waypoint at the given index.
+     * @param index the index of the waypoint in this chunk's track
      * @return Returns an arraylist of segments starting from the given waypoint
-     * @throws IllegalArgumentException if the waypoint parameter is null or not contained in this chunk
+     * @throws IndexOutOfBoundsException if the index is not inside this chunk
      */
-    public ArrayList<Segment> getSegmentsStartingFrom(Waypoint waypoint)
+    public ArrayList<SegmentInterval> getSegmentsStartingFrom(int index)
     {
-        if (!waypoints.contains(waypoint) || waypoint == null)
-        {
-            throw new IllegalArgumentException("Waypoint is not contained in this chunk");
-        }
-        ArrayList<Segment> waypointSegments = new ArrayList<>();
+        checkIndex(index);
+        ArrayList<SegmentInterval> waypointSegments = new ArrayList<>();
 
-        int indexInChunk = waypoints.indexOf(waypoint);
-        for (int i = 0; i < segments.size(); i++)
+        for (SegmentInterval segment : segments)
         {
-            if (indexInChunk == segmentStartingIndices.get(i))
+            if (segment.getStartIndex() == index)
             {
-                waypointSegments.add(segments.get(i));
+                waypointSegments.add(segment);
             }
         }
         return waypointSegments;
     }
 
     /**
-     * @param waypoint the waypoint to check
-     * @return Returns the segments containing the given waypoint.
-     * @throws IllegalArgumentException if the waypoint parameter is null or not contained in this chunk
+     * @param index the index of the waypoint in this chunk's track
+     * @return Returns the segments containing the waypoint at the given index.
+     * @throws IndexOutOfBoundsException if the index is not inside this chunk
      */
-    public ArrayList<Segment> getSegmentsContainingWaypoint(Waypoint waypoint)
+    public ArrayList<SegmentInterval> getSegmentsContainingWaypoint(int index)
     {
-        if (!waypoints.contains(waypoint) || waypoint == null)
-        {
-            throw new IllegalArgumentException("Waypoint is not contained in this chunk");
-        }
-        ArrayList<Segment> waypointSegments = new ArrayList<>();
+        checkIndex(index);
+        ArrayList<SegmentInterval> waypointSegments = new ArrayList<>();
 
-        int indexInChunk = waypoints.indexOf(waypoint);
-        for (int i = 0; i < segments.size(); i++)
+        for (SegmentInterval segment : segments)
         {
-            if (indexInChunk > segmentStartingIndices.get(i) && indexInChunk <= segmentEndingIndices.get(i))
+            if (segment.contains(index))
             {
-                waypointSegments.add(segments.get(i));
+                waypointSegments.add(segment);
             }
         }
         return waypointSegments;
     }
 
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= track.size())
+        {
+            throw new IndexOutOfBoundsException("Waypoint " + index + " is not contained in this chunk");
+        }
+    }
+
     /**
      * Called by this chunk's route class, adds all the segments
      * and their respective starting/ending indices to the chunk
      * @param segment the segment to add
-     * @param startingIndex the starting index of the segment in the route
-     * @param endingIndex the ending index of the segment in the route
+     * @param startingIndex the index of the chunk where the segment starts
+     * @param endingIndex the index of the chunk where the segment ends
      */
     protected void addSegment(Segment segment, int startingIndex, int endingIndex)
     {
-        segments.add(segment);
-        segmentStartingIndices.add(startingIndex);
-        segmentEndingIndices.add(endingIndex);
+        segments.add(new SegmentInterval(segment.getSegmentID(), segment.getFileName(), startingIndex, endingIndex));
     }
 
 }
@@ -1,18 +1,32 @@
 package com.activity_tracker.backend.parser;
 
+import com.activity_tracker.backend.misc.Pair;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.util.ArrayList;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
 import java.util.Queue;
 
 public class GPXParser
 {
+    // parserType: the parser implementation used to read GPX files, "stax" (streaming) or "dom", as set in the config
+    private static final String PARSER_TYPE = loadParserType();
+
+    // factory: shared StAX factory, creating a new one for every file is expensive
+    private static final XMLInputFactory factory = createInputFactory();
+
     /**
      * Parses a GPX file from an input stream and returns a Route object.
      *
@@ -23,45 +37,20 @@ public class GPXParser
      */
     public static Route parseRoute(ByteArrayInputStream inputStream, Queue<Segment> segments)
     {
-        ArrayList<Waypoint> waypoints = new ArrayList<>();
         Route route = null;
         try
         {
-            // Parsing the GPX file
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            Document doc = dBuilder.parse(inputStream);
-
-            // Normalizing the XML structure to prevent errors
-            doc.getDocumentElement().normalize();
+            // key: the creator of the GPX file, value: the waypoints it contains
+            Pair<String, Track> gpx = readGPX(inputStream);
+            String creator = gpx.getKey();
+            Track track = gpx.getValue();
 
-            // This will return all the <wpt> tags
-            NodeList nodeList = doc.getElementsByTagName("wpt");
-
-            String creator = null;
-
-            // Iterate through all the <wpt> tags.
-            for (int i = 0; i < nodeList.getLength(); i++)
-            {
-                // Get the <wpt> tag we are currently processing.
-                Element element = (Element) nodeList.item(i);
-                creator = doc.getDocumentElement().getAttribute("creator");
-                String latitude = element.getAttribute("lat");
-                String longitude = element.getAttribute("lon");
-                String elevation = element.getElementsByTagName("ele").item(0).getTextContent();
-                String time = element.getElementsByTagName("time").item(0).getTextContent();
-
-                // Add the waypoint to the list
-                waypoints.add(new Waypoint(Double.parseDouble(latitude), Double.parseDouble(longitude),
-                        Double.parseDouble(elevation), time));
-            }
-
-            if (creator == null || waypoints.isEmpty())
+            if (creator == null || track.isEmpty())
             {
                 throw new RuntimeException("Could not parse the GPX data successfully.");
             }
 
-            route = new Route(waypoints, creator, "GPX Data");
+            route = new Route(track, creator, "GPX Data");
 
             // Check for all the segments if the route is inside them
             for (Segment segment : segments)
@@ -86,41 +75,17 @@ public class GPXParser
      */
     public static Segment parseSegment(File segmentFile)
     {
-        ArrayList<Waypoint> waypoints = new ArrayList<>();
         Segment segments = null;
-        try {
-            // Parsing the GPX file
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            Document doc = dBuilder.parse(segmentFile);
+        try (FileInputStream inputStream = new FileInputStream(segmentFile))
+        {
+            Track track = readGPX(inputStream).getValue();
             String fileName = segmentFile.getName();
 
-            // Normalizing the XML structure to prevent errors
-            doc.getDocumentElement().normalize();
-
-            // This will return all the <wpt> tags
-            NodeList nodeList = doc.getElementsByTagName("wpt");
-
-            // Iterate through all the <wpt> tags.
-            for (int i = 0; i < nodeList.getLength(); i++)
-            {
-                // Get the <wpt> tag we are currently processing.
-                Element element = (Element) nodeList.item(i);
-                String latitude = element.getAttribute("lat");
-                String longitude = element.getAttribute("lon");
-                String elevation = element.getElementsByTagName("ele").item(0).getTextContent();
-                String time = element.getElementsByTagName("time").item(0).getTextContent();
-
-                // Add the waypoint to the list
-                waypoints.add(new Waypoint(Double.parseDouble(latitude), Double.parseDouble(longitude),
-                        Double.parseDouble(elevation), time));
-            }
-
-            if (waypoints.isEmpty())
+            if (track.isEmpty())
             {
                 throw new RuntimeException("Could not parse the file successfully.");
             }
-            segments = new Segment(waypoints, fileName);
+            segments = new Segment(track, fileName);
         }
         catch (Exception e)
         {
@@ -128,4 +93,185 @@ public class GPXParser
         }
         return segments;
     }
+
+    /**
+     * Reads the creator and the waypoints of a GPX file, using the parser selected in the configuration file.
+     *
+     * @param inputStream the input stream containing the GPX data
+     * @return a pair of the creator of the file and the track of waypoints it contains
+     * @throws Exception if the GPX data cannot be parsed
+     */
+    private static Pair<String, Track> readGPX(InputStream inputStream) throws Exception
+    {
+        if (PARSER_TYPE.equals("dom"))
+        {
+            return readWithDOM(inputStream);
+        }
+        return readWithStAX(inputStream);
+    }
+
+    /**
+     * Builds the whole DOM tree of the GPX file and then walks all of its <wpt> tags.
+     * Both readers are package-private, so that the tests can check that they read every file the same way.
+     *
+     * @param inputStream the input stream containing the GPX data
+     * @return a pair of the creator of the file and the track of waypoints it contains
+     * @throws Exception if the GPX data cannot be parsed
+     */
+    static Pair<String, Track> readWithDOM(InputStream inputStream) throws Exception
+    {
+
+        // Parsing the GPX file
+        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+        DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+        Document doc = dBuilder.parse(inputStream);
+
+        // Normalizing the XML structure to prevent errors
+        doc.getDocumentElement().normalize();
+
+        // This will return all the <wpt> tags
+        NodeList nodeList = doc.getElementsByTagName("wpt");
+
+        Track track = new Track(nodeList.getLength());
+
+        String creator = null;
+        if (nodeList.getLength() > 0)
+        {
+            creator = doc.getDocumentElement().getAttribute("creator");
+        }
+
+        // Iterate through all the <wpt> tags.
+        for (int i = 0; i < nodeList.getLength(); i++)
+        {
+            // Get the <wpt> tag we are currently processing.
+            Element element = (Element) nodeList.item(i);
+            String latitude = element.getAttribute("lat");
+            String longitude = element.getAttribute("lon");
+            String elevation = element.getElementsByTagName("ele").item(0).getTextContent();
+            String time = element.getElementsByTagName("time").item(0).getTextContent();
+
+            // Add the waypoint to the track
+            track.add(Double.parseDouble(latitude), Double.parseDouble(longitude),
+                    Double.parseDouble(elevation), TimestampParser.parse(time));
+        }
+
+        return new Pair<>(creator, track);
+    }
+
+    /**
+     * Reads the GPX file in a single pass with a StAX pull parser, keeping only the waypoint currently being read
+     * in memory instead of the whole document tree.
+     *
+     * @param inputStream the input stream containing the GPX data
+     * @return a pair of the creator of the file and the track of waypoints it contains
+     * @throws XMLStreamException if the GPX data is not well-formed
+     * @throws RuntimeException if a waypoint is missing its elevation or time
+     */
+    static Pair<String, Track> readWithStAX(InputStream inputStream) throws XMLStreamException
+    {
+        Track track = new Track();
+        String rootCreator = null;
+
+        XMLStreamReader reader;
+        synchronized (factory)
+        {
+            reader = factory.createXMLStreamReader(inputStream);
+        }
+
+        try
+        {
+            // the values of the <wpt> tag we are currently processing
+            boolean insideWaypoint = false;
+            String latitude = null;
+            String longitude = null;
+            String elevation = null;
+            String time = null;
+
+            while (reader.hasNext())
+            {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT)
+                {
+                    String tag = reader.getLocalName();
+
+                    // the first element we meet is the root <gpx> tag, which holds the creator
+                    if (rootCreator == null)
+                    {
+                        String creator = reader.getAttributeValue(null, "creator");
+                        rootCreator = (creator == null) ? "" : creator;
+                    }
+
+                    if (tag.equals("wpt"))
+                    {
+                        insideWaypoint = true;
+                        latitude = reader.getAttributeValue(null, "lat");
+                        longitude = reader.getAttributeValue(null, "lon");
+                        elevation = null;
+                        time = null;
+                    }
+                    // keeping only the first <ele> and <time> of each waypoint
+                    else if (insideWaypoint && tag.equals("ele") && elevation == null)
+                    {
+                        elevation = reader.getElementText();
+                    }
+                    else if (insideWaypoint && tag.equals("time") && time == null)
+                    {
+                        time = reader.getElementText();
+                    }
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("wpt"))
+                {
+                    if (elevation == null || time == null)
+                    {
+                        throw new RuntimeException("Found a waypoint without an elevation or a time.");
+                    }
+                    // Add the waypoint to the track
+                    track.add(Double.parseDouble(latitude), Double.parseDouble(longitude),
+                            Double.parseDouble(elevation), TimestampParser.parse(time));
+                    insideWaypoint = false;
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        track.trimToSize();
+        String creator = track.isEmpty() ? null : rootCreator;
+        return new Pair<>(creator, track);
+    }
+
+    /**
+     * Creates the StAX factory used by the streaming parser, with DTDs and external entities disabled.
+     *
+     * @return the StAX input factory
+     */
+    private static XMLInputFactory createInputFactory()
+    {
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return inputFactory;
+    }
+
+    /**
+     * Loads the type of the parser from the configuration file, defaulting to the streaming parser.
+     *
+     * @return "dom" or "stax"
+     */
+    private static String loadParserType()
+    {
+        try
+        {
+            Properties config = new Properties();
+            config.load(new FileInputStream("config.properties"));
+            return config.getProperty("gpx_parser", "stax").trim().toLowerCase();
+        }
+        catch (IOException e)
+        {
+            System.out.println("GPXParser: Could not load config, using the streaming parser.");
+            return "stax";
+        }
+    }
 }
@@ -2,7 +2,7 @@ package com.activity_tracker.backend.parser;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Route implements Serializable
 {
@@ -12,8 +12,8 @@ public class Route implements Serializable
     private final int routeID;
     // Client ID is the ID of the client that uploaded the route
     private int clientID;
-    // Waypoints is the ArrayList of Waypoints that the route contains
-    private final ArrayList<Waypoint> waypoints;
+    // Track holds the waypoints that the route contains
+    private final Track track;
     // segmentsContained: An arraylist, containing a pair of segments and the index of the route where the segment begins
     private final ArrayList<Segment> segments;
     // segmentStartingIndices: An arraylist, containing the index of the route where the segment begins
@@ -21,20 +21,20 @@ public class Route implements Serializable
     // Route file name: The name of the file. Used to move to "processed_gpx" as soon as the Reduce phase is done.
     private final String fileName;
 
-    // ID generator is a static variable that is used to generate unique IDs for each route
-    private static int idGenerator = 0;
+    // ID generator is a static variable that is used to generate unique IDs for each route, routes are parsed on many threads at once
+    private static final AtomicInteger idGenerator = new AtomicInteger();
 
     /**
      * Constructor for the Route class
-     * @param waypoints  The waypoints that the route contains
+     * @param track  The track of waypoints that the route contains
      * @param user The username of the user who recorded the route
      * @param fileName The name of the file. Used to move to "processed_gpx" as soon as the Reduce phase is done.
      */
-    public Route(ArrayList<Waypoint> waypoints, String user, String fileName)
+    public Route(Track track, String user, String fileName)
     {
-        this.waypoints = waypoints;
+        this.track = track;
         this.user = user;
-        this.routeID = idGenerator++;
+        this.routeID = idGenerator.getAndIncrement();
         this.fileName = fileName;
         this.segments = new ArrayList<>();
         this.segmentStartingIndices = new ArrayList<>();
@@ -46,7 +46,7 @@ public class Route implements Serializable
      */
     public void checkForSegment(Segment segment)
     {
-        int segmentIndex = Collections.indexOfSubList(waypoints, segment.getWaypoints());
+        int segmentIndex = track.indexOf(segment.getTrack());
 
         // if the segment is a part of our route (indicated by index != -1), add that segment to the route's segments
         if (segmentIndex != -1)
@@ -79,51 +79,13 @@ public class Route implements Serializable
         }
     }
 
-    /**
-     * @param segment The segment to check
-     * @return If the segment is already registered in a route's segments, returns its starting value.
-     * Otherwise, returns -1.
-     * @throws RuntimeException if the segment is null
-     */
-    private int getSegmentStartingIndex(Segment segment)
-    {
-        if (segment == null)
-        {
-            throw new RuntimeException("Segment is null");
-        }
-        if (segments.contains(segment))
-        {
-            int index = segments.indexOf(segment);
-            return segmentStartingIndices.get(index);
-        }
-        return -1;
-    }
-
-    /**
-     *  By using index of sublist, we can check if a chunk is a part of a route.
-     *  If it is, we can get the index of the route where the chunk starts.
-     *
-     * @param chunk The chunk to check
-     * @return Returns the starting index of a chunk of a route
-     * @throws RuntimeException if the chunk is not a part of the route
-     */
-    private int getChunkStartingIndex(Chunk chunk)
-    {
-        assert chunk != null;
-        int index = Collections.indexOfSubList(waypoints, chunk.getWaypoints());
-        if (index == -1)
-        {
-            throw new RuntimeException("Chunk is not a part of the route");
-        }
-        return index;
-    }
-
-
     /**
      * Registers all the segments contained in a chunk of this route.
+     * Since the chunk knows where it begins and ends in the route, this only intersects its interval with the
+     * interval of each segment.
      * @param chunk The chunk to check for segments
      * @throws RuntimeException if the chunk does not belong to the route
-     * @throws IllegalArgumentException if the segment is null
+     * @throws IllegalArgumentException if the chunk is null
      */
     protected void registerSegmentsInChunk(Chunk chunk)
     {
@@ -132,30 +94,23 @@ public class Route implements Serializable
             throw new IllegalArgumentException("Input chunk cannot be null.");
         }
 
-        // Get the index of the route where the chunk starts
-        int chunkStartIndex = getChunkStartingIndex(chunk);
-
-        // Get the index of the route where the chunk ends
-        int chunkEndIndex = chunkStartIndex + chunk.getWaypoints().size() - 1;
+        // Get the indices of the route where the chunk starts and ends
+        int chunkStartIndex = chunk.getStartIndex();
+        int chunkEndIndex = chunk.getEndIndex();
 
         // Check if the chunk belongs to the route
-        if (chunkStartIndex < 0)
+        if (chunk.getRouteID() != routeID || chunkStartIndex < 0 || chunkEndIndex >= track.size())
         {
             throw new RuntimeException("Found a chunk that does not belong to the route it's registered to.");
         }
 
-        if (segments.isEmpty())
-        {
-            return;
-        }
-
-        for (Segment segment : segments)
+        for (int i = 0; i < segments.size(); i++)
         {
-            // Get the index of the route where the segment starts
-            int segmentStartIndex = getSegmentStartingIndex(segment);
+            Segment segment = segments.get(i);
 
-            // Get the index of the route where the segment ends
-            int segmentEndIndex = segmentStartIndex + segment.getWaypoints().size() - 1;
+            // Get the indices of the route where the segment starts and ends
+            int segmentStartIndex = segmentStartingIndices.get(i);
+            int segmentEndIndex = segmentStartIndex + segment.getTrack().size() - 1;
 
             // If the segment is either before or after our chunk, continue.
             // Making the assumption that if there's only 1 segment waypoint in our chunk, we disregard it, since
@@ -176,9 +131,9 @@ public class Route implements Serializable
     }
 
 
-    public ArrayList<Waypoint> getWaypoints()
+    public Track getTrack()
     {
-        return this.waypoints;
+        return this.track;
     }
 
     public int getRouteID()
@@ -203,6 +158,6 @@ public class Route implements Serializable
 
     public String toString()
     {
-        return "Route: " + fileName + " Username: " + user + " Waypoints: " + waypoints.size() + " First waypoint: " + waypoints.get(0);
+        return "Route: " + fileName + " Username: " + user + " Waypoints: " + track.size() + " First waypoint: " + track.getWaypoint(0);
     }
 }
@@ -1,34 +1,46 @@
 package com.activity_tracker.backend.parser;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Objects;
 
 /**
- * Represents a segment of a route, containing a list of waypoints and file name.
+ * Represents a segment of a route, containing a track of waypoints and file name.
  */
 public class Segment implements Serializable
 {
-    private final ArrayList<Waypoint> waypoints;
+    private final Track track;
     private final String fileName;
     private final int segmentID;
     private static int segmentIDGenerator = 0;
 
     /**
      * Constructor for Segment object.
-     * @param waypoints List of waypoints in this segment.
+     * @param track Track of waypoints in this segment.
      * @param fileName The file name associated with this segment.
      */
-    public Segment(ArrayList<Waypoint> waypoints, String fileName)
+    public Segment(Track track, String fileName)
     {
-        this.waypoints = waypoints;
+        this.track = track;
         this.segmentID = segmentIDGenerator++;
         this.fileName = fileName;
     }
 
-    public ArrayList<Waypoint> getWaypoints()
+    /**
+     * Constructor used when rebuilding a segment that was received over the network, keeping the id the master gave it.
+     * @param segmentID the id of the segment
+     * @param track Track of waypoints in this segment.
+     * @param fileName The file name associated with this segment.
+     */
+    public Segment(int segmentID, Track track, String fileName)
     {
-        return waypoints;
+        this.track = track;
+        this.segmentID = segmentID;
+        this.fileName = fileName;
+    }
+
+    public Track getTrack()
+    {
+        return track;
     }
 
     public int getSegmentID()
@@ -53,6 +65,12 @@ public class Segment implements Serializable
         if (!(o instanceof Segment)) return false;
 
         Segment segment = (Segment) o;
-        return segmentID == segment.segmentID && Objects.equals(waypoints, segment.waypoints);
+        return segmentID == segment.segmentID && Objects.equals(fileName, segment.fileName);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(segmentID, fileName);
     }
 }
@@ -0,0 +1,61 @@
+package com.activity_tracker.backend.parser;
+
+import java.io.Serializable;
+
+/**
+ * SegmentInterval: The part of a segment that a chunk contains.
+ * Only holds what the workers need to calculate the segment statistics (the id and file name of the segment, and the
+ * indices of the chunk where the segment starts and ends), so that the segment's own waypoints are never sent along
+ * with a chunk.
+ */
+public class SegmentInterval implements Serializable
+{
+    private final int segmentID;
+    private final String fileName;
+    // startIndex, endIndex: the indices of the chunk where the segment starts and ends, both inclusive
+    private final int startIndex;
+    private final int endIndex;
+
+    /**
+     * @param segmentID the id of the segment
+     * @param fileName the file name of the segment
+     * @param startIndex the index of the chunk where the segment starts
+     * @param endIndex the index of the chunk where the segment ends
+     */
+    public SegmentInterval(int segmentID, String fileName, int startIndex, int endIndex)
+    {
+        this.segmentID = segmentID;
+        this.fileName = fileName;
+        this.startIndex = startIndex;
+        this.endIndex = endIndex;
+    }
+
+    public int getSegmentID()
+    {
+        return segmentID;
+    }
+
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    public int getStartIndex()
+    {
+        return startIndex;
+    }
+
+    public int getEndIndex()
+    {
+        return endIndex;
+    }
+
+    /**
+     * @param index an index of the chunk
+     * @return true if the waypoint at the given index closes a pair of waypoints that lies inside the segment
+     */
+    public boolean contains(int index)
+    {
+        return index > startIndex && index <= endIndex;
+    }
+}
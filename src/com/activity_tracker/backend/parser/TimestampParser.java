@@ -0,0 +1,212 @@
+package com.activity_tracker.backend.parser;
+
+import java.time.Instant;
+
+/**
+ * TimestampParser: Converts the ISO-8601 timestamps found in GPX files (e.g. 2023-03-19T17:33:07Z) to epoch
+ * milliseconds and back.
+ * Parsing reads the digits straight from the text, without creating any intermediate objects, so that it can be
+ * called once for every waypoint of a route.
+ */
+public class TimestampParser
+{
+    /**
+     * Parses a timestamp of the form yyyy-MM-ddTHH:mm:ss, optionally followed by a fraction of a second and by
+     * 'Z' or an offset (+HH:mm, +HHmm, +HH). Timestamps without a zone are treated as UTC.
+     *
+     * @param text the timestamp to parse, surrounding whitespace is ignored
+     * @return the timestamp in milliseconds since the epoch
+     * @throws IllegalArgumentException if the text is not a valid timestamp
+     */
+    public static long parse(CharSequence text)
+    {
+        if (text == null)
+        {
+            throw new IllegalArgumentException("Timestamp cannot be null.");
+        }
+
+        int start = 0;
+        int end = text.length();
+        while (start < end && Character.isWhitespace(text.charAt(start)))
+        {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(text.charAt(end - 1)))
+        {
+            end--;
+        }
+
+        // yyyy-MM-ddTHH:mm:ss is 19 characters long
+        if (end - start < 19
+                || text.charAt(start + 4) != '-' || text.charAt(start + 7) != '-'
+                || (text.charAt(start + 10) != 'T' && text.charAt(start + 10) != 't')
+                || text.charAt(start + 13) != ':' || text.charAt(start + 16) != ':')
+        {
+            throw invalid(text);
+        }
+
+        int year = digits(text, start, 4);
+        int month = digits(text, start + 5, 2);
+        int day = digits(text, start + 8, 2);
+        int hour = digits(text, start + 11, 2);
+        int minute = digits(text, start + 14, 2);
+        int second = digits(text, start + 17, 2);
+
+        if (month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)
+                || hour > 23 || minute > 59 || second > 59)
+        {
+            throw invalid(text);
+        }
+
+        int position = start + 19;
+
+        // fraction of a second, we keep up to millisecond precision
+        int millis = 0;
+        if (position < end && (text.charAt(position) == '.' || text.charAt(position) == ','))
+        {
+            position++;
+            int fractionDigits = 0;
+            while (position < end && isDigit(text.charAt(position)))
+            {
+                if (fractionDigits < 3)
+                {
+                    millis = millis * 10 + (text.charAt(position) - '0');
+                }
+                fractionDigits++;
+                position++;
+            }
+            if (fractionDigits == 0)
+            {
+                throw invalid(text);
+            }
+            for (int i = fractionDigits; i < 3; i++)
+            {
+                millis *= 10;
+            }
+        }
+
+        // zone designator
+        int offsetSeconds = 0;
+        if (position < end)
+        {
+            char zone = text.charAt(position);
+            if ((zone == 'Z' || zone == 'z') && position + 1 == end)
+            {
+                position++;
+            }
+            else if (zone == '+' || zone == '-')
+            {
+                int length = end - position - 1;
+                int offsetHours;
+                int offsetMinutes = 0;
+                if (length == 2)
+                {
+                    offsetHours = digits(text, position + 1, 2);
+                }
+                else if (length == 4)
+                {
+                    offsetHours = digits(text, position + 1, 2);
+                    offsetMinutes = digits(text, position + 3, 2);
+                }
+                else if (length == 5 && text.charAt(position + 3) == ':')
+                {
+                    offsetHours = digits(text, position + 1, 2);
+                    offsetMinutes = digits(text, position + 4, 2);
+                }
+                else
+                {
+                    throw invalid(text);
+                }
+                offsetSeconds = (offsetHours * 3600 + offsetMinutes * 60) * (zone == '-' ? -1 : 1);
+                position = end;
+            }
+            else
+            {
+                throw invalid(text);
+            }
+        }
+
+        if (position != end)
+        {
+            throw invalid(text);
+        }
+
+        long epochSeconds = daysFromCivil(year, month, day) * 86400L + hour * 3600L + minute * 60L + second - offsetSeconds;
+        return epochSeconds * 1000L + millis;
+    }
+
+    /**
+     * Formats epoch milliseconds back to an ISO-8601 timestamp in UTC. Only used for display purposes.
+     *
+     * @param epochMillis the timestamp in milliseconds since the epoch
+     * @return the timestamp as a string, e.g. 2023-03-19T17:33:07Z
+     */
+    public static String format(long epochMillis)
+    {
+        return Instant.ofEpochMilli(epochMillis).toString();
+    }
+
+    /**
+     * Returns the number of days of a month of the proleptic Gregorian calendar, as YearMonth.lengthOfMonth does,
+     * without creating a YearMonth for every timestamp.
+     */
+    private static int lengthOfMonth(int year, int month)
+    {
+        switch (month)
+        {
+            case 2:
+                boolean leap = (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+                return leap ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * Returns the number of days between the epoch and the given date of the proleptic Gregorian calendar.
+     */
+    private static long daysFromCivil(int year, int month, int day)
+    {
+        year -= (month <= 2) ? 1 : 0;
+        final long era = (year >= 0 ? year : year - 399) / 400;
+        final long yearOfEra = year - era * 400;
+        final long dayOfYear = (153L * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Reads a fixed number of decimal digits starting at the given position.
+     *
+     * @throws IllegalArgumentException if any of the characters is not a digit
+     */
+    private static int digits(CharSequence text, int position, int count)
+    {
+        int value = 0;
+        for (int i = position; i < position + count; i++)
+        {
+            char c = text.charAt(i);
+            if (!isDigit(c))
+            {
+                throw invalid(text);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit(char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    private static IllegalArgumentException invalid(CharSequence text)
+    {
+        return new IllegalArgumentException("Invalid timestamp: " + text);
+    }
+}
@@ -0,0 +1,192 @@
+package com.activity_tracker.backend.parser;
+
+import com.activity_tracker.backend.calculations.ActivityCalculator;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Track: Columnar representation of a sequence of waypoints.
+ * Instead of one Waypoint object per point, the latitudes, longitudes, elevations and timestamps are kept in
+ * parallel primitive arrays, the waypoint at index i being made up of the i-th value of each array.
+ * Routes, segments and chunks are all backed by a track.
+ */
+public class Track implements Serializable
+{
+    private double[] latitudes;
+    private double[] longitudes;
+    private double[] elevations;
+    // times: the timestamps of the waypoints, in milliseconds since the epoch
+    private long[] times;
+    // size: the number of waypoints in the track, the arrays may have extra capacity
+    private int size;
+
+    /**
+     * Creates an empty track.
+     * @param capacity the number of waypoints the track can hold before it needs to grow
+     */
+    public Track(int capacity)
+    {
+        if (capacity < 0)
+        {
+            throw new IllegalArgumentException("Capacity cannot be negative.");
+        }
+        this.latitudes = new double[capacity];
+        this.longitudes = new double[capacity];
+        this.elevations = new double[capacity];
+        this.times = new long[capacity];
+        this.size = 0;
+    }
+
+    public Track()
+    {
+        this(16);
+    }
+
+    /**
+     * Appends a waypoint to the end of the track.
+     * @param time the timestamp of the waypoint, in milliseconds since the epoch
+     */
+    public void add(double latitude, double longitude, double elevation, long time)
+    {
+        if (size == times.length)
+        {
+            grow(Math.max(16, size * 2));
+        }
+        latitudes[size] = latitude;
+        longitudes[size] = longitude;
+        elevations[size] = elevation;
+        times[size] = time;
+        size++;
+    }
+
+    /**
+     * Shrinks the arrays to the number of waypoints the track holds. Called once a track is fully read.
+     */
+    public void trimToSize()
+    {
+        if (size != times.length)
+        {
+            grow(size);
+        }
+    }
+
+    private void grow(int capacity)
+    {
+        latitudes = Arrays.copyOf(latitudes, capacity);
+        longitudes = Arrays.copyOf(longitudes, capacity);
+        elevations = Arrays.copyOf(elevations, capacity);
+        times = Arrays.copyOf(times, capacity);
+    }
+
+    /**
+     * Copies a part of this track to a new track.
+     * @param from the index of the first waypoint to copy, inclusive
+     * @param to the index of the last waypoint to copy, exclusive
+     * @return a new track containing the waypoints between from and to
+     * @throws IndexOutOfBoundsException if the range is not inside the track
+     */
+    public Track slice(int from, int to)
+    {
+        if (from < 0 || to > size || from > to)
+        {
+            throw new IndexOutOfBoundsException("Invalid range [" + from + ", " + to + ") for a track of size " + size);
+        }
+        Track slice = new Track(0);
+        slice.latitudes = Arrays.copyOfRange(latitudes, from, to);
+        slice.longitudes = Arrays.copyOfRange(longitudes, from, to);
+        slice.elevations = Arrays.copyOfRange(elevations, from, to);
+        slice.times = Arrays.copyOfRange(times, from, to);
+        slice.size = to - from;
+        return slice;
+    }
+
+    /**
+     * Works like Collections.indexOfSubList on lists of waypoints: two waypoints match if they are at most
+     * GPS_ERROR metres apart, to work around a possible GPS drift.
+     * @param other the track to look for
+     * @return the index of this track where the first occurrence of the other track begins, or -1 if there is none
+     */
+    public int indexOf(Track other)
+    {
+        int maxCandidate = size - other.size;
+
+        nextCandidate:
+        for (int candidate = 0; candidate <= maxCandidate; candidate++)
+        {
+            for (int i = 0; i < other.size; i++)
+            {
+                if (!matches(candidate + i, other, i))
+                {
+                    continue nextCandidate;
+                }
+            }
+            return candidate;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the waypoint at the given index of this track is at most GPS_ERROR metres apart from the
+     * waypoint at the given index of the other track, the same way Waypoint.equals compares waypoints.
+     */
+    public boolean matches(int index, Track other, int otherIndex)
+    {
+        return ActivityCalculator.calculateDistanceInMeters(latitudes[index], longitudes[index],
+                other.latitudes[otherIndex], other.longitudes[otherIndex]) <= Waypoint.GPS_ERROR;
+    }
+
+    /**
+     * Creates a Waypoint object for the waypoint at the given index. Only used for display purposes.
+     */
+    public Waypoint getWaypoint(int index)
+    {
+        checkIndex(index);
+        return new Waypoint(latitudes[index], longitudes[index], elevations[index], times[index]);
+    }
+
+    public double getLatitude(int index)
+    {
+        checkIndex(index);
+        return latitudes[index];
+    }
+
+    public double getLongitude(int index)
+    {
+        checkIndex(index);
+        return longitudes[index];
+    }
+
+    public double getElevation(int index)
+    {
+        checkIndex(index);
+        return elevations[index];
+    }
+
+    /**
+     * @return the timestamp of the waypoint at the given index, in milliseconds since the epoch
+     */
+    public long getTime(int index)
+    {
+        checkIndex(index);
+        return times[index];
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= size)
+        {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for a track of size " + size);
+        }
+    }
+}
@@ -8,24 +8,29 @@ import java.io.Serializable;
 
 /**
  * A class representing a geographic location, including latitude, longitude, elevation, and timestamp.
+ * The timestamp is parsed once when the waypoint is read, and kept in milliseconds since the epoch.
  */
 public class Waypoint implements Serializable
 {
+    // GPS_ERROR: the maximum distance in metres between two waypoints that are considered to be the same
+    static final double GPS_ERROR = 10;
+
     final private double latitude;
     final private double longitude;
     final private double elevation;
-    final private String timestamp;
+    final private long time;
 
     /**
      * Constructs a new Waypoint with the given latitude, longitude, elevation, and timestamp.
+     * @param time the timestamp of the waypoint, in milliseconds since the epoch
      */
     public Waypoint(double latitude, double longitude,
-                    double elevation, String timestamp)
+                    double elevation, long time)
     {
         this.latitude = latitude;
         this.longitude = longitude;
         this.elevation = elevation;
-        this.timestamp = timestamp;
+        this.time = time;
     }
 
     public double getLatitude()
@@ -43,9 +48,20 @@ public class Waypoint implements Serializable
         return elevation;
     }
 
+    /**
+     * @return the timestamp of the waypoint, in milliseconds since the epoch
+     */
+    public long getTime()
+    {
+        return time;
+    }
+
+    /**
+     * @return the timestamp of the waypoint as an ISO-8601 string, rebuilt from its epoch value
+     */
     public String getTimestamp()
     {
-        return timestamp;
+        return TimestampParser.format(time);
     }
 
 
@@ -55,7 +71,7 @@ public class Waypoint implements Serializable
     public String toString()
     {
         return "Latitude: " + latitude + " Longitude: "
-                + longitude + " Elevation: " + elevation + " Timestamp: " + timestamp;
+                + longitude + " Elevation: " + elevation + " Timestamp: " + getTimestamp();
     }
 
     /* equals: Used when calculating segments, and is used to work around a possible GPS drift between two waypoints
@@ -63,7 +79,6 @@ public class Waypoint implements Serializable
     @Override
     public boolean equals(Object o)
     {
-        final double GPS_ERROR = 10;
         if (this == o) return true;
         if (!(o instanceof Waypoint)) return false;
 
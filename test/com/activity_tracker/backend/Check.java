@@ -0,0 +1,80 @@
+package com.activity_tracker.backend;
+
+import java.util.Objects;
+
+/**
+ * Check: The assertions used by the tests. The project has no build tool and no test framework, so every test is a
+ * plain program: it runs its checks, prints the ones that failed, and exits with a non-zero status if any did.
+ */
+public class Check
+{
+    // passed, failed: the number of checks run so far by the test
+    private static int passed;
+    private static int failed;
+
+    /**
+     * Records a check.
+     * @param condition true if the check passed
+     * @param description what was checked, printed if it failed
+     */
+    public static void that(boolean condition, String description)
+    {
+        if (condition)
+        {
+            passed++;
+        }
+        else
+        {
+            failed++;
+            System.out.println("FAILED: " + description);
+        }
+    }
+
+    /**
+     * Checks that two values are equal.
+     * @param expected the expected value
+     * @param actual the actual value
+     * @param description what was checked, printed along with both values if they differ
+     */
+    public static void equal(Object expected, Object actual, String description)
+    {
+        that(Objects.equals(expected, actual), description + ": expected " + expected + ", got " + actual);
+    }
+
+    /**
+     * Checks that an action throws an exception of the given type.
+     * @param type the type of exception expected
+     * @param action the action to run
+     * @param description what was checked, printed if the action did not throw the exception
+     */
+    public static void fails(Class<? extends Throwable> type, Action action, String description)
+    {
+        try
+        {
+            action.run();
+            that(false, description + ": nothing was thrown");
+        }
+        catch (Throwable e)
+        {
+            that(type.isInstance(e), description + ": expected " + type.getSimpleName() + ", got " + e);
+        }
+    }
+
+    /**
+     * Prints the number of checks that passed and failed, and exits with a non-zero status if any failed.
+     * @param test the name of the test
+     */
+    public static void finish(String test)
+    {
+        System.out.println(test + ": " + passed + " checks passed, " + failed + " failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * Action: Code that may throw any exception.
+     */
+    public interface Action
+    {
+        void run() throws Exception;
+    }
+}
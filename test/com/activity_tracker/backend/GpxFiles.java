@@ -0,0 +1,92 @@
+package com.activity_tracker.backend;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * GpxFiles: Generates the GPX files uploaded by the tests and the benchmarks. A route is built from the registered
+ * segments: every segment is preceded by a lead-in of waypoints heading to it, so that the size of the route can be
+ * chosen freely while the segments are still found in it.
+ */
+public class GpxFiles
+{
+    // SEGMENTS: the segments the routes go through, in order
+    private static final Path[] SEGMENTS = {Paths.get("registered_segments", "segment1.gpx"),
+            Paths.get("registered_segments", "segment2.gpx")};
+    // WAYPOINT: matches a waypoint of the registered segments, which are all laid out the same way
+    private static final Pattern WAYPOINT = Pattern.compile(
+            "lat=\"([^\"]+)\" lon=\"([^\"]+)\">\\s*<ele>([^<]+)</ele>\\s*<time>([^<]+)</time>");
+    // START: the time of the first waypoint of every route
+    private static final long START = 1_679_247_187L;
+
+    /**
+     * Generates a route going through all the registered segments.
+     * @param user the creator of the route
+     * @param leadIn the number of waypoints preceding every segment
+     * @return the content of the GPX file
+     * @throws IOException if the registered segments could not be read
+     */
+    public static byte[] route(String user, int leadIn) throws IOException
+    {
+        ArrayList<double[]> waypoints = new ArrayList<>();
+        for (Path segment : SEGMENTS)
+        {
+            List<double[]> segmentWaypoints = waypoints(segment);
+            double[] first = segmentWaypoints.get(0);
+            for (int i = 0; i < leadIn; i++)
+            {
+                waypoints.add(new double[] {first[0] + 0.01 - (i * 0.01 / Math.max(leadIn, 1)), first[1],
+                        10 + i % 7});
+            }
+            waypoints.addAll(segmentWaypoints);
+        }
+        return gpx(user, waypoints);
+    }
+
+    /**
+     * Writes waypoints to a GPX file, one every 7 to 14 seconds.
+     * @param user the creator of the route
+     * @param waypoints the latitude, longitude and elevation of every waypoint
+     * @return the content of the GPX file
+     */
+    public static byte[] gpx(String user, List<double[]> waypoints)
+    {
+        StringBuilder gpx = new StringBuilder("<?xml version=\"1.0\"?>\n<gpx version=\"1.1\" creator=\"")
+                .append(user).append("\">\n");
+        long time = START;
+        for (int i = 0; i < waypoints.size(); i++)
+        {
+            double[] waypoint = waypoints.get(i);
+            time += 7 + (i * 31 & 7);
+            gpx.append(String.format(Locale.ROOT, "<wpt lat=\"%s\" lon=\"%s\">%n    <ele>%s</ele>%n    <time>%s</time>%n"
+                    + "</wpt>%n", waypoint[0], waypoint[1], waypoint[2], Instant.ofEpochSecond(time)));
+        }
+        gpx.append("</gpx>\n");
+        return gpx.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the waypoints of a registered segment.
+     * @return the latitude, longitude and elevation of every waypoint
+     */
+    private static List<double[]> waypoints(Path segment) throws IOException
+    {
+        ArrayList<double[]> waypoints = new ArrayList<>();
+        Matcher matcher = WAYPOINT.matcher(Files.readString(segment));
+        while (matcher.find())
+        {
+            waypoints.add(new double[] {Double.parseDouble(matcher.group(1)), Double.parseDouble(matcher.group(2)),
+                    Double.parseDouble(matcher.group(3))});
+        }
+        return waypoints;
+    }
+}
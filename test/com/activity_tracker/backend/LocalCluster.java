@@ -0,0 +1,341 @@
+package com.activity_tracker.backend;
+
+import com.activity_tracker.backend.network.MessageChannel;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * LocalCluster: Runs a master and its workers on this machine, each in a process of its own, as they are deployed.
+ * The cluster gets a directory of its own, holding the configuration file of the project with the given overrides
+ * (the loopback address and free ports among them), the registered segments and an empty statistics directory.
+ * The output of every process is kept, so that the tests can wait for the lines it prints.
+ * <p>
+ * The processes are started with the class path of the test, so the tests must be run with the classes of the
+ * project on it, from the project directory.
+ */
+public class LocalCluster implements AutoCloseable
+{
+    private final Path directory;
+    private final int clientPort;
+    private final String clientProtocol;
+    // nodes: the processes started, in order, the master first
+    private final List<Node> nodes = new ArrayList<>();
+    private Node master;
+
+    /**
+     * Creates the directory of the cluster. No process is started yet.
+     * @param overrides the properties to set in the configuration file, on top of the ones of the project
+     * @throws IOException if the directory could not be created
+     */
+    public LocalCluster(Map<String, String> overrides) throws IOException
+    {
+        directory = Files.createTempDirectory("activity-tracker");
+        Properties config = new Properties();
+        try (InputStream in = Files.newInputStream(Paths.get("config.properties")))
+        {
+            config.load(in);
+        }
+        config.setProperty("master_ip", "127.0.0.1");
+        config.setProperty("client_port", String.valueOf(freePort()));
+        config.setProperty("worker_port", String.valueOf(freePort()));
+        config.setProperty("segment_directory", "./registered_segments/");
+        config.setProperty("statistics_directory", "./statistics/");
+        config.putAll(overrides);
+        try (OutputStream out = Files.newOutputStream(directory.resolve("config.properties")))
+        {
+            config.store(out, "LocalCluster");
+        }
+
+        Path segments = Files.createDirectory(directory.resolve("registered_segments"));
+        try (Stream<Path> files = Files.list(Paths.get("registered_segments")))
+        {
+            for (Path file : (Iterable<Path>) files::iterator)
+            {
+                Files.copy(file, segments.resolve(file.getFileName()));
+            }
+        }
+        Files.createDirectory(directory.resolve("statistics"));
+
+        clientPort = Integer.parseInt(config.getProperty("client_port").trim());
+        clientProtocol = config.getProperty("client_protocol", "java").trim();
+    }
+
+    /**
+     * Starts the master and waits until it accepts clients.
+     * @return the process of the master
+     * @throws IOException if the process could not be started
+     * @throws IllegalStateException if the master did not start in time
+     */
+    public Node startMaster() throws IOException, InterruptedException
+    {
+        master = start("com.activity_tracker.backend.main.Master");
+        // both ports are bound before the master accepts workers, whichever front end serves the clients
+        master.await("MASTER: Waiting for worker connection", 1, 10_000);
+        return master;
+    }
+
+    /**
+     * Starts a worker and waits until the master has registered it.
+     * @return the process of the worker
+     * @throws IOException if the process could not be started
+     * @throws IllegalStateException if the master did not register the worker in time
+     */
+    public Node startWorker() throws IOException, InterruptedException
+    {
+        int registered = master.count("Worker reported a capacity of");
+        Node worker = start("com.activity_tracker.backend.main.Worker");
+        master.await("Worker reported a capacity of", registered + 1, 10_000);
+        return worker;
+    }
+
+    /**
+     * Connects a client to the master, through the protocol the master expects, and sends its user name.
+     * @param user the user name of the client
+     * @return the channel of the client
+     * @throws IOException if the client could not connect
+     */
+    public MessageChannel connect(String user) throws IOException
+    {
+        Socket socket = new Socket("127.0.0.1", clientPort);
+        // a test waiting for an answer that never comes fails instead of hanging
+        socket.setSoTimeout(60_000);
+        // the benchmarks time every request, which must not wait for the ACK of the previous one
+        socket.setTcpNoDelay(true);
+        MessageChannel channel = MessageChannel.open(socket, clientProtocol);
+        channel.send(user);
+        return channel;
+    }
+
+    public Node getMaster()
+    {
+        return master;
+    }
+
+    public int getClientPort()
+    {
+        return clientPort;
+    }
+
+    public String getClientProtocol()
+    {
+        return clientProtocol;
+    }
+
+    /**
+     * Kills every process still running and deletes the directory of the cluster.
+     * @throws IOException if the directory could not be deleted
+     */
+    @Override
+    public void close() throws IOException
+    {
+        for (Node node : nodes)
+        {
+            node.kill();
+        }
+        try (Stream<Path> files = Files.walk(directory))
+        {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+            {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private Node start(String mainClass) throws IOException
+    {
+        Path java = Paths.get(System.getProperty("java.home"), "bin", "java");
+        Process process = new ProcessBuilder(java.toString(), "-cp", System.getProperty("java.class.path"), mainClass)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .start();
+        Node node = new Node(process);
+        nodes.add(node);
+        return node;
+    }
+
+    private static int freePort() throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(0))
+        {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Node: A process of the cluster, and the lines it has printed so far.
+     */
+    public static class Node
+    {
+        private final Process process;
+        // lines: the lines printed by the process, guarded by lock
+        private final List<String> lines = new ArrayList<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition printed = lock.newCondition();
+
+        private Node(Process process)
+        {
+            this.process = process;
+            Thread reader = new Thread(this::readOutput);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void readOutput()
+        {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                    StandardCharsets.UTF_8)))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    lock.lock();
+                    try
+                    {
+                        lines.add(line);
+                        printed.signalAll();
+                    }
+                    finally
+                    {
+                        lock.unlock();
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                // the process was killed
+            }
+        }
+
+        /**
+         * @param fragment the text to look for
+         * @return the number of lines printed so far containing the text
+         */
+        public int count(String fragment)
+        {
+            lock.lock();
+            try
+            {
+                return (int) lines.stream().filter(line -> line.contains(fragment)).count();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Waits until the process has printed a number of lines containing a text.
+         * @param fragment the text to look for
+         * @param count the number of lines to wait for
+         * @param timeoutMillis how long to wait for
+         * @throws IllegalStateException if the lines were not printed in time, with the output of the process
+         */
+        public void await(String fragment, int count, long timeoutMillis) throws InterruptedException
+        {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            lock.lock();
+            try
+            {
+                while (lines.stream().filter(line -> line.contains(fragment)).count() < count)
+                {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0)
+                    {
+                        throw new IllegalStateException("Timed out waiting for \"" + fragment + "\", output:\n"
+                                + String.join("\n", lines));
+                    }
+                    printed.awaitNanos(left);
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return everything the process has printed so far
+         */
+        public String output()
+        {
+            lock.lock();
+            try
+            {
+                return String.join("\n", lines);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return the process id of the process
+         */
+        public long pid()
+        {
+            return process.pid();
+        }
+
+        /**
+         * Suspends the process, as if its machine stopped responding. Relies on the kill command of the system.
+         */
+        public void pause() throws IOException, InterruptedException
+        {
+            signal("-STOP");
+        }
+
+        /**
+         * Resumes a process suspended by pause.
+         */
+        public void resume() throws IOException, InterruptedException
+        {
+            signal("-CONT");
+        }
+
+        /**
+         * Kills the process at once, without letting it leave the cluster, and waits for it to exit. If the calling
+         * thread is interrupted meanwhile, returns without waiting and leaves the thread interrupted.
+         */
+        public void kill()
+        {
+            process.destroyForcibly();
+            try
+            {
+                process.waitFor();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void signal(String signal) throws IOException, InterruptedException
+        {
+            Process kill = new ProcessBuilder("kill", signal, String.valueOf(process.pid())).inheritIO().start();
+            if (kill.waitFor() != 0)
+            {
+                throw new IOException("Could not send " + signal + " to process " + process.pid());
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.activity_tracker.backend.calculations;
+
+import com.activity_tracker.backend.Check;
+import com.activity_tracker.backend.GpxFiles;
+import com.activity_tracker.backend.mapreduce.Map;
+import com.activity_tracker.backend.parser.Chunk;
+import com.activity_tracker.backend.parser.GPXParser;
+import com.activity_tracker.backend.parser.Route;
+import com.activity_tracker.backend.parser.Segment;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * ActivityCalculatorTest: Checks that the distance between two points stays a number when the points are identical or
+ * centimetres apart, as when a paused device keeps repeating its last position, and that a route holding such points
+ * gets the same distance as the route without them.
+ * <p>
+ * Run from the project directory:
+ * <pre>
+ *     javac -d out $(find src test -name '*.java')
+ *     java -cp out com.activity_tracker.backend.calculations.ActivityCalculatorTest
+ * </pre>
+ */
+public class ActivityCalculatorTest
+{
+    // PAIRS: the random pairs of points checked
+    private static final int PAIRS = 100_000;
+
+    public static void main(String[] args)
+    {
+        Random random = new Random(42);
+        int identical = 0;
+        double farthestIdentical = 0;
+        int close = 0;
+        double farthest = 0;
+        for (int i = 0; i < PAIRS; i++)
+        {
+            double lat = random.nextDouble() * 180 - 90;
+            double lon = random.nextDouble() * 360 - 180;
+            double same = ActivityCalculator.calculateDistanceInMeters(lat, lon, lat, lon);
+            if (!Double.isNaN(same) && same >= 0)
+            {
+                identical++;
+                farthestIdentical = Math.max(farthestIdentical, same);
+            }
+            // up to about a centimetre apart
+            double distance = ActivityCalculator.calculateDistanceInMeters(lat, lon,
+                    lat + random.nextDouble() * 1e-7, lon + random.nextDouble() * 1e-7);
+            if (!Double.isNaN(distance) && distance >= 0)
+            {
+                close++;
+                farthest = Math.max(farthest, distance);
+            }
+        }
+        Check.equal(PAIRS, identical, "identical points at a distance that is a number");
+        // near 1, an error of one ulp in the cosine is about 10 centimetres of arc, well within the GPS error
+        Check.that(farthestIdentical < 0.5, "identical points at most " + farthestIdentical + " metres apart");
+        Check.equal(PAIRS, close, "points about a centimetre apart at a distance that is a number");
+        Check.that(farthest < 0.5, "points about a centimetre apart at most " + farthest + " metres apart");
+
+        // a thousandth of a degree of latitude is about 111 metres
+        double degree = ActivityCalculator.calculateDistanceInMeters(37.9, 23.7, 37.901, 23.7);
+        Check.that(Math.abs(degree - 111.3) < 1, "0.001 degrees of latitude " + degree + " metres apart");
+
+        checkPausedRoute();
+        Check.finish("ActivityCalculatorTest");
+    }
+
+    /**
+     * Maps a route in which the device stood still for a while, repeating its position, and checks that its distance
+     * is the one of the route without the repeated points.
+     */
+    private static void checkPausedRoute()
+    {
+        List<double[]> moving = new ArrayList<>();
+        List<double[]> paused = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+        {
+            double[] waypoint = {37.9 + i * 0.0003, 23.7, 10};
+            moving.add(waypoint);
+            paused.add(waypoint);
+            if (i == 20)
+            {
+                for (int j = 0; j < 10; j++)
+                {
+                    paused.add(waypoint);
+                }
+            }
+        }
+        double expected = distance(moving);
+        double actual = distance(paused);
+        Check.that(!Double.isNaN(actual), "paused route at a distance that is a number");
+        Check.that(Math.abs(expected - actual) < 0.001, "paused route " + actual + " km long, expected " + expected);
+    }
+
+    /**
+     * @return the distance of a route mapped as a single chunk, in kilometres
+     */
+    private static double distance(List<double[]> waypoints)
+    {
+        Route route = GPXParser.parseRoute(new ByteArrayInputStream(GpxFiles.gpx("alice", waypoints)),
+                new LinkedList<Segment>());
+        int last = route.getTrack().size() - 1;
+        return Map.map(new Chunk(route, 0, 0, last, 1)).getStats().getDistance();
+    }
+}
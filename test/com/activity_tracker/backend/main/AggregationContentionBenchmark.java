@@ -0,0 +1,301 @@
+package com.activity_tracker.backend.main;
+
+import com.activity_tracker.backend.calculations.ActivityStats;
+import com.activity_tracker.backend.mapreduce.ChunkResult;
+import com.activity_tracker.backend.mapreduce.RouteAccumulator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * AggregationContentionBenchmark: Measures how fast the results of the workers are folded into their routes when
+ * many worker handlers deliver them at once, for the routes of many clients.
+ * Two aggregations are compared:
+ * <ul>
+ *     <li>global lock: the one replaced by RouteAggregator. Every result goes through one map guarded by one lock,
+ *     and a completed route is handed to the queue of its client, where a thread of the client waits for it.</li>
+ *     <li>per route: RouteAggregator, locking only the route of every result, and completing the future of the route
+ *     on the thread delivering its last result.</li>
+ * </ul>
+ * The results of all the routes are created beforehand and interleaved, so that every route is being mapped while
+ * the others are, as on a busy master. For every number of delivering threads, the median of the results folded per
+ * millisecond is printed, timed from the first result delivered until every client received all its routes.
+ * The global lock only costs when the threads run on several cores at once, so the gap between the two aggregations
+ * grows with the number of cores: on a single core they fold results equally fast.
+ * <p>
+ * Run from the project directory:
+ * <pre>
+ *     javac -d out $(find src test -name '*.java')
+ *     java -cp out com.activity_tracker.backend.main.AggregationContentionBenchmark [clients] [routes per client]
+ * </pre>
+ */
+public class AggregationContentionBenchmark
+{
+    // THREADS: the numbers of worker handlers delivering the results at once
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+    // CHUNKS: the chunks every route is split into
+    private static final int CHUNKS = 16;
+    // ROUNDS: the runs of every aggregation for every number of threads, the first of which only warms the JIT up
+    private static final int ROUNDS = 6;
+    // failure: set when a thread of the benchmark threw, so that its run is not reported
+    private static volatile boolean failure;
+
+    public static void main(String[] args) throws Exception
+    {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int routesPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+        System.out.printf("%d clients, %d routes each, %d chunks per route, %d processors%n", clients, routesPerClient,
+                CHUNKS, Runtime.getRuntime().availableProcessors());
+        int routeID = 0;
+        for (int threads : THREADS)
+        {
+            double[] global = new double[ROUNDS];
+            double[] perRoute = new double[ROUNDS];
+            for (int round = 0; round < ROUNDS; round++)
+            {
+                global[round] = run(new GlobalLockAggregation(clients), clients, routesPerClient, threads, routeID);
+                routeID += clients * routesPerClient;
+                perRoute[round] = run(new PerRouteAggregation(), clients, routesPerClient, threads, routeID);
+                routeID += clients * routesPerClient;
+            }
+            System.out.printf("%2d threads: global lock %8.0f results/ms, per route %8.0f results/ms, %.2fx%n",
+                    threads, median(global), median(perRoute), median(perRoute) / median(global));
+        }
+    }
+
+    /**
+     * @return the median of the rounds measured, leaving out the first one, which only warms the JIT up
+     */
+    private static double median(double[] rounds)
+    {
+        double[] measured = Arrays.copyOfRange(rounds, 1, rounds.length);
+        Arrays.sort(measured);
+        return measured[measured.length / 2];
+    }
+
+    /**
+     * Delivers the results of every route of every client from the given number of threads, while a thread of every
+     * client waits for the stats of its routes.
+     * @param firstRouteID the id of the first route, so that no two runs share route ids
+     * @return the results folded per millisecond
+     * @throws IllegalStateException if a route was not reduced to the stats of all its chunks
+     */
+    private static double run(Aggregation aggregation, int clients, int routesPerClient, int threads,
+                              int firstRouteID) throws Exception
+    {
+        int routes = clients * routesPerClient;
+        // results: chunk-major, so that the threads deliver the results of all the routes interleaved
+        List<ChunkResult> results = new ArrayList<>(routes * CHUNKS);
+        for (int chunk = 0; chunk < CHUNKS; chunk++)
+        {
+            for (int route = 0; route < routes; route++)
+            {
+                int id = firstRouteID + route;
+                results.add(new ChunkResult(route % clients, id, new int[] {chunk}, CHUNKS,
+                        new ActivityStats(id, 1, 1, 1, 1, new ArrayList<>()), 1, false));
+            }
+        }
+
+        List<List<CompletableFuture<ActivityStats>>> futures = new ArrayList<>();
+        for (int client = 0; client < clients; client++)
+        {
+            futures.add(new ArrayList<>());
+        }
+        for (int route = 0; route < routes; route++)
+        {
+            futures.get(route % clients).add(aggregation.expect(firstRouteID + route, route % clients));
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> running = new ArrayList<>();
+        for (int client = 0; client < clients; client++)
+        {
+            List<CompletableFuture<ActivityStats>> clientFutures = futures.get(client);
+            int clientID = client;
+            running.add(start(() ->
+            {
+                for (int i = 0; i < clientFutures.size(); i++)
+                {
+                    ActivityStats stats = aggregation.take(clientID, clientFutures.get(i));
+                    if (stats.getDistance() != CHUNKS)
+                    {
+                        throw new IllegalStateException("Route " + i + " of client " + clientID
+                                + " was reduced to a distance of " + stats.getDistance() + " instead of " + CHUNKS);
+                    }
+                }
+            }, start));
+        }
+        for (int thread = 0; thread < threads; thread++)
+        {
+            int first = thread;
+            running.add(start(() ->
+            {
+                for (int i = first; i < results.size(); i += threads)
+                {
+                    aggregation.add(results.get(i));
+                }
+            }, start));
+        }
+
+        long started = System.nanoTime();
+        start.countDown();
+        for (Thread thread : running)
+        {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - started;
+        if (failure)
+        {
+            throw new IllegalStateException("A thread of the benchmark failed");
+        }
+        return results.size() / (elapsed / 1e6);
+    }
+
+    /**
+     * Starts a thread running the task once the latch is released, and recording whether it failed.
+     */
+    private static Thread start(Runnable task, CountDownLatch start)
+    {
+        Thread thread = new Thread(() ->
+        {
+            try
+            {
+                start.await();
+                task.run();
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+                failure = true;
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Aggregation: The way the results are folded into their routes and handed to their clients.
+     */
+    private abstract static class Aggregation
+    {
+        /**
+         * Starts collecting the results of a route.
+         * @return the future of the route, if the aggregation completes one
+         */
+        abstract CompletableFuture<ActivityStats> expect(int routeID, int clientID);
+
+        /**
+         * Called by the delivering threads for every result.
+         */
+        abstract void add(ChunkResult result);
+
+        /**
+         * Called by the thread of a client to wait for the stats of its next route.
+         */
+        abstract ActivityStats take(int clientID, CompletableFuture<ActivityStats> future);
+    }
+
+    /**
+     * GlobalLockAggregation: All the routes in one map behind one lock, and a queue per client with wait/notify
+     * hand-off, as before RouteAggregator.
+     */
+    private static class GlobalLockAggregation extends Aggregation
+    {
+        // routeHashmap: the routes being mapped, by route id, guarded by routeHashmapLock
+        private final HashMap<Integer, RouteAccumulator> routeHashmap = new HashMap<>();
+        private final Object routeHashmapLock = new Object();
+        // statsQueues: the stats of the completed routes waiting for every client
+        private final List<ArrayDeque<ActivityStats>> statsQueues = new ArrayList<>();
+
+        GlobalLockAggregation(int clients)
+        {
+            for (int i = 0; i < clients; i++)
+            {
+                statsQueues.add(new ArrayDeque<>());
+            }
+        }
+
+        @Override
+        CompletableFuture<ActivityStats> expect(int routeID, int clientID)
+        {
+            return null;
+        }
+
+        @Override
+        void add(ChunkResult result)
+        {
+            ActivityStats finalResults;
+            synchronized (routeHashmapLock)
+            {
+                RouteAccumulator accumulator = routeHashmap.computeIfAbsent(result.getRouteID(),
+                        routeID -> new RouteAccumulator(routeID, result.getTotalChunks()));
+                accumulator.add(result);
+                if (!accumulator.isComplete())
+                {
+                    return;
+                }
+                finalResults = accumulator.finish();
+                routeHashmap.remove(result.getRouteID());
+            }
+            ArrayDeque<ActivityStats> statsQueue = statsQueues.get(result.getClientID());
+            synchronized (statsQueue)
+            {
+                statsQueue.add(finalResults);
+                statsQueue.notify();
+            }
+        }
+
+        @Override
+        ActivityStats take(int clientID, CompletableFuture<ActivityStats> future)
+        {
+            ArrayDeque<ActivityStats> statsQueue = statsQueues.get(clientID);
+            synchronized (statsQueue)
+            {
+                while (statsQueue.isEmpty())
+                {
+                    try
+                    {
+                        statsQueue.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return statsQueue.poll();
+            }
+        }
+    }
+
+    /**
+     * PerRouteAggregation: RouteAggregator, as the master uses it.
+     */
+    private static class PerRouteAggregation extends Aggregation
+    {
+        private final RouteAggregator aggregator = new RouteAggregator();
+
+        @Override
+        CompletableFuture<ActivityStats> expect(int routeID, int clientID)
+        {
+            return aggregator.expect(routeID);
+        }
+
+        @Override
+        void add(ChunkResult result)
+        {
+            aggregator.add(result);
+        }
+
+        @Override
+        ActivityStats take(int clientID, CompletableFuture<ActivityStats> future)
+        {
+            return future.join();
+        }
+    }
+}
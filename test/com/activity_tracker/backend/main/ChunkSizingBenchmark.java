@@ -0,0 +1,115 @@
+package com.activity_tracker.backend.main;
+
+import com.activity_tracker.backend.GpxFiles;
+import com.activity_tracker.backend.LocalCluster;
+import com.activity_tracker.backend.calculations.ActivityStats;
+import com.activity_tracker.backend.misc.GPXData;
+import com.activity_tracker.backend.network.MessageChannel;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ChunkSizingBenchmark: Compares the time routes of different sizes take to be answered, from the upload to the
+ * statistics, when the master splits them with the fixed policy and with the adaptive one.
+ * A master with two workers is started for every policy. Every route size is uploaded a few times to warm the
+ * cluster up, which also gives the adaptive policy the costs it works from, and is then timed one upload at a time.
+ * The median and the 90th percentile of the times are printed, along with the number of chunks the route was split
+ * into.
+ * <p>
+ * Run from the project directory:
+ * <pre>
+ *     javac -d out $(find src test -name '*.java')
+ *     java -cp out com.activity_tracker.backend.main.ChunkSizingBenchmark [uploads per size]
+ * </pre>
+ */
+public class ChunkSizingBenchmark
+{
+    // LEAD_INS: the waypoints preceding every segment in the routes, giving routes of about 16 to 100000 waypoints
+    private static final int[] LEAD_INS = {0, 50, 500, 5_000, 50_000};
+    // WARMUP_UPLOADS: the uploads of every size before the timed ones
+    private static final int WARMUP_UPLOADS = 5;
+
+    public static void main(String[] args) throws Exception
+    {
+        int uploads = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+
+        byte[][] routes = new byte[LEAD_INS.length][];
+        for (int i = 0; i < LEAD_INS.length; i++)
+        {
+            routes[i] = GpxFiles.route("alice", LEAD_INS[i]);
+        }
+
+        for (String policy : List.of("fixed", "adaptive"))
+        {
+            System.out.println("Chunk sizing: " + policy);
+            try (LocalCluster cluster = new LocalCluster(Map.of("chunk_sizing", policy)))
+            {
+                LocalCluster.Node master = cluster.startMaster();
+                cluster.startWorker();
+                cluster.startWorker();
+                MessageChannel client = cluster.connect("alice");
+
+                for (byte[] route : routes)
+                {
+                    for (int i = 0; i < WARMUP_UPLOADS; i++)
+                    {
+                        upload(client, route);
+                    }
+                }
+
+                for (byte[] route : routes)
+                {
+                    long[] times = new long[uploads];
+                    ActivityStats stats = null;
+                    for (int i = 0; i < uploads; i++)
+                    {
+                        long start = System.nanoTime();
+                        stats = upload(client, route);
+                        times[i] = System.nanoTime() - start;
+                    }
+                    Arrays.sort(times);
+                    System.out.printf("  %7.0f m route, %-12s p50 %8.2f ms, p90 %8.2f ms%n", stats.getDistance() * 1000,
+                            chunks(master), times[uploads / 2] / 1e6, times[(int) (uploads * 0.9)] / 1e6);
+                }
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Uploads a route and waits for its statistics.
+     * @throws IllegalStateException if the route was not answered with its statistics
+     */
+    private static ActivityStats upload(MessageChannel client, byte[] route) throws Exception
+    {
+        client.send(new GPXData("route.gpx", route));
+        Object answer = client.read();
+        if (!(answer instanceof ActivityStats))
+        {
+            throw new IllegalStateException("The route was answered with " + answer);
+        }
+        return (ActivityStats) answer;
+    }
+
+    /**
+     * @return the size and the number of chunks of the last route the master split, as it printed them
+     */
+    private static String chunks(LocalCluster.Node master)
+    {
+        String[] lines = master.output().split("\n");
+        for (int i = lines.length - 1; i >= 0; i--)
+        {
+            // WorkDispatcher: Splitting route 7 of 1016 waypoints into 8 chunks
+            String line = lines[i];
+            int of = line.indexOf(" of ");
+            if (line.startsWith("WorkDispatcher: Splitting route") && of >= 0)
+            {
+                String[] words = line.substring(of + 4).split(" ");
+                return words[0] + " waypoints, " + words[3] + (words[3].equals("1") ? " chunk," : " chunks,");
+            }
+        }
+        return "";
+    }
+}
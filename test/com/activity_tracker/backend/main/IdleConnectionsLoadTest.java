@@ -0,0 +1,146 @@
+package com.activity_tracker.backend.main;
+
+import com.activity_tracker.backend.Check;
+import com.activity_tracker.backend.GpxFiles;
+import com.activity_tracker.backend.LocalCluster;
+import com.activity_tracker.backend.calculations.ActivityStats;
+import com.activity_tracker.backend.calculations.Statistics;
+import com.activity_tracker.backend.misc.GPXData;
+import com.activity_tracker.backend.misc.Request;
+import com.activity_tracker.backend.misc.Response;
+import com.activity_tracker.backend.network.MessageChannel;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * IdleConnectionsLoadTest: Holds a large number of idle clients connected to the master while another client uploads
+ * routes, and checks that the routes are answered and that the idle clients are still served afterwards.
+ * It runs the blocking front end with platform threads and with virtual threads, and the non-blocking front end,
+ * printing for each the time the uploads took and the threads and memory of the master, as /proc reports them.
+ * <p>
+ * Virtual threads need Java 21 or later: on older runtimes the master falls back to platform threads, and the
+ * second run measures platform threads again. Every connection takes a file descriptor in this process and in the
+ * master, so the limit of open files must be above the number of connections.
+ * <p>
+ * Run from the project directory:
+ * <pre>
+ *     javac -d out $(find src test -name '*.java')
+ *     java -cp out com.activity_tracker.backend.main.IdleConnectionsLoadTest [connections]
+ * </pre>
+ */
+public class IdleConnectionsLoadTest
+{
+    // ROUTES: the waypoints preceding every segment in each of the routes uploaded
+    private static final int[] ROUTES = {5000, 20, 500, 50, 2000};
+    // SAMPLED_IDLE_CLIENTS: the idle clients asking for the statistics once the routes are answered
+    private static final int SAMPLED_IDLE_CLIENTS = 20;
+
+    public static void main(String[] args) throws Exception
+    {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+
+        run("blocking, platform threads", Map.of("client_frontend", "blocking", "thread_mode", "platform"),
+                connections);
+        run("blocking, virtual threads", Map.of("client_frontend", "blocking", "thread_mode", "virtual"),
+                connections);
+        run("non-blocking", Map.of("client_frontend", "nio"), connections);
+        Check.finish("IdleConnectionsLoadTest");
+    }
+
+    private static void run(String name, Map<String, String> overrides, int connections) throws Exception
+    {
+        System.out.println("Running: " + name);
+        Map<String, String> config = new HashMap<>(overrides);
+        config.put("client_protocol", "binary");
+        try (LocalCluster cluster = new LocalCluster(config))
+        {
+            LocalCluster.Node master = cluster.startMaster();
+            cluster.startWorker();
+            cluster.startWorker();
+
+            long start = System.nanoTime();
+            List<MessageChannel> idle = new ArrayList<>(connections);
+            try
+            {
+                for (int i = 0; i < connections; i++)
+                {
+                    idle.add(cluster.connect("idle" + i));
+                }
+            }
+            catch (IOException e)
+            {
+                Check.that(false, name + ": connected only " + idle.size() + " idle clients: " + e.getMessage());
+            }
+            System.out.printf("  %d idle clients connected in %d ms%n", idle.size(),
+                    (System.nanoTime() - start) / 1_000_000);
+
+            start = System.nanoTime();
+            MessageChannel client = cluster.connect("alice");
+            for (int i = 0; i < ROUTES.length; i++)
+            {
+                client.send(new Request(i, new GPXData("route" + i + ".gpx", GpxFiles.route("alice", ROUTES[i]))));
+            }
+            for (int i = 0; i < ROUTES.length; i++)
+            {
+                Object answer = ((Response) client.read()).getPayload();
+                Check.that(answer instanceof ActivityStats
+                        && ((ActivityStats) answer).getSegmentStatsList().size() == 2,
+                        name + ": route answered with " + answer);
+            }
+            System.out.printf("  %d routes answered in %d ms%n", ROUTES.length, (System.nanoTime() - start) / 1_000_000);
+            System.out.println("  master: " + status(master.pid()));
+
+            // idle clients spread over all the connections are still served
+            for (int i = 0; i < SAMPLED_IDLE_CLIENTS && !idle.isEmpty(); i++)
+            {
+                MessageChannel channel = idle.get(i * idle.size() / SAMPLED_IDLE_CLIENTS);
+                channel.send("STATISTICS");
+                Object answer = channel.read();
+                Check.that(answer instanceof Statistics || RouteQueue.RETRY_LATER.equals(answer),
+                        name + ": idle client answered with " + answer);
+            }
+
+            client.close();
+            for (MessageChannel channel : idle)
+            {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * @return the number of threads and the resident memory of a process, if the system reports them in /proc
+     */
+    private static String status(long pid)
+    {
+        Path status = Paths.get("/proc", String.valueOf(pid), "status");
+        try
+        {
+            String threads = "?";
+            String memory = "?";
+            for (String line : Files.readAllLines(status))
+            {
+                if (line.startsWith("Threads:"))
+                {
+                    threads = line.substring("Threads:".length()).trim();
+                }
+                else if (line.startsWith("VmRSS:"))
+                {
+                    memory = line.substring("VmRSS:".length()).trim();
+                }
+            }
+            return threads + " threads, " + memory + " resident";
+        }
+        catch (IOException e)
+        {
+            return "not reported by this system";
+        }
+    }
+}
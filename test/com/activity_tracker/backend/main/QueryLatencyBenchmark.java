@@ -0,0 +1,161 @@
+package com.activity_tracker.backend.main;
+
+import com.activity_tracker.backend.GpxFiles;
+import com.activity_tracker.backend.LocalCluster;
+import com.activity_tracker.backend.misc.GPXData;
+import com.activity_tracker.backend.misc.Request;
+import com.activity_tracker.backend.misc.Response;
+import com.activity_tracker.backend.network.MessageChannel;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * QueryLatencyBenchmark: Measures how long the services of a client take to be answered while other clients keep
+ * the master busy parsing and mapping large uploads, with both front ends.
+ * A master with two workers is started for every front end. The services are first timed on an idle master, then
+ * while the uploading clients keep a batch of large routes in flight each. The percentiles of both runs are printed,
+ * along with the number of services and uploads the master asked to retry later.
+ * <p>
+ * Run from the project directory:
+ * <pre>
+ *     javac -d out $(find src test -name '*.java')
+ *     java -cp out com.activity_tracker.backend.main.QueryLatencyBenchmark [uploaders] [waypoints per route] [queries]
+ * </pre>
+ */
+public class QueryLatencyBenchmark
+{
+    // BATCH: the uploads every uploading client sends before reading their answers
+    private static final int BATCH = 8;
+    // QUERY_PAUSE_MS: the pause between two services, so that they sample the load instead of adding to it
+    private static final long QUERY_PAUSE_MS = 5;
+
+    public static void main(String[] args) throws Exception
+    {
+        int uploaders = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int waypoints = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+        // every route goes through the two registered segments, with a lead-in before each
+        byte[] route = GpxFiles.route("alice", Math.max(waypoints / 2, 1));
+
+        for (String frontend : List.of("blocking", "nio"))
+        {
+            Map<String, String> config = Map.of("client_protocol", "binary", "client_frontend", frontend);
+            try (LocalCluster cluster = new LocalCluster(config))
+            {
+                cluster.startMaster();
+                cluster.startWorker();
+                cluster.startWorker();
+
+                MessageChannel client = cluster.connect("bob");
+                // warms the master up, and measures the idle master
+                time(client, queries / 2);
+                print(frontend + ", idle", time(client, queries), 0);
+
+                AtomicBoolean stop = new AtomicBoolean();
+                AtomicInteger uploads = new AtomicInteger();
+                AtomicInteger refused = new AtomicInteger();
+                Thread[] threads = new Thread[uploaders];
+                for (int i = 0; i < uploaders; i++)
+                {
+                    MessageChannel uploader = cluster.connect("alice");
+                    threads[i] = new Thread(() -> upload(uploader, route, stop, uploads, refused));
+                    threads[i].start();
+                }
+                // lets the first batches reach the parsers
+                Thread.sleep(500);
+
+                long[] latencies = time(client, queries);
+                stop.set(true);
+                for (Thread thread : threads)
+                {
+                    thread.join();
+                }
+                print(frontend + ", " + uploaders + " uploaders of " + waypoints + " waypoints", latencies,
+                        uploads.get());
+                if (refused.get() > 0)
+                {
+                    System.out.println("  " + refused.get() + " uploads asked to retry later");
+                }
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Asks for the statistics a number of times, one request at a time.
+     * @return the time every request took to be answered, in nanoseconds, sorted
+     */
+    private static long[] time(MessageChannel client, int queries) throws Exception
+    {
+        long[] latencies = new long[queries];
+        int retried = 0;
+        for (int i = 0; i < queries; i++)
+        {
+            long start = System.nanoTime();
+            client.send("STATISTICS");
+            // a service refused because its lane is full is retried, and the time of both counts
+            while (RouteQueue.RETRY_LATER.equals(client.read()))
+            {
+                retried++;
+                client.send("STATISTICS");
+            }
+            latencies[i] = System.nanoTime() - start;
+            Thread.sleep(QUERY_PAUSE_MS);
+        }
+        if (retried > 0)
+        {
+            System.out.println("  " + retried + " services asked to retry later");
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    /**
+     * Run by every uploading client: sends batches of uploads until told to stop.
+     */
+    private static void upload(MessageChannel uploader, byte[] route, AtomicBoolean stop, AtomicInteger uploads,
+                               AtomicInteger refused)
+    {
+        try
+        {
+            int requestID = 0;
+            while (!stop.get())
+            {
+                for (int i = 0; i < BATCH; i++)
+                {
+                    uploader.send(new Request(requestID++, new GPXData("route.gpx", route)));
+                }
+                for (int i = 0; i < BATCH; i++)
+                {
+                    Response answer = (Response) uploader.read();
+                    if (RouteQueue.RETRY_LATER.equals(answer.getPayload()))
+                    {
+                        refused.incrementAndGet();
+                    }
+                    else
+                    {
+                        uploads.incrementAndGet();
+                    }
+                }
+            }
+            uploader.close();
+        }
+        catch (IOException | ClassNotFoundException e)
+        {
+            System.out.println("Uploading client failed: " + e.getMessage());
+        }
+    }
+
+    private static void print(String name, long[] latencies, int uploads)
+    {
+        int n = latencies.length;
+        System.out.printf("%s: %d services, p50 %.2f ms, p99 %.2f ms, max %.2f ms%s%n", name, n,
+                latencies[n / 2] / 1e6, latencies[(int) (n * 0.99)] / 1e6, latencies[n - 1] / 1e6,
+                uploads > 0 ? ", " + uploads + " routes mapped meanwhile" : "");
+    }
+}
@@ -0,0 +1,185 @@
+package com.activity_tracker.backend.main;
+
+import com.activity_tracker.backend.Check;
+import com.activity_tracker.backend.LocalCluster;
+import com.activity_tracker.backend.calculations.Statistics;
+import com.activity_tracker.backend.network.MessageChannel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * StalledClientTest: Checks that a client that stops reading its answers does not hold up the other clients.
+ * The stalled client floods the master with services and never reads the answers, until its send queue is full and
+ * the master drops it. Meanwhile another client asks for the statistics one request at a time, and every one of its
+ * requests must be answered in time. Both front ends are tested.
+ * <p>
+ * The blocking front end sends the answers of all its clients from a few shared writer threads, so it is also tested
+ * with a client that stops reading and sending altogether while its answers are still being written: the write
+ * blocks the only writer thread, until the master gives up on the client and the thread moves on to the others.
+ * <p>
+ * Run from the project directory:
+ * <pre>
+ *     javac -d out $(find src test -name '*.java')
+ *     java -cp out com.activity_tracker.backend.main.StalledClientTest
+ * </pre>
+ */
+public class StalledClientTest
+{
+    // QUERIES: the services sent by the other client, one at a time
+    private static final int QUERIES = 200;
+    // MAX_LATENCY_MS: the longest any of those may take to be answered
+    private static final long MAX_LATENCY_MS = 1000;
+    // WRITE_TIMEOUT_MS: how long a write to the silent client may block the writer thread
+    private static final long WRITE_TIMEOUT_MS = 3000;
+    // SILENT_REQUESTS: the services sent by the silent client, whose answers are more than the socket buffers hold
+    private static final int SILENT_REQUESTS = 500_000;
+
+    public static void main(String[] args) throws Exception
+    {
+        for (String frontend : List.of("blocking", "nio"))
+        {
+            run(frontend);
+        }
+        runSilent();
+        Check.finish("StalledClientTest");
+    }
+
+    private static void run(String frontend) throws Exception
+    {
+        System.out.println("Running: " + frontend + " front end");
+        Map<String, String> config = Map.of("client_protocol", "binary", "client_frontend", frontend);
+        try (LocalCluster cluster = new LocalCluster(config))
+        {
+            LocalCluster.Node master = cluster.startMaster();
+            cluster.startWorker();
+
+            Thread stalled = new Thread(() -> flood(cluster.getClientPort()));
+            stalled.setDaemon(true);
+            stalled.start();
+            // the queries are timed while the answers of the stalled client pile up in the master
+            Thread.sleep(200);
+
+            MessageChannel client = cluster.connect("alice");
+            long[] latencies = new long[QUERIES];
+            int retries = 0;
+            for (int i = 0; i < QUERIES; i++)
+            {
+                long start = System.nanoTime();
+                Object answer;
+                while (true)
+                {
+                    client.send("STATISTICS");
+                    answer = client.read();
+                    if (!RouteQueue.RETRY_LATER.equals(answer))
+                    {
+                        break;
+                    }
+                    retries++;
+                }
+                latencies[i] = System.nanoTime() - start;
+                Check.that(answer instanceof Statistics, frontend + ": query " + i + " answered with " + answer);
+            }
+            client.close();
+
+            Arrays.sort(latencies);
+            long p99 = latencies[(int) (QUERIES * 0.99)] / 1_000_000;
+            long max = latencies[QUERIES - 1] / 1_000_000;
+            System.out.printf("%s: %d queries, p50 %.2f ms, p99 %d ms, max %d ms, %d retried%n", frontend, QUERIES,
+                    latencies[QUERIES / 2] / 1e6, p99, max, retries);
+            Check.that(max <= MAX_LATENCY_MS, frontend + ": slowest query took " + max + " ms");
+
+            master.await("Saving statistics for user bob", 1, 30_000);
+            // the threads answering the stalled client may each find its queue full, but it is only shut down once
+            Check.that(master.count("Dropping client") >= 1, frontend + ": stalled client dropped");
+            Check.equal(1, master.count("Saving statistics for user bob"), frontend + ": stalled client shut down");
+        }
+    }
+
+    /**
+     * Blocks the only writer thread of the blocking front end on a client that neither reads nor sends, and checks
+     * that the other client is answered once the write times out.
+     */
+    private static void runSilent() throws Exception
+    {
+        System.out.println("Running: blocking front end, silent client");
+        // the send queue is large enough to hold all the answers of the silent client, so that it is only dropped
+        // for the write blocked on it
+        Map<String, String> config = Map.of("client_protocol", "binary", "client_frontend", "blocking",
+                "client_writer_threads", "1", "client_write_timeout_ms", String.valueOf(WRITE_TIMEOUT_MS),
+                "client_send_queue_capacity", String.valueOf(SILENT_REQUESTS * 2));
+        try (LocalCluster cluster = new LocalCluster(config))
+        {
+            LocalCluster.Node master = cluster.startMaster();
+            cluster.startWorker();
+
+            try (Socket silent = new Socket())
+            {
+                silent.setReceiveBufferSize(4096);
+                silent.connect(new InetSocketAddress("127.0.0.1", cluster.getClientPort()));
+                MessageChannel channel = MessageChannel.open(silent, "binary");
+                channel.send("carol");
+                for (int i = 0; i < SILENT_REQUESTS; i++)
+                {
+                    channel.write("STATISTICS");
+                }
+                channel.flush();
+                // the socket stays open, and nothing is read from it or sent through it anymore. The other client
+                // asks once the answers have filled the socket buffers and blocked the writer thread.
+                Thread.sleep(1000);
+
+                MessageChannel client = cluster.connect("alice");
+                long start = System.nanoTime();
+                Object answer;
+                do
+                {
+                    client.send("STATISTICS");
+                    answer = client.read();
+                }
+                while (RouteQueue.RETRY_LATER.equals(answer));
+                long latency = (System.nanoTime() - start) / 1_000_000;
+                client.close();
+
+                System.out.printf("silent client: query answered in %d ms%n", latency);
+                Check.that(answer instanceof Statistics, "silent client: query answered with " + answer);
+                Check.that(latency <= WRITE_TIMEOUT_MS + MAX_LATENCY_MS, "silent client: query took " + latency
+                        + " ms");
+                master.await("Saving statistics for user carol", 1, 30_000);
+                Check.equal(1, master.count("has not read for"), "silent client: dropped for its blocked write");
+            }
+        }
+    }
+
+    /**
+     * Run by the stalled client: sends services without ever reading an answer, until the master drops it.
+     */
+    private static void flood(int port)
+    {
+        try (Socket socket = new Socket())
+        {
+            // a small receive buffer, so that the answers back up into the master quickly
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("127.0.0.1", port));
+            MessageChannel channel = MessageChannel.open(socket, "binary");
+            channel.send("bob");
+            // the answers fill the socket buffers before the send queue, so the requests go on until the client is
+            // dropped, however large the buffers are
+            while (true)
+            {
+                for (int i = 0; i < 100; i++)
+                {
+                    channel.write("STATISTICS");
+                }
+                channel.flush();
+            }
+        }
+        catch (IOException e)
+        {
+            // the master dropped the client, as it should
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.activity_tracker.backend.main;
+
+import com.activity_tracker.backend.Check;
+import com.activity_tracker.backend.GpxFiles;
+import com.activity_tracker.backend.LocalCluster;
+import com.activity_tracker.backend.calculations.ActivityStats;
+import com.activity_tracker.backend.calculations.SegmentActivityStats;
+import com.activity_tracker.backend.misc.GPXData;
+import com.activity_tracker.backend.misc.Request;
+import com.activity_tracker.backend.misc.Response;
+import com.activity_tracker.backend.network.MessageChannel;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * WorkerFailureTest: Runs a master with two workers, and checks that routes whose chunks were held by a worker that
+ * fails are still answered, with the same statistics as when nothing fails.
+ * The second worker is suspended before the routes are uploaded, so that it holds some of their chunks, and is then
+ * either killed, which has the master re-send its chunks to the other worker, or left suspended long enough for the
+ * master to send copies of its chunks to the other worker. Both are run with and without the workers combining the
+ * results of their chunks, and with the segments detected by the master and by the workers.
+ * <p>
+ * Run from the project directory, on a system with a kill command:
+ * <pre>
+ *     javac -d out $(find src test -name '*.java')
+ *     java -cp out com.activity_tracker.backend.main.WorkerFailureTest
+ * </pre>
+ */
+public class WorkerFailureTest
+{
+    // ROUTES: the waypoints preceding every segment in each of the routes uploaded
+    private static final int[] ROUTES = {1000, 20, 300};
+    // TOLERANCE: the relative difference allowed between statistics, as the partial results of a route are reduced
+    // in the order they arrive
+    private static final double TOLERANCE = 1e-9;
+
+    private enum Fault
+    {
+        NONE, KILL, SUSPEND
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, ActivityStats> expected = run("no failure", Map.of(), Fault.NONE);
+        for (Map.Entry<String, ActivityStats> entry : expected.entrySet())
+        {
+            Check.equal(2, entry.getValue().getSegmentStatsList().size(), entry.getKey() + " segments found");
+        }
+
+        Map<String, String> separate = Map.of("combine_max_chunks", "1", "speculation_factor", "0");
+        Map<String, String> combined = Map.of("combine_max_chunks", "8", "combine_max_delay_ms", "20",
+                "speculation_factor", "0");
+        Map<String, String> distributed = Map.of("segment_detection", "distributed", "speculation_factor", "0");
+        Map<String, String> copies = Map.of("combine_max_chunks", "1", "speculation_factor", "2");
+        Map<String, String> combinedCopies = Map.of("combine_max_chunks", "8", "combine_max_delay_ms", "20",
+                "speculation_factor", "2");
+
+        compare(expected, run("killed worker", separate, Fault.KILL), "killed worker");
+        compare(expected, run("killed worker, combined results", combined, Fault.KILL),
+                "killed worker, combined results");
+        compare(expected, run("killed worker, distributed segment detection", distributed, Fault.KILL),
+                "killed worker, distributed segment detection");
+        compare(expected, run("suspended worker, copies", copies, Fault.SUSPEND), "suspended worker, copies");
+        compare(expected, run("suspended worker, combined copies", combinedCopies, Fault.SUSPEND),
+                "suspended worker, combined copies");
+        Check.finish("WorkerFailureTest");
+    }
+
+    /**
+     * Uploads the routes to a new cluster of two workers, while the second one fails.
+     * @return the statistics of every route, by file name
+     */
+    private static Map<String, ActivityStats> run(String name, Map<String, String> overrides, Fault fault)
+            throws Exception
+    {
+        System.out.println("Running: " + name);
+        // the speed of a route is the average speed of its chunks, so every run splits the routes the same way, which
+        // the adaptive policy would not do once it sees a worker slowing down
+        HashMap<String, String> config = new HashMap<>(overrides);
+        config.put("chunk_sizing", "fixed");
+        try (LocalCluster cluster = new LocalCluster(config))
+        {
+            LocalCluster.Node master = cluster.startMaster();
+            cluster.startWorker();
+            LocalCluster.Node failing = cluster.startWorker();
+
+            MessageChannel client = cluster.connect("alice");
+            // a first route lets the master learn how long the chunks take on both workers before one of them fails
+            client.send(new Request(0, new GPXData("warmup.gpx", GpxFiles.route("alice", 100))));
+            Check.that(((Response) client.read()).getPayload() instanceof ActivityStats, name + ": warm-up route");
+
+            if (fault != Fault.NONE)
+            {
+                failing.pause();
+            }
+            for (int i = 0; i < ROUTES.length; i++)
+            {
+                client.send(new Request(i + 1, new GPXData("route" + i + ".gpx", GpxFiles.route("alice", ROUTES[i]))));
+            }
+
+            if (fault == Fault.KILL)
+            {
+                // once all the routes are split, the suspended worker holds some of their chunks
+                master.await("Splitting route", ROUTES.length + 1, 10_000);
+                Thread.sleep(500);
+                failing.kill();
+                master.await("chunks of a lost worker", 1, 10_000);
+            }
+            else if (fault == Fault.SUSPEND)
+            {
+                master.await("sent a copy to another worker", 1, 10_000);
+            }
+
+            Map<String, ActivityStats> results = new HashMap<>();
+            for (int i = 0; i < ROUTES.length; i++)
+            {
+                Response response = (Response) client.read();
+                Object payload = response.getPayload();
+                if (payload instanceof ActivityStats)
+                {
+                    results.put("route" + (response.getRequestID() - 1) + ".gpx", (ActivityStats) payload);
+                }
+                else
+                {
+                    Check.that(false, name + ": route " + response.getRequestID() + " answered with " + payload);
+                }
+            }
+            if (fault == Fault.SUSPEND)
+            {
+                failing.resume();
+            }
+            client.close();
+            return results;
+        }
+    }
+
+    private static void compare(Map<String, ActivityStats> expected, Map<String, ActivityStats> actual, String name)
+    {
+        Check.equal(expected.keySet(), actual.keySet(), name + ": routes answered");
+        for (Map.Entry<String, ActivityStats> entry : expected.entrySet())
+        {
+            ActivityStats want = entry.getValue();
+            ActivityStats got = actual.get(entry.getKey());
+            if (got == null)
+            {
+                continue;
+            }
+            String route = name + ": " + entry.getKey();
+            Check.that(close(want.getDistance(), got.getDistance()), route + " distance " + got.getDistance()
+                    + ", expected " + want.getDistance());
+            Check.that(close(want.getElevation(), got.getElevation()), route + " elevation " + got.getElevation()
+                    + ", expected " + want.getElevation());
+            Check.that(close(want.getTime(), got.getTime()), route + " time " + got.getTime()
+                    + ", expected " + want.getTime());
+            Check.that(close(want.getSpeed(), got.getSpeed()), route + " speed " + got.getSpeed()
+                    + ", expected " + want.getSpeed());
+
+            List<SegmentActivityStats> wantSegments = want.getSegmentStatsList();
+            List<SegmentActivityStats> gotSegments = got.getSegmentStatsList();
+            Check.equal(wantSegments.size(), gotSegments.size(), route + " segments");
+            Map<String, Double> segmentTimes = new HashMap<>();
+            for (SegmentActivityStats segment : gotSegments)
+            {
+                segmentTimes.put(segment.getFileName(), segment.getTime());
+            }
+            for (SegmentActivityStats segment : wantSegments)
+            {
+                Double time = segmentTimes.get(segment.getFileName());
+                Check.that(time != null && close(segment.getTime(), time), route + " time of "
+                        + segment.getFileName() + " " + time + ", expected " + segment.getTime());
+            }
+        }
+    }
+
+    private static boolean close(double expected, double actual)
+    {
+        return Math.abs(expected - actual) <= TOLERANCE * Math.max(1, Math.abs(expected));
+    }
+}
@@ -0,0 +1,158 @@
+package com.activity_tracker.backend.network;
+
+import com.activity_tracker.backend.calculations.ActivityStats;
+import com.activity_tracker.backend.calculations.SegmentActivityStats;
+import com.activity_tracker.backend.calculations.Statistics;
+import com.activity_tracker.backend.mapreduce.ChunkResult;
+import com.activity_tracker.backend.parser.Chunk;
+import com.activity_tracker.backend.parser.SegmentInterval;
+import com.activity_tracker.backend.parser.Track;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * CodecBenchmark: Compares the binary protocol with Java serialization, for the messages exchanged the most: the
+ * chunks sent to the workers, the results they send back, and the statistics sent to the clients.
+ * For every message it prints the size of its encoding under both protocols, and the number of round trips (encoding
+ * then decoding) per second, after a few rounds of warm-up.
+ * <p>
+ * Run from the project directory:
+ * <pre>
+ *     javac -d out $(find src test -name '*.java')
+ *     java -cp out com.activity_tracker.backend.network.CodecBenchmark [waypoints per chunk] [rounds]
+ * </pre>
+ */
+public class CodecBenchmark
+{
+    // MEASURED_NANOS: how long every round of a measurement runs for
+    private static final long MEASURED_NANOS = 1_000_000_000L;
+
+    public static void main(String[] args) throws Exception
+    {
+        int waypoints = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Object[] messages = {chunk(waypoints), chunkResult(), statistics()};
+        for (Object message : messages)
+        {
+            String name = message.getClass().getSimpleName();
+            System.out.printf("%-12s binary %8d bytes, java %8d bytes%n", name, binary(message).length,
+                    java(message).length);
+        }
+
+        for (Object message : messages)
+        {
+            String name = message.getClass().getSimpleName();
+            for (int round = 1; round <= rounds; round++)
+            {
+                double binary = roundTripsPerSecond(message, true);
+                double java = roundTripsPerSecond(message, false);
+                // the first rounds only warm the JIT up
+                String label = round <= rounds / 2 ? "warm-up" : "round " + round;
+                System.out.printf("%-12s %-8s binary %10.0f/s, java %10.0f/s, %.1fx%n", name, label, binary, java,
+                        binary / java);
+            }
+        }
+    }
+
+    /**
+     * Encodes and decodes the message for MEASURED_NANOS.
+     * @return the number of round trips per second
+     */
+    private static double roundTripsPerSecond(Object message, boolean binary) throws Exception
+    {
+        long count = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do
+        {
+            Object decoded = binary ? MessageCodec.decodeFrame(binary(message)) : fromJava(java(message));
+            if (decoded.getClass() != message.getClass())
+            {
+                throw new IllegalStateException("Decoded a " + decoded.getClass() + " instead of a "
+                        + message.getClass());
+            }
+            count++;
+            elapsed = System.nanoTime() - start;
+        }
+        while (elapsed < MEASURED_NANOS);
+        return count * 1e9 / elapsed;
+    }
+
+    /**
+     * @return the frame of the message without its length prefix, as MessageCodec.decodeFrame takes it
+     */
+    private static byte[] binary(Object message) throws Exception
+    {
+        ByteBuffer buffer = MessageCodec.encodeFrame(message);
+        buffer.getInt();
+        byte[] frame = new byte[buffer.remaining()];
+        buffer.get(frame);
+        return frame;
+    }
+
+    private static byte[] java(Object message) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+        {
+            out.writeObject(message);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object fromJava(byte[] bytes) throws Exception
+    {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes)))
+        {
+            return in.readObject();
+        }
+    }
+
+    private static Chunk chunk(int waypoints)
+    {
+        Random random = new Random(1);
+        Track track = new Track();
+        for (int i = 0; i < waypoints; i++)
+        {
+            track.add(37.9 + random.nextDouble() * 0.1, 23.7 + random.nextDouble() * 0.1, random.nextDouble() * 100,
+                    1_679_247_187_000L + i * 1000L);
+        }
+        ArrayList<SegmentInterval> segments = new ArrayList<>(List.of(new SegmentInterval(3, "segment1.gpx", 10, 40),
+                new SegmentInterval(7, "segment2.gpx", 100, 300)));
+        return new Chunk(5, 2, 1, 4, 0, waypoints - 1, track, segments, null);
+    }
+
+    private static ChunkResult chunkResult()
+    {
+        SegmentActivityStats segment = new SegmentActivityStats(3, "segment1.gpx", 10);
+        segment.updateTime(0.7);
+        ActivityStats stats = new ActivityStats(5, 10.29, 63.6, 41.5, 9.7, new ArrayList<>(List.of(segment)));
+        return new ChunkResult(2, 5, new int[] {1}, 4, stats, 1_000_000L, false);
+    }
+
+    /**
+     * @return the statistics of 100 users with 5 routes each, all of them going through the same 2 segments
+     */
+    private static Statistics statistics()
+    {
+        Statistics statistics = new Statistics();
+        for (int i = 0; i < 500; i++)
+        {
+            SegmentActivityStats first = new SegmentActivityStats(3, "segment1.gpx", 10);
+            first.updateTime(0.5 + i % 7 * 0.1);
+            SegmentActivityStats second = new SegmentActivityStats(4, "segment2.gpx", 40);
+            second.updateTime(1.5 + i % 11 * 0.1);
+            statistics.registerRoute("user" + i % 100, new ActivityStats(i, 10 + i % 13, 60, 40, 9,
+                    new ArrayList<>(List.of(first, second))));
+        }
+        return statistics;
+    }
+}
@@ -0,0 +1,420 @@
+package com.activity_tracker.backend.network;
+
+import com.activity_tracker.backend.Check;
+import com.activity_tracker.backend.calculations.ActivityStats;
+import com.activity_tracker.backend.calculations.SegmentActivityStats;
+import com.activity_tracker.backend.calculations.SegmentLeaderboard;
+import com.activity_tracker.backend.calculations.Statistics;
+import com.activity_tracker.backend.calculations.UserSegmentStatistics;
+import com.activity_tracker.backend.calculations.UserStatistics;
+import com.activity_tracker.backend.mapreduce.ChunkResult;
+import com.activity_tracker.backend.misc.ChunkFailure;
+import com.activity_tracker.backend.misc.Deregister;
+import com.activity_tracker.backend.misc.GPXData;
+import com.activity_tracker.backend.misc.Heartbeat;
+import com.activity_tracker.backend.misc.Request;
+import com.activity_tracker.backend.misc.Response;
+import com.activity_tracker.backend.misc.SegmentCatalogue;
+import com.activity_tracker.backend.misc.WorkerInfo;
+import com.activity_tracker.backend.parser.Chunk;
+import com.activity_tracker.backend.parser.Segment;
+import com.activity_tracker.backend.parser.SegmentInterval;
+import com.activity_tracker.backend.parser.Track;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageCodecTest: Round trips every message type of the binary protocol through MessageCodec, along with the edge
+ * cases of their layouts (null strings, empty lists, tracks without waypoints), and checks that malformed frames and
+ * nested requests are refused. Every message is also sent over a loopback socket through both protocols.
+ * <p>
+ * A decoded message is checked field by field where it matters, and by encoding it again: the layout of every message
+ * is fixed, so a message decoded without losing anything encodes to the very same frame.
+ * <p>
+ * Run from the project directory:
+ * <pre>
+ *     javac -d out $(find src test -name '*.java')
+ *     java -cp out com.activity_tracker.backend.network.MessageCodecTest
+ * </pre>
+ */
+public class MessageCodecTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        strings();
+        gpxData();
+        chunks();
+        chunkResults();
+        activityStats();
+        leaderboards();
+        statistics();
+        workerMessages();
+        segmentCatalogue();
+        requestsAndResponses();
+        malformedFrames();
+        channels();
+        Check.finish("MessageCodecTest");
+    }
+
+    private static void strings() throws Exception
+    {
+        for (String value : List.of("LEADERBOARDS", "", "h\u00e9llo w\u00f6rld \u2713", "a".repeat(100_000)))
+        {
+            Check.equal(value, roundTrip(value), "string of " + value.length() + " characters");
+        }
+        // a null string cannot be a message on its own, only a field of one
+        Check.fails(IllegalArgumentException.class, () -> MessageCodec.encodeFrame(null), "null message");
+    }
+
+    private static void gpxData() throws Exception
+    {
+        byte[] content = "<gpx creator=\"alice\"></gpx>".getBytes(StandardCharsets.UTF_8);
+        GPXData decoded = (GPXData) roundTrip(new GPXData("route1.gpx", content));
+        Check.equal("route1.gpx", decoded.getFileName(), "file name");
+        Check.that(Arrays.equals(content, decoded.getFileContent()), "file content");
+
+        GPXData empty = (GPXData) roundTrip(new GPXData(null, new byte[0]));
+        Check.equal(null, empty.getFileName(), "null file name");
+        Check.equal(0, empty.getFileContent().length, "empty file content");
+    }
+
+    private static void chunks() throws Exception
+    {
+        Track track = track(1000, 1);
+        ArrayList<SegmentInterval> segments = new ArrayList<>(List.of(new SegmentInterval(3, "segment1.gpx", 10, 40),
+                new SegmentInterval(7, null, 100, 300)));
+        Chunk chunk = new Chunk(5, 2, 1, 4, 500, 1499, track, segments, null);
+        Chunk decoded = (Chunk) roundTrip(chunk);
+        Check.equal(5, decoded.getRouteID(), "chunk route id");
+        Check.equal(2, decoded.getClientID(), "chunk client id");
+        Check.equal(1, decoded.getChunkIndex(), "chunk index");
+        Check.equal(4, decoded.getTotalChunks(), "total chunks");
+        Check.equal(500, decoded.getStartIndex(), "chunk start index");
+        Check.equal(1499, decoded.getEndIndex(), "chunk end index");
+        Check.that(sameTrack(track, decoded.getTrack()), "chunk waypoints");
+        Check.equal(2, decoded.getSegments().size(), "segment intervals");
+        Check.equal(null, decoded.getSegments().get(1).getFileName(), "null segment file name");
+        Check.equal(300, decoded.getSegments().get(1).getEndIndex(), "segment end index");
+        Check.that(decoded.isCombinable(), "chunk combinable by default");
+        Check.that(!decoded.detectsSegments(), "chunk without lookahead");
+
+        // a copy of a straggler, with the lookahead of a worker detecting the segments itself
+        Chunk copy = new Chunk(6, 2, 0, 1, 0, 0, track(1, 2), new ArrayList<>(), track(25, 3));
+        copy.setCombinable(false);
+        Chunk decodedCopy = (Chunk) roundTrip(copy);
+        Check.that(!decodedCopy.isCombinable(), "copy not combinable");
+        Check.that(decodedCopy.detectsSegments(), "chunk with lookahead");
+        Check.that(sameTrack(copy.getLookahead(), decodedCopy.getLookahead()), "lookahead waypoints");
+
+        Chunk emptyLookahead = (Chunk) roundTrip(new Chunk(7, 0, 0, 1, 0, 0, track(1, 4), new ArrayList<>(),
+                new Track()));
+        Check.equal(0, emptyLookahead.getLookahead().size(), "empty lookahead");
+    }
+
+    private static void chunkResults() throws Exception
+    {
+        ChunkResult result = new ChunkResult(2, 5, new int[] {1, 3, 4}, 8, activityStats(5), 123_456_789L, true);
+        ChunkResult decoded = (ChunkResult) roundTrip(result);
+        Check.equal(2, decoded.getClientID(), "result client id");
+        Check.equal(5, decoded.getRouteID(), "result route id");
+        Check.that(Arrays.equals(new int[] {1, 3, 4}, decoded.getChunkIndices()), "combined chunk indices");
+        Check.equal(8, decoded.getTotalChunks(), "result total chunks");
+        Check.equal(123_456_789L, decoded.getMapNanos(), "map time");
+        Check.that(decoded.isCopy(), "copy flag");
+        Check.equal(result.getStats().getDistance(), decoded.getStats().getDistance(), "result distance");
+
+        ChunkResult noChunks = (ChunkResult) roundTrip(new ChunkResult(0, 0, new int[0], 0, new ActivityStats(0), 0,
+                false));
+        Check.equal(0, noChunks.getChunkIndices().length, "result without chunk indices");
+    }
+
+    // the route id is deprecated for the clients, but is still sent on the wire, so its round trip is checked
+    @SuppressWarnings("deprecation")
+    private static void activityStats() throws Exception
+    {
+        ActivityStats stats = activityStats(9);
+        ActivityStats decoded = (ActivityStats) roundTrip(stats);
+        Check.equal(9, decoded.getRouteID(), "stats route id");
+        Check.equal(stats.getDistance(), decoded.getDistance(), "distance");
+        Check.equal(stats.getSpeed(), decoded.getSpeed(), "speed");
+        Check.equal(stats.getElevation(), decoded.getElevation(), "elevation");
+        Check.equal(stats.getTime(), decoded.getTime(), "time");
+        Check.equal(2, decoded.getSegmentStatsList().size(), "segment stats");
+        SegmentActivityStats segment = decoded.getSegmentStatsList().get(0);
+        Check.equal(12, segment.getStartIndex(), "segment start index");
+        Check.equal(0.7, segment.getTime(), "segment time");
+        Check.equal("segment2.gpx", decoded.getSegmentStatsList().get(1).getFileName(), "segment file name");
+
+        ActivityStats empty = (ActivityStats) roundTrip(new ActivityStats(3));
+        Check.equal(0, empty.getSegmentStatsList().size(), "stats without segments");
+    }
+
+    private static void leaderboards() throws Exception
+    {
+        ArrayList<?> empty = (ArrayList<?>) roundTrip(new ArrayList<SegmentLeaderboard>());
+        Check.that(empty.isEmpty(), "empty leaderboard list");
+
+        ArrayList<SegmentLeaderboard> leaderboards = new ArrayList<>(List.of(leaderboard("segment1.gpx"),
+                new SegmentLeaderboard("segment2.gpx")));
+        ArrayList<?> decoded = (ArrayList<?>) roundTrip(leaderboards);
+        Check.equal(2, decoded.size(), "leaderboards");
+        SegmentLeaderboard first = (SegmentLeaderboard) decoded.get(0);
+        Check.equal("segment1.gpx", first.getFileName(), "leaderboard file name");
+        Check.equal(3, first.getLeaderboard().size(), "leaderboard entries");
+        Check.equal("bob", first.getLeaderboard().first().getUsername(), "fastest user");
+        Check.that(((SegmentLeaderboard) decoded.get(1)).getLeaderboard().isEmpty(), "empty leaderboard");
+
+        // a list holding anything but leaderboards is not a message of the protocol
+        ArrayList<Object> mixed = new ArrayList<>(List.of(leaderboard("segment1.gpx"), "not a leaderboard"));
+        Check.fails(IllegalArgumentException.class, () -> MessageCodec.encodeFrame(mixed), "mixed list");
+    }
+
+    private static void statistics() throws Exception
+    {
+        HashMap<String, UserStatistics> users = new HashMap<>();
+        users.put("alice", new UserStatistics("alice", 3, 30.5, 120.25, 95.5));
+        users.put("bob", new UserStatistics("bob", 1, 5.0, 10.0, 20.0));
+        HashMap<Integer, SegmentLeaderboard> segments = new HashMap<>();
+        segments.put(17, leaderboard("segment1.gpx"));
+        Statistics statistics = new Statistics(4, 35.5, 130.25, 115.5, users, segments);
+
+        Statistics decoded = (Statistics) roundTrip(statistics);
+        Check.equal(4, decoded.getRoutesRecorded(), "routes recorded");
+        Check.equal(35.5, decoded.getTotalDistance(), "total distance");
+        Check.equal(2, decoded.getAllUserStats().size(), "users");
+        Check.equal(30.5, decoded.getAllUserStats().get("alice").getTotalDistance(), "distance of a user");
+        Check.equal(3, decoded.getSegmentStatistics().get(17).getLeaderboard().size(), "leaderboard of a segment");
+
+        Statistics empty = (Statistics) roundTrip(new Statistics(0, 0, 0, 0, new HashMap<>(), new HashMap<>()));
+        Check.that(empty.getAllUserStats().isEmpty() && empty.getSegmentStatistics().isEmpty(), "empty statistics");
+    }
+
+    private static void workerMessages() throws Exception
+    {
+        Check.equal(4, ((WorkerInfo) roundTrip(new WorkerInfo(4))).getCapacity(), "worker capacity");
+        Check.that(roundTrip(new Heartbeat()) instanceof Heartbeat, "heartbeat");
+        Check.that(roundTrip(new Deregister()) instanceof Deregister, "deregister");
+
+        ChunkFailure failure = (ChunkFailure) roundTrip(new ChunkFailure(5, 2, "Invalid timestamp"));
+        Check.equal(5, failure.getRouteID(), "failed route id");
+        Check.equal(2, failure.getChunkIndex(), "failed chunk index");
+        Check.equal("Invalid timestamp", failure.getReason(), "failure reason");
+        Check.equal(null, ((ChunkFailure) roundTrip(new ChunkFailure(5, 2, null))).getReason(), "null failure reason");
+    }
+
+    private static void segmentCatalogue() throws Exception
+    {
+        SegmentCatalogue catalogue = new SegmentCatalogue(List.of(new Segment(0, track(5, 5), "segment1.gpx"),
+                new Segment(1, track(11, 6), null)));
+        SegmentCatalogue decoded = (SegmentCatalogue) roundTrip(catalogue);
+        Check.equal(2, decoded.getSegments().size(), "segments");
+        Check.equal(1, decoded.getSegments().get(1).getSegmentID(), "segment id");
+        Check.equal(null, decoded.getSegments().get(1).getFileName(), "null segment file name");
+        Check.that(sameTrack(catalogue.getSegments().get(0).getTrack(), decoded.getSegments().get(0).getTrack()),
+                "segment waypoints");
+
+        Check.that(((SegmentCatalogue) roundTrip(new SegmentCatalogue(List.of()))).getSegments().isEmpty(),
+                "empty catalogue");
+    }
+
+    private static void requestsAndResponses() throws Exception
+    {
+        Request request = (Request) roundTrip(new Request(42, "STATISTICS"));
+        Check.equal(42, request.getRequestID(), "request id");
+        Check.equal("STATISTICS", request.getPayload(), "request payload");
+
+        Request upload = (Request) roundTrip(new Request(-1, new GPXData("route.gpx", new byte[] {1, 2, 3})));
+        Check.equal(-1, upload.getRequestID(), "negative request id");
+        Check.that(upload.getPayload() instanceof GPXData, "tagged upload");
+
+        Response stats = (Response) roundTrip(new Response(7, activityStats(1)));
+        Check.equal(7, stats.getRequestID(), "response id");
+        Check.that(stats.getPayload() instanceof ActivityStats, "tagged stats");
+
+        Response empty = (Response) roundTrip(new Response(8, new ArrayList<SegmentLeaderboard>()));
+        Check.that(((ArrayList<?>) empty.getPayload()).isEmpty(), "tagged empty leaderboard list");
+
+        Check.fails(IllegalArgumentException.class, () -> MessageCodec.encodeFrame(new Request(1, new Request(2, "STATISTICS"))),
+                "request inside a request");
+        Check.fails(IllegalArgumentException.class, () -> MessageCodec.encodeFrame(new Response(1, new Request(2, "STATISTICS"))),
+                "request inside a response");
+        Check.fails(IllegalArgumentException.class, () -> MessageCodec.encodeFrame(new Request(1, new Response(2, "INVALID"))),
+                "response inside a request");
+
+        // a peer writing a nested request anyway: an outer request whose payload is tagged as a request
+        byte[] inner = frameOf(new Request(2, "STATISTICS"));
+        ByteBuffer nested = ByteBuffer.allocate(2 + 4 + inner.length);
+        nested.put(MessageCodec.PROTOCOL_VERSION).put(MessageCodec.REQUEST).putInt(1);
+        nested.put(MessageCodec.REQUEST).put(inner, 2, inner.length - 2);
+        Check.fails(IOException.class, () -> MessageCodec.decodeFrame(nested.array()), "nested request decoded");
+    }
+
+    private static void malformedFrames() throws Exception
+    {
+        byte[] frame = frameOf("STATISTICS");
+
+        byte[] otherVersion = frame.clone();
+        otherVersion[0] = (byte) (MessageCodec.PROTOCOL_VERSION + 1);
+        Check.fails(IOException.class, () -> MessageCodec.decodeFrame(otherVersion), "other protocol version");
+
+        byte[] unknownType = frame.clone();
+        unknownType[1] = 99;
+        Check.fails(ClassNotFoundException.class, () -> MessageCodec.decodeFrame(unknownType), "unknown type");
+
+        Check.fails(IOException.class, () -> MessageCodec.decodeFrame(new byte[] {MessageCodec.PROTOCOL_VERSION}),
+                "frame too short");
+        Check.fails(IOException.class, () -> MessageCodec.decodeFrame(Arrays.copyOf(frame, frame.length - 3)),
+                "truncated string");
+
+        // a count larger than the frame must not make the decoder allocate it
+        ByteBuffer hugeTrack = ByteBuffer.allocate(2 + 6 * 4 + 4);
+        hugeTrack.put(MessageCodec.PROTOCOL_VERSION).put(MessageCodec.CHUNK);
+        hugeTrack.putInt(1).putInt(1).putInt(0).putInt(1).putInt(0).putInt(0).putInt(Integer.MAX_VALUE);
+        Check.fails(IOException.class, () -> MessageCodec.decodeFrame(hugeTrack.array()), "track larger than frame");
+
+        ByteBuffer negativeCount = ByteBuffer.allocate(2 + 4);
+        negativeCount.put(MessageCodec.PROTOCOL_VERSION).put(MessageCodec.LEADERBOARDS).putInt(-5);
+        Check.fails(IOException.class, () -> MessageCodec.decodeFrame(negativeCount.array()), "negative count");
+
+        Check.fails(IllegalArgumentException.class, () -> MessageCodec.encodeFrame(new Object()), "unsupported type");
+    }
+
+    /**
+     * Sends a message of every type over a loopback socket, through both protocols, and checks they arrive in order.
+     */
+    private static void channels() throws Exception
+    {
+        List<Object> messages = List.of("alice", new GPXData("route.gpx", new byte[] {1}),
+                new Chunk(1, 1, 0, 1, 0, 9, track(10, 7), new ArrayList<>(), track(3, 8)),
+                new ChunkResult(1, 1, new int[] {0}, 1, activityStats(1), 5, false), activityStats(2),
+                new ArrayList<>(List.of(leaderboard("segment1.gpx"))),
+                new Statistics(0, 0, 0, 0, new HashMap<>(), new HashMap<>()), new WorkerInfo(2), new Heartbeat(),
+                new Deregister(), new ChunkFailure(1, 0, null), new Request(3, "LEADERBOARDS"),
+                new Response(3, new ArrayList<SegmentLeaderboard>()), new SegmentCatalogue(List.of()));
+
+        for (String protocol : List.of("binary", "java"))
+        {
+            try (ServerSocket server = new ServerSocket(0);
+                 Socket client = new Socket("127.0.0.1", server.getLocalPort());
+                 Socket accepted = server.accept())
+            {
+                // the object streams read the header of the other side when they are opened, so both sides cannot
+                // be opened by the same thread
+                CompletableFuture<MessageChannel> opened = CompletableFuture.supplyAsync(() -> open(accepted, protocol));
+                MessageChannel sender = MessageChannel.open(client, protocol);
+                MessageChannel receiver = opened.get(10, TimeUnit.SECONDS);
+                for (Object message : messages)
+                {
+                    sender.write(message);
+                }
+                sender.flush();
+                for (Object message : messages)
+                {
+                    Object received = receiver.read();
+                    Check.equal(message.getClass(), received.getClass(), protocol + " channel message type");
+                    if (protocol.equals("binary"))
+                    {
+                        Check.that(Arrays.equals(frameOf(message), frameOf(received)),
+                                protocol + " channel " + message.getClass().getSimpleName());
+                    }
+                }
+            }
+        }
+    }
+
+    private static MessageChannel open(Socket socket, String protocol)
+    {
+        try
+        {
+            return MessageChannel.open(socket, protocol);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Encodes a message, decodes it back, and checks that the decoded message encodes to the same frame.
+     */
+    private static Object roundTrip(Object message) throws Exception
+    {
+        ByteBuffer buffer = MessageCodec.encodeFrame(message);
+        int length = buffer.getInt();
+        Check.equal(buffer.remaining(), length, "length prefix of " + message.getClass().getSimpleName());
+        byte[] frame = new byte[buffer.remaining()];
+        buffer.get(frame);
+
+        Object decoded = MessageCodec.decodeFrame(frame);
+        Check.equal(message.getClass(), decoded.getClass(), "decoded type");
+        Check.that(Arrays.equals(frame, frameOf(decoded)), "re-encoded " + message.getClass().getSimpleName());
+        return decoded;
+    }
+
+    /**
+     * @return the frame of a message, without its length prefix
+     */
+    private static byte[] frameOf(Object message) throws IOException
+    {
+        ByteBuffer buffer = MessageCodec.encodeFrame(message);
+        return Arrays.copyOfRange(buffer.array(), 4, buffer.limit());
+    }
+
+    private static Track track(int size, long seed)
+    {
+        java.util.Random random = new java.util.Random(seed);
+        Track track = new Track(size);
+        for (int i = 0; i < size; i++)
+        {
+            track.add(37.9 + random.nextDouble() / 100, 23.6 + random.nextDouble() / 100, random.nextDouble() * 100,
+                    1_679_247_187_000L + i * 7_000L);
+        }
+        return track;
+    }
+
+    private static boolean sameTrack(Track expected, Track actual)
+    {
+        if (expected.size() != actual.size())
+        {
+            return false;
+        }
+        for (int i = 0; i < expected.size(); i++)
+        {
+            if (expected.getLatitude(i) != actual.getLatitude(i) || expected.getLongitude(i) != actual.getLongitude(i)
+                    || expected.getElevation(i) != actual.getElevation(i) || expected.getTime(i) != actual.getTime(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ActivityStats activityStats(int routeID)
+    {
+        SegmentActivityStats first = new SegmentActivityStats(3, "segment1.gpx", 12);
+        first.updateTime(0.7);
+        SegmentActivityStats second = new SegmentActivityStats(4, "segment2.gpx");
+        second.updateTime(1.65);
+        return new ActivityStats(routeID, 10.29, 63.6, 41.5, 9.7, new ArrayList<>(List.of(first, second)));
+    }
+
+    private static SegmentLeaderboard leaderboard(String fileName)
+    {
+        SegmentLeaderboard leaderboard = new SegmentLeaderboard(fileName);
+        leaderboard.registerSegmentStatistics(new UserSegmentStatistics(17, "alice", 1.65));
+        leaderboard.registerSegmentStatistics(new UserSegmentStatistics(17, "bob", 0.71));
+        leaderboard.registerSegmentStatistics(new UserSegmentStatistics(17, "carol", 2.5));
+        return leaderboard;
+    }
+}
@@ -0,0 +1,111 @@
+package com.activity_tracker.backend.parser;
+
+import com.activity_tracker.backend.GpxFiles;
+import com.activity_tracker.backend.network.MessageCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * ChunkWireBenchmark: Measures the bytes sent to the workers for every route, before and after the chunks stopped
+ * carrying their route.
+ * Routes of several sizes, going through the registered segments, are parsed and split as the fixed policy splits
+ * them for the given number of workers, and three encodings of their chunks are measured:
+ * <ul>
+ *     <li>before: every chunk held its whole route, with all the waypoints of the route and of the segments found in
+ *     it, and was sent through Java serialization, resetting the stream after every message. The route is the one
+ *     the master parses today, whose waypoints are stored in columns: the waypoint objects sent before took more
+ *     bytes still, so this is a lower bound of the old cost.</li>
+ *     <li>compact, java: the chunk as it is sent today, with its own waypoints and segment intervals only, through
+ *     Java serialization.</li>
+ *     <li>compact, binary: the same chunk through the binary protocol, the default for the workers.</li>
+ * </ul>
+ * <p>
+ * Run from the project directory:
+ * <pre>
+ *     javac -d out $(find src test -name '*.java')
+ *     java -cp out com.activity_tracker.backend.parser.ChunkWireBenchmark [workers]
+ * </pre>
+ */
+public class ChunkWireBenchmark
+{
+    // ROUTE_SIZES: the number of waypoints of the routes measured
+    private static final int[] ROUTE_SIZES = {100, 1_000, 10_000, 100_000};
+
+    public static void main(String[] args) throws Exception
+    {
+        int workers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+
+        Queue<Segment> segments = new LinkedList<>();
+        for (File file : new File("registered_segments").listFiles())
+        {
+            segments.add(GPXParser.parseSegment(file));
+        }
+
+        System.out.printf("%10s %7s %16s %16s %16s %8s%n", "waypoints", "chunks", "before", "compact, java",
+                "compact, binary", "saved");
+        for (int size : ROUTE_SIZES)
+        {
+            // the lead-in before each of the two segments makes up the size of the route
+            byte[] gpx = GpxFiles.route("alice", Math.max(size / 2, 1));
+            Route route = GPXParser.parseRoute(new ByteArrayInputStream(gpx), segments);
+
+            long before = 0;
+            long compactJava = 0;
+            long compactBinary = 0;
+            List<Chunk> chunks = split(route, workers);
+            for (Chunk chunk : chunks)
+            {
+                before += javaSize(new Object[] {route, chunk.getTrack(), chunk.getChunkIndex(),
+                        chunk.getStartIndex(), chunk.getEndIndex(), chunk.getTotalChunks()});
+                compactJava += javaSize(chunk);
+                compactBinary += MessageCodec.encodeFrame(chunk).remaining();
+            }
+            System.out.printf("%10d %7d %16d %16d %16d %7.1fx%n", route.getTrack().size(), chunks.size(), before,
+                    compactJava, compactBinary, before / (double) compactBinary);
+        }
+    }
+
+    /**
+     * Splits a route the way WorkDispatcher does with the fixed policy: twice as many chunks as there are workers,
+     * every chunk starting from the last waypoint of the previous one.
+     */
+    private static List<Chunk> split(Route route, int workers)
+    {
+        int waypoints = route.getTrack().size();
+        int n = (waypoints >= workers) ? (int) Math.ceil(waypoints / (workers * 2.0)) : 1;
+        int total = (int) Math.ceil(waypoints / (double) n);
+
+        List<Chunk> chunks = new ArrayList<>();
+        int start = 0;
+        int end = Math.min(n, waypoints) - 1;
+        chunks.add(new Chunk(route, 0, start, end, total));
+        while (end < waypoints - 1)
+        {
+            start = end;
+            end = Math.min(start + n, waypoints - 1);
+            chunks.add(new Chunk(route, chunks.size(), start, end, total));
+        }
+        return chunks;
+    }
+
+    /**
+     * @return the bytes a message takes on a fresh object stream, as on a stream reset after every message
+     */
+    private static int javaSize(Object message) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+        {
+            out.writeObject(message);
+        }
+        return bytes.size();
+    }
+}
@@ -0,0 +1,158 @@
+package com.activity_tracker.backend.parser;
+
+import com.activity_tracker.backend.Check;
+import com.activity_tracker.backend.GpxFiles;
+import com.activity_tracker.backend.misc.Pair;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * GPXParserEquivalenceTest: Checks that the streaming parser reads every GPX file exactly as the DOM parser does: the
+ * same creator, the same waypoints bit for bit, and so the same segments found in them. The files cover the
+ * registered segments, generated routes of several sizes, and the variations of the format found in the files of
+ * real devices. Files that the DOM parser refuses must be refused by the streaming parser too.
+ * <p>
+ * Run from the project directory:
+ * <pre>
+ *     javac -d out $(find src test -name '*.java')
+ *     java -cp out com.activity_tracker.backend.parser.GPXParserEquivalenceTest
+ * </pre>
+ */
+public class GPXParserEquivalenceTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        List<Track> segments = new ArrayList<>();
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        for (File file : new File("registered_segments").listFiles())
+        {
+            byte[] content = Files.readAllBytes(file.toPath());
+            files.put(file.getName(), content);
+            segments.add(GPXParser.readWithDOM(new ByteArrayInputStream(content)).getValue());
+        }
+        for (int leadIn : new int[] {0, 1, 50, 5000})
+        {
+            files.put("route with " + leadIn + " waypoints before each segment", GpxFiles.route("alice", leadIn));
+        }
+        files.putAll(variations());
+
+        for (Map.Entry<String, byte[]> file : files.entrySet())
+        {
+            compare(file.getKey(), file.getValue(), segments);
+        }
+        for (Map.Entry<String, byte[]> file : invalidFiles().entrySet())
+        {
+            Check.fails(Exception.class, () -> GPXParser.readWithDOM(new ByteArrayInputStream(file.getValue())),
+                    "DOM parser, " + file.getKey());
+            Check.fails(Exception.class, () -> GPXParser.readWithStAX(new ByteArrayInputStream(file.getValue())),
+                    "StAX parser, " + file.getKey());
+        }
+        Check.finish("GPXParserEquivalenceTest");
+    }
+
+    /**
+     * Reads a file with both parsers and checks that they agree.
+     */
+    private static void compare(String name, byte[] content, List<Track> segments) throws Exception
+    {
+        Pair<String, Track> dom = GPXParser.readWithDOM(new ByteArrayInputStream(content));
+        Pair<String, Track> stax = GPXParser.readWithStAX(new ByteArrayInputStream(content));
+        Check.equal(dom.getKey(), stax.getKey(), name + ": creator");
+
+        Track expected = dom.getValue();
+        Track actual = stax.getValue();
+        Check.equal(expected.size(), actual.size(), name + ": waypoints");
+        for (int i = 0; i < Math.min(expected.size(), actual.size()); i++)
+        {
+            boolean same = sameBits(expected.getLatitude(i), actual.getLatitude(i))
+                    && sameBits(expected.getLongitude(i), actual.getLongitude(i))
+                    && sameBits(expected.getElevation(i), actual.getElevation(i))
+                    && expected.getTime(i) == actual.getTime(i);
+            if (!same)
+            {
+                Check.that(false, name + ": waypoint " + i + " is " + actual.getWaypoint(i) + ", expected "
+                        + expected.getWaypoint(i));
+                break;
+            }
+        }
+        for (Track segment : segments)
+        {
+            Check.equal(expected.indexOf(segment), actual.indexOf(segment), name + ": start of a segment");
+        }
+    }
+
+    /**
+     * @return files laid out the way other devices and applications write them, which both parsers accept
+     */
+    private static Map<String, byte[]> variations()
+    {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("namespaces and metadata", utf8("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<gpx xmlns=\"http://www.topografix.com/GPX/1/1\" version=\"1.1\" creator=\"bob\">\n"
+                + "  <metadata><name>Morning run</name><time>2023-03-19T17:00:00Z</time></metadata>\n"
+                + "  <wpt lat=\"37.9437\" lon=\"23.6932\"><ele>2.54</ele><time>2023-03-19T17:33:07Z</time></wpt>\n"
+                + "  <wpt lat=\"37.9434\" lon=\"23.6937\"><ele>2.34</ele><time>2023-03-19T17:33:15Z</time></wpt>\n"
+                + "</gpx>\n"));
+        files.put("attributes and children in another order", utf8("<gpx creator=\"carol\">"
+                + "<wpt lon=\"23.6932\" lat=\"37.9437\"><time>2023-03-19T17:33:07Z</time><ele>2.54</ele></wpt>"
+                + "<wpt lon=\"23.6937\" lat=\"37.9434\"><name>turn</name><time>2023-03-19T17:33:15Z</time>"
+                + "<ele>-1.5</ele></wpt></gpx>"));
+        files.put("whitespace and comments", utf8("<gpx creator=\"dave\">\n<!-- recorded on a watch -->\n"
+                + "<wpt lat=\" 37.9437 \" lon=\"23.6932\">\n\t<ele>\n\t\t2.54\n\t</ele>\n"
+                + "\t<time>\n\t\t2023-03-19T17:33:07Z\n\t</time>\n</wpt>\n<!-- paused -->\n"
+                + "<wpt lat=\"37.9434\" lon=\"23.6937\"><ele>2.34</ele><time> 2023-03-19T17:33:15Z </time></wpt>\n"
+                + "</gpx>"));
+        files.put("fractions of a second and offsets", utf8("<gpx creator=\"erin\">"
+                + "<wpt lat=\"1e1\" lon=\"-0.0\"><ele>1E2</ele><time>2023-03-19T17:33:07.5Z</time></wpt>"
+                + "<wpt lat=\"10.000000000000002\" lon=\"0\"><ele>100</ele>"
+                + "<time>2023-03-19T20:33:08.123456+03:00</time></wpt>"
+                + "<wpt lat=\"10\" lon=\"0.1\"><ele>99.9</ele><time>2023-03-19T17:33:09,25</time></wpt>"
+                + "<wpt lat=\"10\" lon=\"0.2\"><ele>99.8</ele><time>2024-02-29T12:00:00-0130</time></wpt>"
+                + "</gpx>"));
+        files.put("extensions holding their own elevation and time", utf8("<gpx creator=\"frank\">"
+                + "<wpt lat=\"37.9437\" lon=\"23.6932\"><ele>2.54</ele><time>2023-03-19T17:33:07Z</time>"
+                + "<extensions><ele>9</ele><time>2000-01-01T00:00:00Z</time></extensions></wpt></gpx>"));
+        files.put("no creator", utf8("<gpx><wpt lat=\"1\" lon=\"2\"><ele>3</ele><time>2023-03-19T17:33:07Z</time>"
+                + "</wpt></gpx>"));
+        files.put("non-ASCII creator", utf8("<gpx creator=\"\u0393\u03b9\u03ce\u03c1\u03b3\u03bf\u03c2\"><wpt lat=\"1\" "
+                + "lon=\"2\"><ele>3</ele><time>2023-03-19T17:33:07Z</time></wpt></gpx>"));
+        files.put("no waypoints", utf8("<gpx creator=\"grace\"><metadata/></gpx>"));
+        return files;
+    }
+
+    /**
+     * @return files that neither parser can read
+     */
+    private static Map<String, byte[]> invalidFiles()
+    {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("malformed XML", utf8("<gpx creator=\"alice\"><wpt lat=\"1\" lon=\"2\"><ele>3</ele></gpx>"));
+        files.put("waypoint without a time", utf8("<gpx creator=\"alice\"><wpt lat=\"1\" lon=\"2\"><ele>3</ele>"
+                + "</wpt></gpx>"));
+        files.put("waypoint without an elevation", utf8("<gpx creator=\"alice\"><wpt lat=\"1\" lon=\"2\">"
+                + "<time>2023-03-19T17:33:07Z</time></wpt></gpx>"));
+        files.put("latitude that is not a number", utf8("<gpx creator=\"alice\"><wpt lat=\"north\" lon=\"2\">"
+                + "<ele>3</ele><time>2023-03-19T17:33:07Z</time></wpt></gpx>"));
+        files.put("invalid timestamp", utf8("<gpx creator=\"alice\"><wpt lat=\"1\" lon=\"2\"><ele>3</ele>"
+                + "<time>2023-02-29T17:33:07Z</time></wpt></gpx>"));
+        files.put("empty file", new byte[0]);
+        return files;
+    }
+
+    private static boolean sameBits(double expected, double actual)
+    {
+        return Double.doubleToLongBits(expected) == Double.doubleToLongBits(actual);
+    }
+
+    private static byte[] utf8(String text)
+    {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}